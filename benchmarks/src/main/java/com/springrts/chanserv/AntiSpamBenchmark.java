@@ -0,0 +1,104 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.antispam.AntiSpamSystem;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per message of
+ * {@link AntiSpamSystem#processUserMsg(String, String, String)},
+ * single threaded, and with several threads hitting it concurrently.
+ * @author hoijui
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AntiSpamBenchmark {
+
+	private static final int MESSAGES = 4096;
+
+	@State(Scope.Benchmark)
+	public static class Shared {
+
+		@Param({"5000"})
+		private int clients;
+		@Param({"300"})
+		private int channels;
+
+		private BenchmarkFixture fixture;
+		private AntiSpamSystem antiSpamSystem;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+
+			fixture = new BenchmarkFixture(clients, channels, 3);
+			antiSpamSystem = fixture.getContext().getAntiSpamSystem();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			fixture.tearDown();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Messages {
+
+		private String[] channelNames;
+		private String[] userNames;
+		private String[] texts;
+		private int next;
+
+		@Setup(Level.Trial)
+		public void setUp(Shared shared) {
+
+			// each thread gets different, but reproducible, data
+			Random random = new Random(BenchmarkFixture.SEED + Thread.currentThread().getId());
+			channelNames = new String[MESSAGES];
+			userNames = new String[MESSAGES];
+			texts = BenchmarkFixture.createMessages(random, MESSAGES);
+			for (int i = 0; i < MESSAGES; i++) {
+				channelNames[i] = shared.fixture.getChannelName(random.nextInt(shared.channels));
+				userNames[i] = shared.fixture.getClientName(random.nextInt(shared.clients));
+			}
+			next = 0;
+		}
+
+		int nextIndex() {
+			return (next++) & (MESSAGES - 1);
+		}
+	}
+
+	@Benchmark
+	public void processUserMsg(Shared shared, Messages messages) {
+
+		int i = messages.nextIndex();
+		shared.antiSpamSystem.processUserMsg(messages.channelNames[i], messages.userNames[i], messages.texts[i]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void processUserMsgConcurrent(Shared shared, Messages messages) {
+		processUserMsg(shared, messages);
+	}
+}
@@ -0,0 +1,193 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.antispam.SpamSettings;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A ChanServ instance populated with a realistic amount of clients and
+ * channels, without a lobby server.
+ *
+ * All the data is derived from a fixed random seed,
+ * so every run (and every commit) benchmarks the same state.
+ * @author hoijui
+ */
+public class BenchmarkFixture {
+
+	/** Seed for all the random data; change it only together with the benchmarks */
+	public static final long SEED = 20101016L;
+	/** Status bit of moderators, see {@link Client#isModerator()} */
+	private static final int MODERATOR_STATUS = 0x20;
+
+	private final int clientCount;
+	private final int channelCount;
+	private final int channelsPerClient;
+
+	private final File folder;
+	private final ChanServ chanServ;
+	private final Context context;
+	private final NullLobbyConnection connection;
+	private final ChatLogWriter chatLogWriter;
+	private final String[] clientNames;
+	private final String[] channelNames;
+
+	/**
+	 * @param clientCount number of clients logged in to the lobby server
+	 * @param channelCount number of registered channels
+	 * @param channelsPerClient number of channels each client is in
+	 */
+	public BenchmarkFixture(int clientCount, int channelCount, int channelsPerClient) throws IOException {
+
+		this.clientCount = clientCount;
+		this.channelCount = channelCount;
+		this.channelsPerClient = Math.min(channelsPerClient, channelCount);
+
+		folder = File.createTempFile("chanserv-bench", "");
+		folder.delete();
+		folder.mkdirs();
+
+		chanServ = new ChanServ();
+		chanServ.init();
+		context = chanServ.getContext();
+		connection = new NullLobbyConnection();
+		chanServ.setConnection(connection);
+
+		chatLogWriter = new ChatLogWriter(new ChatLogSettings() {
+			@Override
+			public String getFolder() {
+				return new File(folder, "log").getPath();
+			}
+		}, context.getMetrics());
+		context.setChatLogWriter(chatLogWriter);
+		chatLogWriter.start();
+
+		clientNames = new String[clientCount];
+		for (int c = 0; c < clientCount; c++) {
+			clientNames[c] = "Player" + c;
+		}
+		channelNames = new String[channelCount];
+		for (int ch = 0; ch < channelCount; ch++) {
+			channelNames[ch] = "channel" + ch;
+		}
+
+		populate();
+	}
+
+	private void populate() {
+
+		Random random = new Random(SEED);
+		Configuration config = context.getConfiguration();
+
+		for (int ch = 0; ch < channelCount; ch++) {
+			Channel channel = new Channel(context, channelNames[ch]);
+			channel.setStatic(false);
+			channel.setFounder(clientNames[random.nextInt(clientCount)]);
+			channel.setTopic("Welcome to #" + channelNames[ch] + "! Please read the rules before posting.");
+			channel.setAntiSpam(true);
+			channel.setAntiSpamSettings(new SpamSettings());
+			for (int o = 0; o < 3; o++) {
+				String operator = clientNames[random.nextInt(clientCount)];
+				if (!channel.isOperator(operator)) {
+					channel.addOperator(operator);
+				}
+			}
+			config.addChannel(channel);
+			context.getAntiSpamSystem().setSpamSettingsForChannel(channel.getName(), channel.getAntiSpamSettings());
+			chanServ.execRemoteCommand("JOIN " + channel.getName());
+		}
+
+		for (int c = 0; c < clientCount; c++) {
+			chanServ.execRemoteCommand("ADDUSER " + clientNames[c] + " DE 0 " + c);
+			// every 100th client is a moderator
+			int status = ((c % 100) == 0) ? MODERATOR_STATUS : 0;
+			chanServ.execRemoteCommand("CLIENTSTATUS " + clientNames[c] + " " + status);
+			for (int j = 0; j < channelsPerClient; j++) {
+				String channelName = channelNames[random.nextInt(channelCount)];
+				chanServ.execRemoteCommand("JOINED " + channelName + " " + clientNames[c]);
+			}
+		}
+	}
+
+	/** Stops the background threads, and deletes all the files written */
+	public void tearDown() {
+
+		chatLogWriter.stop();
+		delete(folder);
+	}
+
+	private static void delete(File file) {
+
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public ChanServ getChanServ() {
+		return chanServ;
+	}
+
+	public Context getContext() {
+		return context;
+	}
+
+	public NullLobbyConnection getConnection() {
+		return connection;
+	}
+
+	/** Temporary folder, deleted on {@link #tearDown()} */
+	public File getFolder() {
+		return folder;
+	}
+
+	public String getClientName(int index) {
+		return clientNames[index];
+	}
+
+	public String getChannelName(int index) {
+		return channelNames[index];
+	}
+
+	public int getClientCount() {
+		return clientCount;
+	}
+
+	public int getChannelCount() {
+		return channelCount;
+	}
+
+	/**
+	 * Creates random, but reproducible, chat messages.
+	 * About every 20th message repeats the previous one,
+	 * and about every 10th one is long, to trigger the anti-spam penalties.
+	 */
+	public static String[] createMessages(Random random, int count) {
+
+		String[] words = {"hi", "anyone", "up", "for", "a", "game", "?", "gg",
+				"rush", "noob", "lol", "map", "DeltaSiegeDry", "balanced",
+				"team", "spec", "host", "ready", "start", "please"};
+		String[] messages = new String[count];
+		for (int m = 0; m < count; m++) {
+			if ((m > 0) && (random.nextInt(20) == 0)) {
+				messages[m] = messages[m - 1];
+				continue;
+			}
+			int length = (random.nextInt(10) == 0) ? 60 : (1 + random.nextInt(12));
+			StringBuilder message = new StringBuilder();
+			for (int w = 0; w < length; w++) {
+				if (w > 0) {
+					message.append(' ');
+				}
+				message.append(words[random.nextInt(words.length)]);
+			}
+			messages[m] = message.toString();
+		}
+		return messages;
+	}
+}
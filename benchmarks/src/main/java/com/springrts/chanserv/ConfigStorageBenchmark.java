@@ -0,0 +1,67 @@
+
+package com.springrts.chanserv;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of taking a snapshot of the configuration,
+ * and of writing it to disk with {@link JAXBConfigStorage}.
+ * @author hoijui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ConfigStorageBenchmark {
+
+	@Param({"100", "1000"})
+	private int channels;
+
+	private BenchmarkFixture fixture;
+	private Configuration configuration;
+	private JAXBConfigStorage storage;
+	private String fileName;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		fixture = new BenchmarkFixture(2000, channels, 1);
+		configuration = fixture.getContext().getConfiguration();
+		storage = new JAXBConfigStorage(fixture.getContext());
+		fileName = new File(fixture.getFolder(), "settings.xml").getPath();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.tearDown();
+	}
+
+	@Benchmark
+	public Configuration snapshot() {
+		return configuration.snapshot();
+	}
+
+	@Benchmark
+	public boolean saveConfig() {
+		return storage.saveConfig(configuration, fileName);
+	}
+}
@@ -0,0 +1,215 @@
+
+package com.springrts.chanserv;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the lobby server (TASServer), listening on localhost.
+ *
+ * It accepts a single connection, from ChanServ, and speaks just enough of
+ * the protocol to get it going: it greets with <code>TASSERVER</code>,
+ * accepts any <code>LOGIN</code> and announces all clients with
+ * <code>ADDUSER</code>, answers <code>JOIN</code> with the channel's
+ * <code>CLIENTS</code>, <code>MUTELIST</code> with a fake mute list,
+ * and <code>PING</code> with <code>PONG</code>.
+ * Everything ChanServ sends is also handed to a {@link LineListener}.
+ *
+ * Channel membership and mute lists are derived from a fixed random seed.
+ * @author hoijui
+ */
+public class FakeLobbyServer implements Runnable {
+
+	/** Receives every line ChanServ sends to the server */
+	public static interface LineListener {
+		/**
+		 * @param line the line received from ChanServ
+		 * @param nanoTime {@link System#nanoTime()} when it was received
+		 */
+		void lineReceived(String line, long nanoTime);
+	}
+
+	/** Number of names per <code>CLIENTS</code> line */
+	private static final int NAMES_PER_CLIENTS_LINE = 100;
+	/** Number of entries in every channels mute list */
+	private static final int MUTES_PER_CHANNEL = 5;
+
+	private final String[] clientNames;
+	private final Map<String, List<String>> channelMembers;
+	private final LineListener listener;
+	private final CountDownLatch joined;
+
+	private ServerSocket serverSocket;
+	private Socket socket;
+	private Writer out;
+	private Thread thread;
+
+	/**
+	 * @param channelsPerClient number of channels each client is in
+	 * @param listener may be <code>null</code>
+	 */
+	public FakeLobbyServer(String[] clientNames, String[] channelNames, int channelsPerClient, long seed, LineListener listener) {
+
+		this.clientNames = clientNames.clone();
+		this.channelMembers = new HashMap<String, List<String>>();
+		this.listener = listener;
+		this.joined = new CountDownLatch(channelNames.length);
+
+		for (String channelName : channelNames) {
+			channelMembers.put(channelName, new ArrayList<String>());
+		}
+		Random random = new Random(seed);
+		for (String clientName : clientNames) {
+			for (int j = 0; j < Math.min(channelsPerClient, channelNames.length); j++) {
+				List<String> members = channelMembers.get(channelNames[random.nextInt(channelNames.length)]);
+				if (!members.contains(clientName)) {
+					members.add(clientName);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts listening on a free port on localhost.
+	 * @return the port to connect to
+	 */
+	public int start() throws IOException {
+
+		serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		thread = new Thread(this, "FakeLobbyServer");
+		thread.setDaemon(true);
+		thread.start();
+
+		return serverSocket.getLocalPort();
+	}
+
+	/** Closes the connection, which makes ChanServ leave its message loop */
+	public void close() {
+
+		try {
+			serverSocket.close();
+		} catch (IOException ex) {
+			// ignore
+		}
+		Socket currentSocket = socket;
+		if (currentSocket != null) {
+			try {
+				currentSocket.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Waits until ChanServ logged in and joined all its channels.
+	 * @return <code>false</code> if that did not happen in time
+	 */
+	public boolean awaitJoined(long timeout, TimeUnit unit) throws InterruptedException {
+		return joined.await(timeout, unit);
+	}
+
+	/**
+	 * Queues a line for sending to ChanServ;
+	 * it is only sent on the next {@link #flush()}.
+	 * Blocks if ChanServ does not read fast enough.
+	 */
+	public synchronized void send(String line) throws IOException {
+
+		out.write(line);
+		out.write('\n');
+	}
+
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void run() {
+
+		try {
+			socket = serverSocket.accept();
+			socket.setTcpNoDelay(true);
+			synchronized (this) {
+				out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), 64 * 1024);
+			}
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+
+			send("TASSERVER 0.35 * 8201 0");
+			flush();
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				long now = System.nanoTime();
+				respond(line);
+				if (listener != null) {
+					listener.lineReceived(line, now);
+				}
+			}
+		} catch (IOException ex) {
+			// the connection was closed
+		} finally {
+			close();
+		}
+	}
+
+	private void respond(String line) throws IOException {
+
+		LineTokenizer commands = new LineTokenizer(line);
+		if (commands.isEmpty()) {
+			return;
+		}
+
+		if (commands.equals(0, "LOGIN")) {
+			send("ACCEPTED " + commands.get(1));
+			for (int c = 0; c < clientNames.length; c++) {
+				send("ADDUSER " + clientNames[c] + " XX 0 " + c);
+			}
+			send("LOGININFOEND");
+			flush();
+		} else if (commands.equals(0, "JOIN")) {
+			String channelName = commands.get(1);
+			send("JOIN " + channelName);
+			List<String> members = channelMembers.get(channelName);
+			if (members != null) {
+				for (int m = 0; m < members.size(); m += NAMES_PER_CLIENTS_LINE) {
+					StringBuilder clients = new StringBuilder("CLIENTS ").append(channelName);
+					for (String member : members.subList(m, Math.min(m + NAMES_PER_CLIENTS_LINE, members.size()))) {
+						clients.append(' ').append(member);
+					}
+					send(clients.toString());
+				}
+			}
+			flush();
+			if (joined.getCount() > 0) {
+				joined.countDown();
+			}
+		} else if (commands.equals(0, "MUTELIST")) {
+			String channelName = commands.get(1);
+			send("MUTELISTBEGIN " + channelName);
+			for (int m = 0; m < MUTES_PER_CHANNEL; m++) {
+				send("MUTELIST " + clientNames[((channelName.hashCode() + m) & 0x7FFFFFFF) % clientNames.length] + ", " + (60 * (m + 1)) + " seconds remaining");
+			}
+			send("MUTELISTEND");
+			flush();
+		} else if (commands.equals(0, "PING")) {
+			send("PONG");
+			flush();
+		}
+	}
+}
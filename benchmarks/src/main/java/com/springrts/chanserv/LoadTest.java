@@ -0,0 +1,361 @@
+
+package com.springrts.chanserv;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test of ChanServ, against a {@link FakeLobbyServer}.
+ *
+ * ChanServ runs its real message loop, connected through localhost.
+ * For each of a series of rates, the driver sends chat traffic at that rate,
+ * either synthetic or replayed from a file, and in between sends probes:
+ * <code>SAIDPRIVATE &lt;user&gt; !INFO #&lt;channel&gt;</code>.
+ * The time from sending a probe until ChanServ's answer arrives is the
+ * end-to-end latency.
+ * A rate is considered sustainable if the driver could actually send at
+ * that rate, all probes were answered, and the 99th percentile latency
+ * stayed below the limit; otherwise the reader fell behind.
+ *
+ * Options are given as <code>name=value</code> arguments:
+ * <ul>
+ * <li>clients: number of clients logged in (default 5000)</li>
+ * <li>channels: number of registered channels (default 300)</li>
+ * <li>rates: comma separated lines/second to try (default 1000,2000,5000,10000,20000,50000,100000)</li>
+ * <li>duration: seconds per rate (default 10)</li>
+ * <li>probes: probes per second (default 20)</li>
+ * <li>latencyLimit: milliseconds, for the 99th percentile (default 250)</li>
+ * <li>workers: number of pipeline workers, see {@link EventPipeline}
+ *   (default 0: process lines on the reading thread)</li>
+ * <li>replay: file with lobby server lines to replay, in a loop,
+ *   instead of synthetic traffic (optional)</li>
+ * </ul>
+ * @author hoijui
+ */
+public class LoadTest implements FakeLobbyServer.LineListener {
+
+	/** Answers to <code>!INFO</code> start with this */
+	private static final String INFO_ANSWER = "Channel #";
+	/** How long to wait for outstanding probes after each step */
+	private static final long PROBE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	/** Results of running at one rate */
+	private static class StepResult {
+
+		private int rate;
+		private double sentRate;
+		private int probesSent;
+		private int probesAnswered;
+		private long[] latencies;
+
+		private long percentile(double p) {
+
+			if (latencies.length == 0) {
+				return -1;
+			}
+			int index = (int) Math.ceil(p * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+		}
+
+		boolean isSustainable(long latencyLimitNanos) {
+			return (sentRate >= rate * 0.95)
+					&& (probesAnswered == probesSent)
+					&& (percentile(0.99) <= latencyLimitNanos);
+		}
+	}
+
+	private final Map<String, String> options;
+	private final int clientCount;
+	private final int channelCount;
+	private final String[] clientNames;
+	private final String[] channelNames;
+
+	/** Probes waiting for an answer; user name to time sent */
+	private final Map<String, Long> pendingProbes;
+	/** Latencies of answered probes in the current step */
+	private final List<Long> latencies;
+
+	private FakeLobbyServer server;
+	private ChanServ chanServ;
+	private ChatLogWriter chatLogWriter;
+	private File folder;
+
+	public LoadTest(Map<String, String> options) {
+
+		this.options = options;
+		this.clientCount = Integer.parseInt(option("clients", "5000"));
+		this.channelCount = Integer.parseInt(option("channels", "300"));
+		this.clientNames = new String[clientCount];
+		for (int c = 0; c < clientCount; c++) {
+			clientNames[c] = "Player" + c;
+		}
+		this.channelNames = new String[channelCount];
+		for (int ch = 0; ch < channelCount; ch++) {
+			channelNames[ch] = "channel" + ch;
+		}
+		this.pendingProbes = new ConcurrentHashMap<String, Long>();
+		this.latencies = Collections.synchronizedList(new ArrayList<Long>());
+	}
+
+	private String option(String name, String defaultValue) {
+
+		String value = options.get(name);
+		return (value == null) ? defaultValue : value;
+	}
+
+	@Override
+	public void lineReceived(String line, long nanoTime) {
+
+		// SAYPRIVATE <user> <message>
+		if (!line.startsWith("SAYPRIVATE ")) {
+			return;
+		}
+		int userEnd = line.indexOf(' ', "SAYPRIVATE ".length());
+		if ((userEnd == -1) || !line.startsWith(INFO_ANSWER, userEnd + 1)) {
+			return;
+		}
+		Long sent = pendingProbes.remove(line.substring("SAYPRIVATE ".length(), userEnd));
+		if (sent != null) {
+			latencies.add(nanoTime - sent.longValue());
+		}
+	}
+
+	/** Starts the fake server, and ChanServ connected to it */
+	private void setUp() throws IOException, InterruptedException {
+
+		folder = File.createTempFile("chanserv-load", "");
+		folder.delete();
+		folder.mkdirs();
+
+		server = new FakeLobbyServer(clientNames, channelNames, 3, BenchmarkFixture.SEED, this);
+		int port = server.start();
+
+		chanServ = new ChanServ();
+		chanServ.init();
+		Context context = chanServ.getContext();
+		// do not touch the real configuration file
+		context.setConfigStorage(new ConfigStorage() {
+			@Override
+			public void loadConfig(String fileName) {
+			}
+			@Override
+			public boolean saveConfig(Configuration configuration, String fileName) {
+				return true;
+			}
+		});
+		Configuration config = context.getConfiguration();
+		config.setServerAddress("127.0.0.1");
+		config.setServerPort(port);
+		config.setUsername("ChanServ");
+		config.setPipelineWorkers(Integer.parseInt(option("workers", "0")));
+		for (String channelName : channelNames) {
+			Channel channel = new Channel(context, channelName);
+			channel.setStatic(false);
+			channel.setFounder(clientNames[0]);
+			channel.setAntiSpam(true);
+			config.addChannel(channel);
+		}
+
+		chatLogWriter = new ChatLogWriter(new ChatLogSettings() {
+			@Override
+			public String getFolder() {
+				return new File(folder, "log").getPath();
+			}
+		}, context.getMetrics());
+		context.setChatLogWriter(chatLogWriter);
+		chatLogWriter.start();
+
+		Thread session = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				chanServ.runSession();
+			}
+		}, "ChanServ");
+		session.setDaemon(true);
+		session.start();
+
+		if (!server.awaitJoined(60, TimeUnit.SECONDS)) {
+			throw new IOException("ChanServ did not join all channels in time");
+		}
+	}
+
+	private void tearDown() {
+
+		server.close();
+		chatLogWriter.stop();
+		delete(folder);
+	}
+
+	private static void delete(File file) {
+
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/** Creates a reproducible mix of the most common lobby server lines */
+	private String[] createSyntheticTraffic(int count) {
+
+		Random random = new Random(BenchmarkFixture.SEED);
+		String[] messages = BenchmarkFixture.createMessages(random, count);
+		String[] lines = new String[count];
+		for (int i = 0; i < count; i++) {
+			String channel = channelNames[random.nextInt(channelCount)];
+			String client = clientNames[random.nextInt(clientCount)];
+			int kind = random.nextInt(100);
+			if (kind < 70) {
+				lines[i] = "SAID " + channel + " " + client + " " + messages[i];
+			} else if (kind < 80) {
+				lines[i] = "SAIDEX " + channel + " " + client + " " + messages[i];
+			} else if (kind < 95) {
+				lines[i] = "CLIENTSTATUS " + client + " " + random.nextInt(4);
+			} else if ((i + 1) < count) {
+				lines[i] = "JOINED " + channel + " " + client;
+				lines[++i] = "LEFT " + channel + " " + client;
+			} else {
+				lines[i] = "SAID " + channel + " " + client + " " + messages[i];
+			}
+		}
+		return lines;
+	}
+
+	private static String[] loadTraffic(String fileName) throws IOException {
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					lines.add(line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (lines.isEmpty()) {
+			throw new IOException("No lines to replay in " + fileName);
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/** Sends traffic at the given rate, plus probes, for some time */
+	private StepResult runStep(String[] traffic, int rate, long durationNanos, int probeRate) throws IOException, InterruptedException {
+
+		pendingProbes.clear();
+		latencies.clear();
+
+		StepResult result = new StepResult();
+		result.rate = rate;
+		Random random = new Random(BenchmarkFixture.SEED + rate);
+		long start = System.nanoTime();
+		long end = start + durationNanos;
+		long sent = 0;
+		int next = 0;
+		int probeUser = 0;
+		long now;
+		while ((now = System.nanoTime()) < end) {
+			long elapsed = now - start;
+			long due = elapsed * rate / 1000000000L;
+			for (; sent < due; sent++) {
+				server.send(traffic[next]);
+				next = (next + 1) % traffic.length;
+			}
+			long probesDue = elapsed * probeRate / 1000000000L;
+			while (result.probesSent < probesDue) {
+				String user = clientNames[probeUser];
+				probeUser = (probeUser + 1) % clientCount;
+				pendingProbes.put(user, Long.valueOf(System.nanoTime()));
+				server.send("SAIDPRIVATE " + user + " !INFO #" + channelNames[random.nextInt(channelCount)]);
+				result.probesSent++;
+			}
+			server.flush();
+			Thread.sleep(1);
+		}
+		result.sentRate = sent * 1e9 / (System.nanoTime() - start);
+
+		// give the last probes a chance to be answered
+		long deadline = System.nanoTime() + PROBE_TIMEOUT_NANOS;
+		while (!pendingProbes.isEmpty() && (System.nanoTime() < deadline)) {
+			Thread.sleep(10);
+		}
+
+		synchronized (latencies) {
+			result.latencies = new long[latencies.size()];
+			for (int i = 0; i < result.latencies.length; i++) {
+				result.latencies[i] = latencies.get(i).longValue();
+			}
+		}
+		Arrays.sort(result.latencies);
+		result.probesAnswered = result.latencies.length;
+
+		return result;
+	}
+
+	public void run() throws IOException, InterruptedException {
+
+		String replayFile = options.get("replay");
+		String[] traffic = (replayFile == null) ? createSyntheticTraffic(65536) : loadTraffic(replayFile);
+		long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "10")));
+		int probeRate = Integer.parseInt(option("probes", "20"));
+		long latencyLimitNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(option("latencyLimit", "250")));
+
+		System.out.println("Setting up " + clientCount + " clients in " + channelCount + " channels ...");
+		setUp();
+		try {
+			System.out.println(String.format("%10s %10s %8s %10s %10s %10s  %s",
+					"rate", "sent/s", "probes", "p50 ms", "p99 ms", "max ms", "sustainable"));
+			int maxSustainable = 0;
+			for (String rateString : option("rates", "1000,2000,5000,10000,20000,50000,100000").split(",")) {
+				int rate = Integer.parseInt(rateString.trim());
+				StepResult result = runStep(traffic, rate, durationNanos, probeRate);
+				boolean sustainable = result.isSustainable(latencyLimitNanos);
+				System.out.println(String.format("%10d %10.0f %4d/%-4d %10.2f %10.2f %10.2f  %s",
+						rate, result.sentRate, result.probesAnswered, result.probesSent,
+						result.percentile(0.5) / 1e6, result.percentile(0.99) / 1e6,
+						result.percentile(1.0) / 1e6, sustainable ? "yes" : "NO"));
+				if (!sustainable) {
+					// ChanServ fell behind; higher rates will not work either
+					break;
+				}
+				maxSustainable = rate;
+			}
+			System.out.println("Maximum sustainable rate: " + maxSustainable + " lines/s");
+		} finally {
+			tearDown();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equalsPos = arg.indexOf('=');
+			if (equalsPos == -1) {
+				System.err.println("Usage: LoadTest [name=value]...; see the class documentation for the options");
+				System.exit(1);
+			}
+			options.put(arg.substring(0, equalsPos), arg.substring(equalsPos + 1));
+		}
+
+		new LoadTest(options).run();
+		System.exit(0);
+	}
+}
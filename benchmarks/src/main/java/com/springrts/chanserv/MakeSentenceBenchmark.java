@@ -0,0 +1,78 @@
+
+package com.springrts.chanserv;
+
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Re-assembling the rest of a command line, the old way with
+ * {@link Misc#makeSentence(String[], int)}, and the new way with
+ * {@link LineTokenizer#rest(int)}.
+ * @author hoijui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class MakeSentenceBenchmark {
+
+	/** Number of words in the message part of the line */
+	@Param({"5", "50"})
+	private int words;
+
+	private String line;
+	private String[] split;
+	private List<String> list;
+	private LineTokenizer tokenizer;
+
+	@Setup
+	public void setUp() {
+
+		StringBuilder builder = new StringBuilder("SAID main Player42");
+		for (int w = 0; w < words; w++) {
+			builder.append(" word").append(w);
+		}
+		line = builder.toString();
+		split = line.split(" ");
+		list = new LinkedList<String>(Arrays.asList(split));
+		tokenizer = new LineTokenizer();
+	}
+
+	@Benchmark
+	public String makeSentenceArray() {
+		return Misc.makeSentence(split, 3);
+	}
+
+	@Benchmark
+	public String makeSentenceList() {
+		return Misc.makeSentence(list, 3);
+	}
+
+	/** What the old message loop did for every line */
+	@Benchmark
+	public String splitAndMakeSentence() {
+		return Misc.makeSentence(line.trim().split(" "), 3);
+	}
+
+	@Benchmark
+	public String tokenizerRest() {
+		return tokenizer.reset(line).rest(3);
+	}
+}
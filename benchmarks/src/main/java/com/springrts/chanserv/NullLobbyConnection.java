@@ -0,0 +1,48 @@
+
+package com.springrts.chanserv;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection that drops everything sent to it, and never receives anything.
+ * Lets ChanServ run without a lobby server.
+ * @author hoijui
+ */
+public class NullLobbyConnection implements LobbyConnection {
+
+	private final AtomicLong sentLines = new AtomicLong(0);
+
+	@Override
+	public boolean connect(String address, int port) {
+		return true;
+	}
+
+	@Override
+	public void sendLine(String line) {
+		sentLines.incrementAndGet();
+	}
+
+	@Override
+	public boolean flush(long timeoutMillis) {
+		return true;
+	}
+
+	@Override
+	public void readLines(LineHandler handler) {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	/** Number of lines ChanServ sent so far */
+	public long getSentLines() {
+		return sentLines.get();
+	}
+}
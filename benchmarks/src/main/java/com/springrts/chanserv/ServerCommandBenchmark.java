@@ -0,0 +1,103 @@
+
+package com.springrts.chanserv;
+
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How many lines per second {@link ChanServ#execRemoteCommand(String)} can
+ * process, for the commands the lobby server sends most often.
+ * Like the real message loop, it runs single threaded.
+ * @author hoijui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ServerCommandBenchmark {
+
+	/** Number of pre-built lines; a power of two */
+	private static final int LINES = 4096;
+
+	@Param({"5000"})
+	private int clients;
+	@Param({"300"})
+	private int channels;
+
+	private BenchmarkFixture fixture;
+	private ChanServ chanServ;
+	private String[] saidLines;
+	private String[] clientStatusLines;
+	private String[] joinedLeftLines;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		fixture = new BenchmarkFixture(clients, channels, 3);
+		chanServ = fixture.getChanServ();
+
+		Random random = new Random(BenchmarkFixture.SEED);
+		String[] messages = BenchmarkFixture.createMessages(random, LINES);
+		saidLines = new String[LINES];
+		clientStatusLines = new String[LINES];
+		joinedLeftLines = new String[LINES];
+		for (int i = 0; i < LINES; i++) {
+			String channel = fixture.getChannelName(random.nextInt(channels));
+			String client = fixture.getClientName(random.nextInt(clients));
+			saidLines[i] = "SAID " + channel + " " + client + " " + messages[i];
+			// status bits: in game, away, rank
+			clientStatusLines[i] = "CLIENTSTATUS " + client + " " + (random.nextInt(4) | (random.nextInt(8) << 2));
+		}
+		// every JOINED is followed by the matching LEFT
+		for (int i = 0; i < LINES; i += 2) {
+			String channel = fixture.getChannelName(random.nextInt(channels));
+			String client = fixture.getClientName(random.nextInt(clients));
+			joinedLeftLines[i] = "JOINED " + channel + " " + client;
+			joinedLeftLines[i + 1] = "LEFT " + channel + " " + client;
+		}
+		next = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.tearDown();
+	}
+
+	private int nextIndex() {
+		return (next++) & (LINES - 1);
+	}
+
+	@Benchmark
+	public boolean said() {
+		return chanServ.execRemoteCommand(saidLines[nextIndex()]);
+	}
+
+	@Benchmark
+	public boolean clientStatus() {
+		return chanServ.execRemoteCommand(clientStatusLines[nextIndex()]);
+	}
+
+	@Benchmark
+	public boolean joinedLeft() {
+		return chanServ.execRemoteCommand(joinedLeftLines[nextIndex()]);
+	}
+}
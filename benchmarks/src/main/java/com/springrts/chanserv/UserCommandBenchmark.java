@@ -0,0 +1,95 @@
+
+package com.springrts.chanserv;
+
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link ChanServ#processUserCommand(String, Client, Channel)}
+ * for the read-only commands users issue most often.
+ * @author hoijui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class UserCommandBenchmark {
+
+	private static final int COMMANDS = 1024;
+
+	@Param({"5000"})
+	private int clients;
+	@Param({"300"})
+	private int channels;
+
+	private BenchmarkFixture fixture;
+	private ChanServ chanServ;
+	private Client[] callers;
+	private String[] infoCommands;
+	private Channel[] fromChannels;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		fixture = new BenchmarkFixture(clients, channels, 3);
+		chanServ = fixture.getChanServ();
+
+		Random random = new Random(BenchmarkFixture.SEED);
+		callers = new Client[COMMANDS];
+		infoCommands = new String[COMMANDS];
+		fromChannels = new Channel[COMMANDS];
+		for (int i = 0; i < COMMANDS; i++) {
+			callers[i] = chanServ.getClient(fixture.getClientName(random.nextInt(clients)));
+			infoCommands[i] = "INFO #" + fixture.getChannelName(random.nextInt(channels));
+			fromChannels[i] = chanServ.getChannel(fixture.getChannelName(random.nextInt(channels)));
+		}
+		next = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.tearDown();
+	}
+
+	private int nextIndex() {
+		return (next++) & (COMMANDS - 1);
+	}
+
+	@Benchmark
+	public void infoPrivate() {
+
+		int i = nextIndex();
+		chanServ.processUserCommand(infoCommands[i], callers[i], null);
+	}
+
+	@Benchmark
+	public void infoInChannel() {
+
+		int i = nextIndex();
+		chanServ.processUserCommand("INFO", callers[i], fromChannels[i]);
+	}
+
+	@Benchmark
+	public void help() {
+		chanServ.processUserCommand("HELP", callers[nextIndex()], null);
+	}
+}
@@ -7,20 +7,17 @@ package com.springrts.chanserv;
 
 import com.springrts.chanserv.antispam.SpamSettings;
 import com.springrts.chanserv.antispam.DefaultAntiSpamSystem;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.Collections;
+import com.springrts.chanserv.metrics.Counter;
+import com.springrts.chanserv.metrics.Gauge;
+import com.springrts.chanserv.metrics.Histogram;
+import com.springrts.chanserv.metrics.MetricsRegistry;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Semaphore;
-import java.util.regex.PatternSyntaxException;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,51 +46,101 @@ public class ChanServ {
 
 	private static final String VERSION = "0.1+";
 	static final String CONFIG_FILENAME = "conf/settings.xml";
+	/** Commands users may send us, see processUserCommand() */
+	private static final String[] USER_COMMANDS = {
+		"HELP", "INFO", "REGISTER", "CHANGEFOUNDER", "UNREGISTER", "ADDSTATIC",
+		"REMOVESTATIC", "OP", "DEOP", "SPAMPROTECTION", "SPAMSETTINGS", "TOPIC",
+		"CHANMSG", "LOCK", "UNLOCK", "KICK", "MUTE", "UNMUTE", "MUTELIST",
+		"SEARCHLOG", "MYCHANNELS", "SHUTDOWN", "METRICS"
+	};
+	/** Maximum number of lines shown by !SEARCHLOG */
+	private static final int SEARCH_LOG_LINES = 20;
+	/**
+	 * How long to wait for queued lines to be sent before exiting, in
+	 * milliseconds.
+	 */
+	private static final long EXIT_FLUSH_TIMEOUT = 10 * 1000;
 
 	/** are we connected to the lobby server? */
 	private boolean connected = false;
-	private Socket socket = null;
-	private PrintWriter sockout = null;
-	private BufferedReader sockin = null;
-	private Timer keepAliveTimer;
-	private boolean timersStarted = false;
+	private LobbyConnection connection = null;
+	/** Pings the server and saves the configuration; only set while connected */
+	private Scheduler.Handle keepAlive = null;
 
 	/**
-	 * We use it when there is a danger of config object being used
-	 * by main and TaskTimer threads simultaneously
+	 * Processes channel lines in parallel, if configured;
+	 * only set while connected
 	 */
-	private Semaphore configLock = new Semaphore(1, true);
-
-	/** Needs to be thread-save */
-	final List<Client> clients;
+	private volatile EventPipeline pipeline = null;
+	/** Revision of the configuration that was last saved to disk */
+	private volatile long savedConfigRevision = -1;
 
-	/** list of mute entries for a specified channel (see lastMuteListChannel) */
-	private final List<String> lastMuteList;
+	/** IDs of all the users seen since start-up */
+	private final UserIds userIds;
 	/**
-	 * name of channel for which we are currently receiving
-	 * (or we already did receive) mute list from the server
+	 * All clients currently logged in to the lobby server, indexed by
+	 * user ID.
+	 * Needs to be thread-save, as the pipeline workers and the remote access
+	 * threads read it too, without locking.
 	 */
-	private String lastMuteListChannel;
-	/** list of current requests for mute lists. */
-	private final List<MuteListRequest> forwardMuteList;
+	private final ConcurrentIntObjectMap<Client> clients;
+
+	/** Maps the commands received from the lobby server to their handlers */
+	private final ServerCommandDispatcher dispatcher;
+	/** Reused for every line read from the lobby server */
+	private final LineTokenizer lineTokenizer;
+
+	private final MetricsRegistry metrics;
+	private final Counter outboundLines;
+	private final Counter forwardedLines;
+	/** Time spent per user command; keys are upper-case command names */
+	private final Map<String, Histogram> userCommandTimings;
+	private final Histogram unknownUserCommandTiming;
+	private final Histogram configSaveTiming;
+	private final Counter configSaveFailures;
 
 	private Context context;
 
 	ChanServ() {
 
-		clients = Collections.synchronizedList(new LinkedList<Client>());
+		userIds = new UserIds();
+		clients = new ConcurrentIntObjectMap<Client>();
 //		channels = Collections.synchronizedList(new LinkedList<Channel>());
-		lastMuteList = Collections.synchronizedList(new LinkedList<String>());
-		forwardMuteList = Collections.synchronizedList(new LinkedList<MuteListRequest>());
+		metrics = new MetricsRegistry();
+		outboundLines = metrics.counter("outbound.lines");
+		forwardedLines = metrics.counter("inbound.forwarded");
+		userCommandTimings = new HashMap<String, Histogram>();
+		for (String userCommand : USER_COMMANDS) {
+			userCommandTimings.put(userCommand, metrics.histogram("user." + userCommand));
+		}
+		unknownUserCommandTiming = metrics.histogram("user.unknown");
+		configSaveTiming = metrics.histogram("config.save");
+		configSaveFailures = metrics.counter("config.save.failed");
+		metrics.gauge("users.interned", new Gauge() {
+			@Override
+			public long getValue() {
+				return userIds.size();
+			}
+		});
+		dispatcher = new ServerCommandDispatcher(metrics);
+		lineTokenizer = new LineTokenizer();
+		registerServerCommandHandlers();
 	}
 
 	public void init() {
 
 		context = new Context();
 		context.setChanServ(this);
+		context.setMetrics(metrics);
+		context.setUserIds(userIds);
 		context.setConfiguration(new Configuration());
-		context.setConfigStorage(new JAXBConfigStorage(context));
+		context.setConfigStorage(new JournalConfigStorage(context));
 		context.setAntiSpamSystem(new DefaultAntiSpamSystem(context));
+		context.setMuteListCache(new MuteListCache(context));
+		context.setChannelRoleIndex(new ChannelRoleIndex());
+		context.getChannelRoleIndex().attach(context.getConfiguration());
+		context.setScheduler(new Scheduler(metrics));
+		context.getScheduler().start();
 	}
 
 	public void closeAndExit() {
@@ -103,50 +150,83 @@ public class ChanServ {
 	public void closeAndExit(int returncode) {
 
 		context.getAntiSpamSystem().uninitialize();
-		if (timersStarted) {
-			try {
-				stopTimers();
-			} catch (Exception e) {
-				// ignore
-			}
+		stopTimers();
+		flushAndClose();
+		if (context.getChatLogWriter() != null) {
+			context.getChatLogWriter().stop();
 		}
+		context.getScheduler().stop();
 		logger.info("Program stopped.");
 		System.exit(returncode);
 	}
 
-	public void forceDisconnect() {
-		try {
-			socket.close();
-		} catch (IOException e) {
-			//
+	/**
+	 * Sends the lines still queued for the server, within a time limit,
+	 * and closes the connection.
+	 */
+	private void flushAndClose() {
+
+		if ((connection != null) && connection.isOpen()) {
+			if (!connection.flush(EXIT_FLUSH_TIMEOUT)) {
+				logger.warn("Not all lines could be sent to the server before closing the connection");
+			}
+			connection.close();
 		}
 	}
 
+	public void forceDisconnect() {
+		connection.close();
+	}
+
 	public boolean isConnected() {
 		return connected;
 	}
 
-	/** multiple threads may call this method */
-	public synchronized void sendLine(String s) {
+	/**
+	 * Other components may register handlers for lobby server commands here.
+	 */
+	public ServerCommandDispatcher getServerCommandDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Multiple threads may call this method.
+	 * The line is only queued for sending; it does not wait for the line
+	 * to be actually sent.
+	 */
+	public void sendLine(String s) {
 
 		logger.debug("Client: \"{}\"", s);
-		sockout.println(s);
+		outboundLines.increment();
+		connection.sendLine(s);
+	}
+
+	/** Creates the connection used to talk to the lobby server */
+	protected LobbyConnection createConnection() {
+		return new NioLobbyConnection(new OutboundQueue(
+				context.getConfiguration().getOutboundSettings(), metrics));
+	}
+
+	/**
+	 * Uses the given connection instead of connecting to the lobby server.
+	 * Only meant for benchmarks and test harnesses.
+	 */
+	void setConnection(LobbyConnection connection) {
+		this.connection = connection;
+	}
+
+	/** The components ChanServ works with; set up by {@link #init()} */
+	Context getContext() {
+		return context;
 	}
 
 	private boolean tryToConnect() {
 
 		Configuration config = context.getConfiguration();
 
-		try {
-			logger.info("Connecting to " + config.getServerAddress() + ":" + config.getServerPort() + " ...");
-			socket = new Socket(config.getServerAddress(), config.getServerPort());
-			sockout = new PrintWriter(socket.getOutputStream(), true);
-			sockin = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		} catch (UnknownHostException ex) {
-			logger.error("Unknown host error: " + config.getServerAddress(), ex);
-			return false;
-		} catch (IOException ex) {
-			logger.error("Could not get I/O for the connection to: " + config.getServerAddress(), ex);
+		logger.info("Connecting to " + config.getServerAddress() + ":" + config.getServerPort() + " ...");
+		connection = createConnection();
+		if (!connection.connect(config.getServerAddress(), config.getServerPort())) {
 			return false;
 		}
 
@@ -156,37 +236,44 @@ public class ChanServ {
 
 	public void messageLoop() {
 
-		String line = null;
-		while (true) {
-			try {
-				line = sockin.readLine();
-			} catch (IOException e) {
-				logger.error("Connection with server closed with exception.");
-				break;
-			}
-			if (line == null) {
-				break;
-			}
-			logger.debug("Server: \"{}\"", line);
-
-			// parse command and respond to it:
-			try {
-				configLock.acquire();
-				execRemoteCommand(line);
-			} catch (InterruptedException e) {
-				//return;
-			} finally {
-				configLock.release();
-			}
-
+		int workers = context.getConfiguration().getPipelineWorkers();
+		if (workers > 0) {
+			pipeline = new EventPipeline(workers, dispatcher, metrics);
+			pipeline.start();
 		}
 
 		try {
-			sockout.close();
-			sockin.close();
-			socket.close();
-		} catch (IOException e) {
-			// do nothing
+			connection.readLines(new LobbyConnection.LineHandler() {
+				@Override
+				public void lineReceived(String line) {
+
+					logger.debug("Server: \"{}\"", line);
+
+					LineTokenizer commands = lineTokenizer.reset(line);
+					if (pipeline != null) {
+						if (pipeline.submit(commands)) {
+							return;
+						}
+						// a barrier; process it after everything before it
+						pipeline.awaitIdle();
+					}
+
+					// parse command and respond to it:
+					execRemoteCommand(commands);
+				}
+			});
+		} finally {
+			if (pipeline != null) {
+				pipeline.stop();
+				pipeline = null;
+			}
+			connection.close();
+			// the server sends us the full client list again after reconnecting
+			for (int id : clients.keys()) {
+				if (clients.remove(id) != null) {
+					userIds.release(id);
+				}
+			}
 		}
 		logger.info("Connection with server closed.");
 	}
@@ -196,245 +283,343 @@ public class ChanServ {
 	public void processAdminBroadcast(String message) {
 		logger.debug("admin broadcast: '" + message + "'");
 
-		// let's check if some channel founder/operator has just renamed his account:
-		if (message.matches("User <[^>]{1,}> has just renamed his account to <[^>]{1,}>")) {
+		// let's check if some channel founder/operator has just renamed his account
+		// (most broadcasts are about something else, so check cheaply first):
+		if (message.startsWith("User <") && message.matches("User <[^>]{1,}> has just renamed his account to <[^>]{1,}>")) {
 			String oldNick = message.substring(message.indexOf('<')+1, message.indexOf('>'));
 			String newNick = message.substring(message.indexOf('<', message.indexOf('>'))+1, message.indexOf('>', message.indexOf('>')+1));
 
 			// lets rename all founder/operator entries for this user:
-			for (int i = 0; i < context.getConfiguration().getChannels().size(); i++) {
-				Channel chan = context.getConfiguration().getChannels().get(i);
-				if (chan.getFounder().equals(oldNick)) {
+			ChannelRoleIndex roles = context.getChannelRoleIndex();
+			for (String chanName : roles.getFoundedChannels(oldNick)) {
+				Channel chan = getChannel(chanName);
+				if ((chan != null) && oldNick.equals(chan.getFounder())) {
 					chan.renameFounder(newNick);
 					logger.info("Founder <" + oldNick + "> of #" + chan.getName() + " renamed to <" + newNick + ">");
 				}
-				if (chan.isOperator(oldNick)) {
-					chan.renameOperator(oldNick, newNick);
+			}
+			for (String chanName : roles.getOperatedChannels(oldNick)) {
+				Channel chan = getChannel(chanName);
+				if ((chan != null) && chan.renameOperator(oldNick, newNick)) {
 					logger.info("Operator <" + oldNick + "> of #" + chan.getName() + " renamed to <" + newNick + ">");
 				}
 			}
 		}
 	}
 
+	/**
+	 * Processes a single line received from the lobby server.
+	 * May only be called from the thread reading from the server,
+	 * as the same tokenizer is reused for every line.
+	 */
 	public boolean execRemoteCommand(String command) {
+		return execRemoteCommand(lineTokenizer.reset(command));
+	}
+
+	/** Processes a single, already tokenized line received from the lobby server */
+	public boolean execRemoteCommand(LineTokenizer commands) {
 
-		String cleanCommand = command.trim();
-		if (cleanCommand.equals("")) {
+		if (commands.isEmpty()) {
 			return false;
 		}
 
 		// try to extract message ID if present:
-		if (cleanCommand.charAt(0) == '#') {
+		if (commands.charAt(0, 0) == '#') {
+			if ((commands.size() < 2) || (commands.length(0) < 2) || !Character.isDigit(commands.charAt(0, 1))) {
+				// malformed command
+				return false;
+			}
+			int messageId;
 			try {
-				if (!cleanCommand.matches("^#\\d+\\s[\\s\\S]*")) {
-					// malformed command
-					return false;
-				}
-				int threadId = Integer.parseInt(cleanCommand.substring(1).split("\\s")[0]);
-				// remove ID field from the rest of command:
-				cleanCommand = cleanCommand.replaceFirst("#\\d+\\s", "");
-				// forward the command to the waiting thread:
-				return context.getRemoteAccessServer().forwardCommand(threadId, cleanCommand);
+				messageId = commands.parseInt(0, 1);
 			} catch (NumberFormatException ex) {
-				logger.trace("Malformed command: " + command, ex);
-				return false;
-			} catch (PatternSyntaxException ex) {
-				logger.trace("Malformed command: " + command, ex);
+				logger.trace("Malformed command: " + commands, ex);
 				return false;
 			}
+			// forward the command (without the ID field) to the waiting query:
+			forwardedLines.increment();
+			return context.getRemoteAccessServer().forwardCommand(messageId, commands.rest(1));
 		}
 
-		String[] commands = cleanCommand.split(" ");
-		commands[0] = commands[0].toUpperCase();
+		return dispatcher.dispatch(commands);
+	}
 
-		if (commands[0].equals("TASSERVER")) {
-			sendLine("LOGIN " + context.getConfiguration().getUsername() + " " + context.getConfiguration().getPassword() + " 0 * ChanServ " + VERSION);
-		} else if (commands[0].equals("ACCEPTED")) {
-			logger.info("Login accepted.");
-			// join registered and static channels:
-			for (Channel channel : context.getConfiguration().getChannels()) {
-				sendLine("JOIN " + channel.getName());
-			}
-		} else if (commands[0].equals("DENIED")) {
-			logger.info("Login denied. Reason: " + Misc.makeSentence(commands, 1));
-			closeAndExit();
-		} else if (commands[0].equals("AGREEMENT")) {
-			// not done yet. Should respond with CONFIRMAGREEMENT and then resend LOGIN command.
-			logger.info("Server is requesting agreement confirmation. Cancelling ...");
-			closeAndExit();
-		} else if (commands[0].equals("ADDUSER")) {
-			clients.add(new Client(commands[1]));
-		} else if (commands[0].equals("REMOVEUSER")) {
-			for (Client client : clients) {
-				if (client.getName().equals(commands[1])) {
-					clients.remove(client);
-					break;
+	/**
+	 * Registers the handlers for all the lobby server commands ChanServ itself
+	 * is interested in.
+	 */
+	private void registerServerCommandHandlers() {
+
+		dispatcher.register("TASSERVER", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				sendLine("LOGIN " + context.getConfiguration().getUsername() + " " + context.getConfiguration().getPassword() + " 0 * ChanServ " + VERSION);
+				return true;
+			}
+		});
+		dispatcher.register("ACCEPTED", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				logger.info("Login accepted.");
+				// join registered and static channels:
+				for (Channel channel : context.getConfiguration().getChannels()) {
+					sendLine("JOIN " + channel.getName());
 				}
-			}
-		} else if (commands[0].equals("CLIENTSTATUS")) {
-			for (Client client : clients) {
-				if (client.getName().equals(commands[1])) {
-					client.setStatus(Integer.parseInt(commands[2]));
+				return true;
+			}
+		});
+		dispatcher.register("DENIED", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				logger.info("Login denied. Reason: " + commands.rest(1));
+				closeAndExit();
+				return true;
+			}
+		});
+		dispatcher.register("AGREEMENT", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				// not done yet. Should respond with CONFIRMAGREEMENT and then resend LOGIN command.
+				logger.info("Server is requesting agreement confirmation. Cancelling ...");
+				closeAndExit();
+				return true;
+			}
+		});
+		dispatcher.register("ADDUSER", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				int id = userIds.acquire(commands.get(1));
+				Client client = new Client(id, userIds.getName(id));
+				if (clients.put(id, client) != null) {
+					// replaced a client the server did not remove before
+					userIds.release(id);
+				}
+				return true;
+			}
+		});
+		dispatcher.register("REMOVEUSER", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				int id = userIds.get(commands.get(1));
+				if (clients.remove(id) != null) {
+					userIds.release(id);
+				}
+				return true;
+			}
+		});
+		dispatcher.register("CLIENTSTATUS", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				Client client = getClient(commands.get(1));
+				if (client != null) {
+					client.setStatus(commands.parseInt(2));
 					context.getAntiSpamSystem().processClientStatusChange(client);
-					break;
 				}
-			}
-		} else if (commands[0].equals("JOIN")) {
-			logger.info("Joined #" + commands[1]);
-			Channel chan = getChannel(commands[1]);
-			if (chan == null) {
-				// this could happen just after we unregistered the channel,
-				// since there is always some lag between us and the server
-				return false;
-			}
-			chan.setJoined(true);
-			chan.clearClients();
-			// set topic, lock channel, ... :
-			if (!chan.isStatic()) {
-				if (!chan.getKey().equals("")) {
-					sendLine("SETCHANNELKEY " + chan.getName() + " " + chan.getKey());
+				return true;
+			}
+		});
+		dispatcher.register("JOIN", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				logger.info("Joined #" + commands.get(1));
+				Channel chan = getChannel(commands.get(1));
+				if (chan == null) {
+					// this could happen just after we unregistered the channel,
+					// since there is always some lag between us and the server
+					return false;
 				}
-				if (chan.getTopic().equals("")) {
-					sendLine("CHANNELTOPIC " + chan.getName() + " *");
-				} else {
-					sendLine("CHANNELTOPIC " + chan.getName() + " " + chan.getTopic());
+				chan.setJoined(true);
+				chan.clearClients(userIds);
+				// set topic, lock channel, ... :
+				if (!chan.isStatic()) {
+					if (!chan.getKey().equals("")) {
+						sendLine("SETCHANNELKEY " + chan.getName() + " " + chan.getKey());
+					}
+					if (chan.getTopic().equals("")) {
+						sendLine("CHANNELTOPIC " + chan.getName() + " *");
+					} else {
+						sendLine("CHANNELTOPIC " + chan.getName() + " " + chan.getTopic());
+					}
 				}
-			}
-		} else if (commands[0].equals("CLIENTS")) {
-			Channel chan = getChannel(commands[1]);
-			if (chan == null) {
-				// this could happen just after we unregistered the channel,
-				// since there is always some lag between us and the server
-				return false;
-			}
-			for (int i = 2; i < commands.length; i++) {
-				chan.addClient(commands[i]);
-			}
-		} else if (commands[0].equals("JOINED")) {
-			Channel chan = getChannel(commands[1]);
-			if (chan == null) {
-				// this could happen just after we unregistered the channel,
-				// since there is always some lag between us and the server
-				return false;
-			}
-			chan.addClient(commands[2]);
-			Misc.logToFile(chan.getLogFileName(), "* " + commands[2] + " has joined " + "#" + chan.getName());
-		} else if (commands[0].equals("LEFT")) {
-			Channel chan = getChannel(commands[1]);
-			if (chan == null) {
-				// this could happen just after we unregistered the channel,
-				// since there is always some lag between us and the server
-				return false;
-			}
-			chan.removeClient(commands[2]);
-			String out = "* " + commands[2] + " has left " + "#" + chan.getName();
-			if (commands.length > 3) {
-				out = out + " (" + Misc.makeSentence(commands, 3) + ")";
-			}
-			Misc.logToFile(chan.getLogFileName(), out);
-		} else if (commands[0].equals("JOINFAILED")) {
-			context.getConfiguration().getChannels().add(new Channel(context, commands[1]));
-			logger.info("Failed to join #" + commands[1] + ". Reason: " + Misc.makeSentence(commands, 2));
-		} else if (commands[0].equals("CHANNELTOPIC")) {
-			Channel chan = getChannel(commands[1]);
-			if (chan == null) {
-				// this could happen just after we unregistered the channel,
-				// since there is always some lag between us and the server
-				return false;
-			}
-			chan.setTopic(Misc.makeSentence(commands, 4));
-			Misc.logToFile(chan.getLogFileName(), "* Channel topic is '" + chan.getTopic() + "' set by " + commands[2]);
-		} else if (commands[0].equals("SAID")) {
-			Channel chan = getChannel(commands[1]);
-			if (chan == null) {
-				// this could happen just after we unregistered the channel,
-				// since there is always some lag between us and the server
-				return false;
-			}
-			String user = commands[2];
-			String msg = Misc.makeSentence(commands, 3);
-			if (chan.isAntiSpam()) {
-				context.getAntiSpamSystem().processUserMsg(chan.getName(), user, msg);
-			}
-			Misc.logToFile(chan.getLogFileName(), "<" + user + "> " + msg);
-			if ((msg.length() > 0) && (msg.charAt(0) == '!')) {
-				processUserCommand(msg.substring(1, msg.length()), getClient(user), chan);
-			}
-		} else if (commands[0].equals("SAIDEX")) {
-			Channel chan = getChannel(commands[1]);
-			if (chan == null) {
-				// this could happen just after we unregistered the channel,
-				// since there is always some lag between us and the server
-				return false;
-			}
-			String user = commands[2];
-			String msg = Misc.makeSentence(commands, 3);
-			if (chan.isAntiSpam()) {
-				context.getAntiSpamSystem().processUserMsg(chan.getName(), user, msg);
-			}
-			Misc.logToFile(chan.getLogFileName(), "* " + user + " " + msg);
-		} else if (commands[0].equals("SAIDPRIVATE")) {
-
-			String user = commands[1];
-			String msg = Misc.makeSentence(commands, 2);
-
-			Misc.logToFile(user + ".log", "<" + user + "> " + msg);
-			if ((msg.length() > 0) && (msg.charAt(0)) == '!') {
-				processUserCommand(msg.substring(1, msg.length()), getClient(user), null);
-			}
-		} else if (commands[0].equals("SERVERMSG")) {
-			logger.info("Message from server: " + Misc.makeSentence(commands, 1));
-			if (Misc.makeSentence(commands, 1).startsWith("[broadcast to all admins]")) {
-				processAdminBroadcast(Misc.makeSentence(commands, 1).substring("[broadcast to all admins]: ".length(), Misc.makeSentence(commands, 1).length()));
-			}
-		} else if (commands[0].equals("SERVERMSGBOX")) {
-			logger.info("MsgBox from server: " + Misc.makeSentence(commands, 1));
-		} else if (commands[0].equals("CHANNELMESSAGE")) {
-			Channel chan = getChannel(commands[1]);
-			if (chan != null) {
-				String out = "* Channel message: " + Misc.makeSentence(commands, 2);
-				Misc.logToFile(chan.getLogFileName(), out);
-			}
-		} else if (commands[0].equals("BROADCAST")) {
-			logger.info("*** Broadcast from server: " + Misc.makeSentence(commands, 1));
-		} else if (commands[0].equals("MUTELISTBEGIN")) {
-			lastMuteList.clear();
-			lastMuteListChannel = commands[1];
-		} else if (commands[0].equals("MUTELIST")) {
-			lastMuteList.add(Misc.makeSentence(commands, 1));
-		} else if (commands[0].equals("MUTELISTEND")) {
-			int i = 0;
-			while (i < forwardMuteList.size()) {
-				MuteListRequest request = forwardMuteList.get(i);
-				if (!request.getChannelName().equals(lastMuteListChannel)) {
-					i++;
-					continue;
+				return true;
+			}
+		});
+		dispatcher.register("CLIENTS", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				Channel chan = getChannel(commands.get(1));
+				if (chan == null) {
+					// this could happen just after we unregistered the channel,
+					// since there is always some lag between us and the server
+					return false;
 				}
-				Client target = getClient(request.getSendTo());
-				if (target == null) { // user who made the request has already gone offline!
-					forwardMuteList.remove(i);
-					continue;
+				chan.addClients(commands, 2, userIds);
+				return true;
+			}
+		});
+		dispatcher.register("JOINED", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				Channel chan = getChannel(commands.get(1));
+				if (chan == null) {
+					// this could happen just after we unregistered the channel,
+					// since there is always some lag between us and the server
+					return false;
 				}
-				if (System.currentTimeMillis() - request.getRequestTime() > 10000) { // this request has already expired
-					forwardMuteList.remove(i);
-					continue;
+				chan.addClient(commands.get(2), userIds);
+				context.getChatLogWriter().log(chan.getLogFileName(), commands.get(2), "* " + commands.get(2) + " has joined " + "#" + chan.getName());
+				return true;
+			}
+		});
+		dispatcher.register("LEFT", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				Channel chan = getChannel(commands.get(1));
+				if (chan == null) {
+					// this could happen just after we unregistered the channel,
+					// since there is always some lag between us and the server
+					return false;
 				}
-				// forward the mute list to the one who requested it:
-				if (lastMuteList.isEmpty()) {
-					sendMessage(target, getChannel(request.getReplyToChan()), "Mute list for #" + request.getChannelName() + " is empty!");
+				chan.removeClient(commands.get(2), userIds);
+				String out = "* " + commands.get(2) + " has left " + "#" + chan.getName();
+				if (commands.size() > 3) {
+					out = out + " (" + commands.rest(3) + ")";
 				}
-				else {
-					sendMessage(target, getChannel(request.getReplyToChan()), "Mute list for #" + request.getChannelName()+ " (" + lastMuteList.size() + " entries):");
-					for (String lastMute : lastMuteList) {
-						sendMessage(target, getChannel(request.getReplyToChan()), lastMute);
-					}
+				context.getChatLogWriter().log(chan.getLogFileName(), commands.get(2), out);
+				return true;
+			}
+		});
+		dispatcher.register("JOINFAILED", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				context.getConfiguration().addChannel(new Channel(context, commands.get(1)));
+				logger.info("Failed to join #" + commands.get(1) + ". Reason: " + commands.rest(2));
+				return true;
+			}
+		});
+		dispatcher.register("CHANNELTOPIC", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				Channel chan = getChannel(commands.get(1));
+				if (chan == null) {
+					// this could happen just after we unregistered the channel,
+					// since there is always some lag between us and the server
+					return false;
 				}
-				forwardMuteList.remove(i);
-			}
-		}
-
-
-		return true;
+				chan.setTopic(commands.rest(4));
+				context.getChatLogWriter().log(chan.getLogFileName(), "* Channel topic is '" + chan.getTopic() + "' set by " + commands.get(2));
+				return true;
+			}
+		});
+		dispatcher.register("SAID", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				Channel chan = getChannel(commands.get(1));
+				if (chan == null) {
+					// this could happen just after we unregistered the channel,
+					// since there is always some lag between us and the server
+					return false;
+				}
+				String user = commands.get(2);
+				String msg = commands.rest(3);
+				if (chan.isAntiSpam()) {
+					context.getAntiSpamSystem().processUserMsg(chan.getName(), user, msg);
+				}
+				context.getChatLogWriter().log(chan.getLogFileName(), user, "<" + user + "> " + msg);
+				if ((msg.length() > 0) && (msg.charAt(0) == '!')) {
+					processUserCommand(msg.substring(1, msg.length()), getClient(user), chan);
+				}
+				return true;
+			}
+		});
+		dispatcher.register("SAIDEX", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				Channel chan = getChannel(commands.get(1));
+				if (chan == null) {
+					// this could happen just after we unregistered the channel,
+					// since there is always some lag between us and the server
+					return false;
+				}
+				String user = commands.get(2);
+				String msg = commands.rest(3);
+				if (chan.isAntiSpam()) {
+					context.getAntiSpamSystem().processUserMsg(chan.getName(), user, msg);
+				}
+				context.getChatLogWriter().log(chan.getLogFileName(), user, "* " + user + " " + msg);
+				return true;
+			}
+		});
+		dispatcher.register("SAIDPRIVATE", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				String user = commands.get(1);
+				String msg = commands.rest(2);
+
+				context.getChatLogWriter().log(user + ".log", "<" + user + "> " + msg);
+				if ((msg.length() > 0) && (msg.charAt(0)) == '!') {
+					processUserCommand(msg.substring(1, msg.length()), getClient(user), null);
+				}
+				return true;
+			}
+		});
+		dispatcher.register("SERVERMSG", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				String message = commands.rest(1);
+				logger.info("Message from server: " + message);
+				if (message.startsWith("[broadcast to all admins]")) {
+					processAdminBroadcast(message.substring("[broadcast to all admins]: ".length()));
+				}
+				return true;
+			}
+		});
+		dispatcher.register("SERVERMSGBOX", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				logger.info("MsgBox from server: " + commands.rest(1));
+				return true;
+			}
+		});
+		dispatcher.register("CHANNELMESSAGE", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				Channel chan = getChannel(commands.get(1));
+				if (chan != null) {
+					String out = "* Channel message: " + commands.rest(2);
+					context.getChatLogWriter().log(chan.getLogFileName(), out);
+				}
+				return true;
+			}
+		});
+		dispatcher.register("BROADCAST", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				logger.info("*** Broadcast from server: " + commands.rest(1));
+				return true;
+			}
+		});
+		dispatcher.register("MUTELISTBEGIN", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				context.getMuteListCache().beginReceiving(commands.get(1));
+				return true;
+			}
+		});
+		dispatcher.register("MUTELIST", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				context.getMuteListCache().entryReceived(commands.rest(1));
+				return true;
+			}
+		});
+		dispatcher.register("MUTELISTEND", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+				context.getMuteListCache().endReceiving();
+				return true;
+			}
+		});
 	}
 
 	/**
@@ -443,8 +628,10 @@ public class ChanServ {
 	 */
 	public void processUserCommand(String command, Client client, Channel channel) {
 
+		long start = System.nanoTime();
 		String commandTrimmed = command.trim();
 		if (commandTrimmed.isEmpty()) {
+			unknownUserCommandTiming.recordSince(start);
 			return;
 		}
 		String[] splitParams = commandTrimmed.split("[\\s]+");
@@ -454,6 +641,20 @@ public class ChanServ {
 		String commandName = params.get(0).toUpperCase();
 		params.remove(0);
 
+		try {
+			executeUserCommand(commandName, params, client, channel);
+		} finally {
+			Histogram timing = userCommandTimings.get(commandName);
+			((timing == null) ? unknownUserCommandTiming : timing).recordSince(start);
+		}
+	}
+
+	/**
+	 * @param commandName upper-case
+	 * @param params the arguments of the command
+	 */
+	private void executeUserCommand(String commandName, List<String> params, Client client, Channel channel) {
+
 		if (commandName.equals("HELP")) {
 			// force the message to be sent to private chat rather than
 			// to the channel (to avoid unneccessary bloating the channel):
@@ -531,20 +732,19 @@ public class ChanServ {
 				return;
 			}
 
-			for (Channel chan : context.getConfiguration().getChannels()) {
-				if (chan.getName().equals(chanName)) {
-					if (chan.isStatic()) {
-						sendMessage(client, channel, "Error: channel #" + chanName + " is a static channel (cannot register it)!");
-					} else {
-						sendMessage(client, channel, "Error: channel #" + chanName + " is already registered!");
-					}
-					return;
+			Channel existing = getChannel(chanName);
+			if (existing != null) {
+				if (existing.isStatic()) {
+					sendMessage(client, channel, "Error: channel #" + chanName + " is a static channel (cannot register it)!");
+				} else {
+					sendMessage(client, channel, "Error: channel #" + chanName + " is already registered!");
 				}
+				return;
 			}
 
 			// ok register the channel now:
 			Channel chan = new Channel(context, chanName);
-			context.getConfiguration().getChannels().add(chan);
+			context.getConfiguration().addChannel(chan);
 			chan.setFounder(params.get(1));
 			chan.setStatic(false);
 			chan.setAntiSpam(false);
@@ -614,7 +814,8 @@ public class ChanServ {
 			}
 
 			// ok unregister the channel now:
-			context.getConfiguration().getChannels().remove(chan);
+			context.getConfiguration().removeChannel(chan);
+			chan.clearClients(userIds);
 			sendLine("CHANNELMESSAGE " + chan.getName() + " " + "This channel has just been unregistered from <" + context.getConfiguration().getUsername() + "> by <" + client.getName() + ">");
 			sendMessage(client, channel, "Channel #" + chanName + " successfully unregistered!");
 			sendLine("LEAVE " + chan.getName());
@@ -636,20 +837,19 @@ public class ChanServ {
 
 			String chanName = params.get(0).substring(1);
 
-			for (Channel chan : context.getConfiguration().getChannels()) {
-				if (chan.getName().equals(chanName)) {
-					if (chan.isStatic()) {
-						sendMessage(client, channel, "Error: channel #" + chanName + " is already static!");
-					} else {
-						sendMessage(client, channel, "Error: channel #" + chanName + " is already registered! (unregister it first and then add it to static list)");
-					}
-					return;
+			Channel existing = getChannel(chanName);
+			if (existing != null) {
+				if (existing.isStatic()) {
+					sendMessage(client, channel, "Error: channel #" + chanName + " is already static!");
+				} else {
+					sendMessage(client, channel, "Error: channel #" + chanName + " is already registered! (unregister it first and then add it to static list)");
 				}
+				return;
 			}
 
 			// ok add the channel to static list:
 			Channel chan = new Channel(context, chanName);
-			context.getConfiguration().getChannels().add(chan);
+			context.getConfiguration().addChannel(chan);
 			chan.setStatic(true);
 			chan.setAntiSpam(false);
 			chan.setAntiSpamSettings(SpamSettings.DEFAULT_SETTINGS);
@@ -679,7 +879,8 @@ public class ChanServ {
 			}
 
 			// ok remove the channel from static channel list now:
-			context.getConfiguration().getChannels().remove(chan);
+			context.getConfiguration().removeChannel(chan);
+			chan.clearClients(userIds);
 			sendMessage(client, channel, "Channel #" + chanName + " successfully removed from static channel list!");
 			sendLine("LEAVE " + chan.getName());
 		} else if (commandName.equals("OP")) {
@@ -721,7 +922,7 @@ public class ChanServ {
 				return;
 			}
 
-			if (chan.getOperatorList().size() > 100) {
+			if (chan.operatorCount() > 100) {
 				sendMessage(client, channel, "Error: Too many operators (100) registered. This is part of a bot-side protection against flooding, if you think you really need more operators assigned, please contact bot maintainer.");
 				return;
 			}
@@ -1029,7 +1230,7 @@ public class ChanServ {
 			}
 
 			String target = params.get(1);
-			if (!chan.isClient(target)) {
+			if (!chan.isClient(userIds.get(target))) {
 				sendMessage(client, channel, "Error: <" + target + "> not found in #" + chanName + "!");
 				return;
 			}
@@ -1099,6 +1300,7 @@ public class ChanServ {
 
 			// ok mute the user:
 			sendLine("MUTE " + chan.getName() + " " + target + " " + duration);
+			context.getMuteListCache().muted(chan.getName(), target);
 		} else if (commandName.equals("UNMUTE")) {
 			// if the command was issued from a channel:
 			if (channel != null) { // insert <channame> parameter so we don't have to handle two different situations for each command
@@ -1131,13 +1333,14 @@ public class ChanServ {
 
 			// ok try to unmute the user:
 			sendLine("UNMUTE " + chan.getName() + " " + target);
+			context.getMuteListCache().unmuted(chan.getName(), target);
 		} else if (commandName.equals("MUTELIST")) {
 			// if the command was issued from a channel:
 			if (channel != null) { // insert <channame> parameter so we don't have to handle two different situations for each command
 				params.add(0, "#" + channel.getName());
 			}
 
-			if (params.size() != 1) {
+			if ((params.size() < 1) || (params.size() > 2)) {
 				sendMessage(client, channel, "Error: Invalid params!");
 				return;
 			}
@@ -1159,8 +1362,103 @@ public class ChanServ {
 				return;
 			}
 
-			forwardMuteList.add(new MuteListRequest(chanName, client.getName(), System.currentTimeMillis(), (channel != null) ? channel.getName() : ""));
-			sendLine("MUTELIST " + chan.getName());
+			int page = 1;
+			if (params.size() == 2) {
+				try {
+					page = Integer.parseInt(params.get(1));
+				} catch (NumberFormatException ex) {
+					sendMessage(client, channel, "Error: <page> argument should be an integer!");
+					return;
+				}
+			}
+
+			context.getMuteListCache().request(new MuteListRequest(chan.getName(), client.getName(), System.currentTimeMillis(), (channel != null) ? channel.getName() : "", page));
+		} else if (commandName.equals("SEARCHLOG")) {
+			// if the command was issued from a channel:
+			if (channel != null) { // insert <channame> parameter so we don't have to handle two different situations for each command
+				params.add(0, "#" + channel.getName());
+			}
+
+			if ((params.size() < 2) || (params.size() > 3)) {
+				sendMessage(client, channel, "Error: Invalid params!");
+				return;
+			}
+
+			if (params.get(0).charAt(0) != '#') {
+				sendMessage(client, channel, "Error: Bad channel name (forgot #?)");
+				return;
+			}
+
+			String chanName = params.get(0).substring(1);
+			Channel chan = getChannel(chanName);
+			if ((chan == null) || (chan.isStatic())) {
+				sendMessage(client, channel, "Channel #" + chanName + " is not registered!");
+				return;
+			}
+
+			if (!(client.isModerator() || client.getName().equals(chan.getFounder()) || chan.isOperator(client.getName()))) {
+				sendMessage(client, channel, "Insufficient access to execute " + commandName + " command!");
+				return;
+			}
+
+			ChatLogIndex index = context.getChatLogWriter().getIndex();
+			if (!index.isEnabled()) {
+				sendMessage(client, channel, "Searching the chat logs is disabled!");
+				return;
+			}
+
+			long since = 0;
+			if (params.size() == 3) {
+				since = ChatLogIndex.parseSince(params.get(2), Misc.getUnixTimestamp());
+				if (since < 0) {
+					sendMessage(client, channel, "Error: <since> argument should be a unix timestamp, or like 30m, 12h or 7d!");
+					return;
+				}
+			}
+
+			// the log may contain anything, so never post it to the channel
+			ChatLogIndex.Result result = index.search(chan.getName(), params.get(1), since, SEARCH_LOG_LINES);
+			sendMessage(client, null, result.getTotal() + " lines in #" + chan.getName() + " match \"" + params.get(1) + "\""
+					+ ((result.getTotal() > result.getLines().size()) ? (", the last " + result.getLines().size() + " are:") : ":"));
+			SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			for (int l = 0; l < result.getLines().size(); l++) {
+				sendMessage(client, null, timeFormat.format(new Date(result.getTime(l) * 1000)) + " " + result.getLines().get(l));
+			}
+		} else if (commandName.equals("MYCHANNELS")) {
+			if (params.size() != 0) {
+				sendMessage(client, channel, "Error: Invalid params!");
+				return;
+			}
+
+			ChannelRoleIndex roles = context.getChannelRoleIndex();
+			List<String> founded = roles.getFoundedChannels(client.getName());
+			List<String> operated = roles.getOperatedChannels(client.getName());
+			// force the message to be sent to private chat, as it only concerns the caller
+			if (founded.isEmpty() && operated.isEmpty()) {
+				sendMessage(client, null, "You are neither founder nor operator of any registered channel.");
+				return;
+			}
+			if (!founded.isEmpty()) {
+				sendMessage(client, null, "You are founder of " + channelList(founded));
+			}
+			if (!operated.isEmpty()) {
+				sendMessage(client, null, "You are operator of " + channelList(operated));
+			}
+		} else if (commandName.equals("METRICS")) {
+			if (!client.isModerator()) {
+				sendMessage(client, channel, "Insufficient access to execute " + commandName + " command!");
+				return;
+			}
+
+			String prefix = (params.size() > 0) ? params.get(0) : "";
+			List<String> report = metrics.report(prefix);
+			// force the message to be sent to private chat, as it may be long
+			if (report.isEmpty()) {
+				sendMessage(client, null, "No metrics recorded" + (prefix.equals("") ? "" : (" starting with " + prefix)) + ".");
+			}
+			for (String line : report) {
+				sendMessage(client, null, line);
+			}
 		} else if (commandName.equals("SHUTDOWN")) {
 			if (!client.isModerator()) {
 				sendMessage(client, channel, "Insufficient access to execute " + commandName + " command!");
@@ -1182,15 +1480,29 @@ public class ChanServ {
 
 			// stop the program:
 			stopTimers();
-			context.getConfigStorage().saveConfig(CONFIG_FILENAME);
+			saveConfig(context.getConfiguration());
+			// the notices are only queued so far
+			flushAndClose();
 			closeAndExit();
 		}
 	}
 
+	/** Saves the configuration with the configured storage, and times it */
+	private boolean saveConfig(Configuration configuration) {
+
+		long start = System.nanoTime();
+		boolean saved = context.getConfigStorage().saveConfig(configuration, CONFIG_FILENAME);
+		configSaveTiming.recordSince(start);
+		if (!saved) {
+			configSaveFailures.increment();
+		}
+		return saved;
+	}
+
 	public void sendPrivateMsg(Client client, String msg) {
 
 		sendLine("SAYPRIVATE " + client.getName() + " " + msg);
-		Misc.logToFile(client.getName() + ".log", "<" + context.getConfiguration().getUsername() + "> " + msg);
+		context.getChatLogWriter().log(client.getName() + ".log", "<" + context.getConfiguration().getUsername() + "> " + msg);
 	}
 
 	/**
@@ -1218,66 +1530,92 @@ public class ChanServ {
 		}
 	}
 
-	public Client getClient(String username) {
+	/** Formats channel names like "#a, #b, #c" */
+	private static String channelList(List<String> channelNames) {
 
-		for (Client client : clients) {
-			if (client.getName().equals(username)) {
-				return client;
+		StringBuilder list = new StringBuilder();
+		for (String channelName : channelNames) {
+			if (list.length() > 0) {
+				list.append(", ");
 			}
+			list.append('#').append(channelName);
 		}
+		return list.toString();
+	}
 
-		return null;
+	/** Returns <code>null</code> if the client is not online */
+	public Client getClient(String username) {
+
+		Client client = getClient(userIds.get(username));
+		// the ID may have been given to someone else in the meantime
+		return ((client != null) && client.getName().equals(username)) ? client : null;
+	}
+
+	/**
+	 * Returns <code>null</code> if the client is not online.
+	 * @param id see {@link UserIds}
+	 */
+	public Client getClient(int id) {
+		return clients.get(id);
 	}
 
 	/** Returns <code>null</code> if the channel is not found */
 	public Channel getChannel(String name) {
-
-		for (Channel channel : context.getConfiguration().getChannels()) {
-			if (channel.getName().equals(name)) {
-				return channel;
-			}
-		}
-
-		return null;
+		return context.getConfiguration().getChannel(name);
 	}
 
 	/**
 	 * @author Betalord
 	 */
-	private class KeepAliveTask extends TimerTask {
+	private class KeepAliveTask implements Runnable {
+		@Override
 		public void run() {
-			try {
-				configLock.acquire();
 
-				sendLine("PING");
-				// also save config on regular intervals:
-				context.getConfigStorage().saveConfig(ChanServ.CONFIG_FILENAME);
-			} catch (InterruptedException e) {
-				forceDisconnect();
-				return;
-			} finally {
-				configLock.release();
+			sendLine("PING");
+
+			// also save config on regular intervals, if it changed;
+			// the storage copies it only if it has to write all of it,
+			// which never blocks the thread reading from the server
+			Configuration config = context.getConfiguration();
+			long revision = config.getRevision();
+			if ((revision != savedConfigRevision) && saveConfig(config)) {
+				savedConfigRevision = revision;
 			}
 		}
 	}
 
 	public void startTimers() {
 
-		keepAliveTimer = new Timer();
-		keepAliveTimer.schedule(new KeepAliveTask(),
+		keepAlive = context.getScheduler().scheduleAtFixedRate("KeepAlive", new KeepAliveTask(),
 				1000,     // initial delay
 				15*1000); // subsequent rate
-
-		timersStarted = true;
 	}
 
 	public void stopTimers() {
 
-		try {
-			keepAliveTimer.cancel();
-		} catch (Exception ex) {
-			logger.error("Failed stopping timers", ex);
+		if (keepAlive != null) {
+			keepAlive.cancel();
+			keepAlive = null;
+		}
+	}
+
+	/**
+	 * Connects to the lobby server, and processes everything it sends,
+	 * until the connection is closed.
+	 * @return <code>false</code> if the connection could not be established
+	 */
+	boolean runSession() {
+
+		if (!tryToConnect()) {
+			return false;
 		}
+		startTimers();
+		connected = true;
+		messageLoop();
+		connected = false;
+		stopTimers();
+
+		return true;
 	}
 
 	public void start() {
@@ -1291,23 +1629,24 @@ public class ChanServ {
 		context.getAntiSpamSystem().initialize();
 
 		context.getConfigStorage().loadConfig(CONFIG_FILENAME);
-		context.getConfigStorage().saveConfig(CONFIG_FILENAME); //*** TODO FIXME debug
-		
+		context.getChannelRoleIndex().attach(context.getConfiguration());
+		saveConfig(context.getConfiguration()); //*** TODO FIXME debug
+		savedConfigRevision = context.getConfiguration().getRevision();
+
 		Configuration config = context.getConfiguration();
 
+		ChatLogWriter chatLogWriter = new ChatLogWriter(config.getChatLogSettings(), metrics);
+		context.setChatLogWriter(chatLogWriter);
+		chatLogWriter.start();
+
 		// run remote access server:
 		RemoteAccessServer remoteAccessServer = new RemoteAccessServer(context, config.getRemoteAccessPort());
+		remoteAccessServer.getRemoteAccounts().addAll(config.getRemoteAccessAccounts());
 		context.setRemoteAccessServer(remoteAccessServer);
 		remoteAccessServer.start();
 
-		if (!tryToConnect()) {
+		if (!runSession()) {
 			closeAndExit(1);
-		} else {
-			startTimers();
-			connected = true;
-			messageLoop();
-			connected = false;
-			stopTimers();
 		}
 
 		// we are out of the main loop (due to an error, for example),
@@ -1321,14 +1660,7 @@ public class ChanServ {
 			}
 
 			logger.info("Trying to reconnect to the server ...");
-			if (!tryToConnect()) {
-				continue;
-			}
-			startTimers();
-			connected = true;
-			messageLoop();
-			connected = false;
-			stopTimers();
+			runSession();
 		}
 
 		// AntiSpamSystem.uninitialize(); -> this code is unreachable. We call it in closeAndExit() method!
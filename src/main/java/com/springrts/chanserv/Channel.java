@@ -7,8 +7,11 @@ package com.springrts.chanserv;
 
 import com.springrts.chanserv.antispam.SpamSettings;
 import java.io.Serializable;
-import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlTransient;
@@ -20,6 +23,12 @@ import org.slf4j.LoggerFactory;
  * Static channels are those for which we don't want ChanServ to moderate them,
  * only idle there so it logs all chats (for example, #main).
  *
+ * Channels may be read from any thread without locking.
+ * Changes to persistent properties are made while synchronized on the
+ * channel, so a change and its notification to the configuration are
+ * atomic, and copies (see {@link Configuration#snapshot()}) are consistent.
+ * The operators and the clients are kept in concurrent sets.
+ *
  * @author Betalord
  */
 public class Channel implements Serializable {
@@ -29,35 +38,47 @@ public class Channel implements Serializable {
 	@XmlElement
 	private final String name;
 	/** "" means topic is disabled */
-	private String topic;
+	private volatile String topic;
 	private final String logFileName;
 	/** are we in this channel right now? */
-	private boolean joined;
+	private volatile boolean joined;
 	/**
 	 * Whether this channel is a static one and not registered.
 	 * We can not register this channel at all.
 	 */
-	private boolean isStatic;
+	private volatile boolean isStatic;
 	/** if "" then no key is set (channel is unlocked) */
-	private String key;
+	private volatile String key;
 	/**
 	 * The user-name of the founder of this channel.
 	 * The founder is the "owner" of the channel, he can assign operators etc.
 	 */
-	private String founder;
+	private volatile String founder;
+	/** Rarely changed, but read by every access check */
 	@XmlElementWrapper()
 	@XmlElement(name = "name")
-	private final List<String> operators;
-	private final List<String> clients;
+	private final Set<String> operators;
+	/**
+	 * Names of the users currently in this channel, by their IDs
+	 * (see {@link UserIds}).
+	 * Read by the remote access threads too, without locking.
+	 */
+	private final ConcurrentIntObjectMap<String> clients;
 	/**
 	 * Whether users will be automatically muted if spamming is detected
 	 * from them
 	 */
-	private boolean antiSpam;
+	private volatile boolean antiSpam;
 	/** anti-spam settings for this channel, used with AntiSpamSystem */
-	private SpamSettings antiSpamSettings;
+	private volatile SpamSettings antiSpamSettings;
 
 	private final Context context;
+	/**
+	 * The configuration this channel is part of, which gets notified about
+	 * changes to persistent properties.
+	 * <code>null</code> for channels not (yet) added to a configuration.
+	 */
+	private transient Configuration configuration;
 
 	/** Required fro JAXB serialization/marshaling */
 	private Channel() {
@@ -74,41 +95,105 @@ public class Channel implements Serializable {
 		this.isStatic = true;
 		this.key = "";
 		this.founder = null;
-		this.operators = new ArrayList<String>();
-		this.clients = new ArrayList<String>();
+		this.operators = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.clients = new ConcurrentIntObjectMap<String>();
 		this.antiSpam = false;
 		this.antiSpamSettings = null;
+		this.configuration = null;
+	}
+
+	/**
+	 * Creates a copy of the persistent properties of a channel.
+	 * The copy does not belong to any configuration.
+	 */
+	Channel(Channel original) {
+
+		this.context = original.context;
+		this.name = original.name;
+		this.logFileName = original.logFileName;
+		this.clients = new ConcurrentIntObjectMap<String>();
+		this.configuration = null;
+		synchronized (original) {
+			this.topic = original.topic;
+			this.joined = original.joined;
+			this.isStatic = original.isStatic;
+			this.key = original.key;
+			this.founder = original.founder;
+			this.operators = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			this.operators.addAll(original.operators);
+			this.antiSpam = original.antiSpam;
+			this.antiSpamSettings = original.antiSpamSettings;
+		}
+	}
+
+	void setConfiguration(Configuration configuration) {
+		this.configuration = configuration;
+	}
+
+	/** Has to be called whenever a persistent property changed */
+	private void changed(ChannelChange change, String value) {
+
+		if (configuration != null) {
+			configuration.channelChanged(this, change, value);
+		}
+	}
+
+	private static boolean equal(Object obj1, Object obj2) {
+		return (obj1 == null) ? (obj2 == null) : obj1.equals(obj2);
 	}
 
 	public boolean isOperator(String name) {
 		return operators.contains(name);
 	}
 
-	public boolean addOperator(String name) {
-		return operators.add(name);
+	public synchronized boolean addOperator(String name) {
+
+		boolean added = operators.add(name);
+		if (added) {
+			changed(ChannelChange.OPERATOR_ADDED, name);
+		}
+		return added;
 	}
 
-	public boolean removeOperator(String name) {
-		return operators.remove(name);
+	public synchronized boolean removeOperator(String name) {
+
+		boolean removed = operators.remove(name);
+		if (removed) {
+			changed(ChannelChange.OPERATOR_REMOVED, name);
+		}
+		return removed;
 	}
 
 	public void renameFounder(String newFounder) {
 		setFounder(newFounder);
 	}
 
-	public boolean renameOperator(String oldOp, String newOp) {
+	public synchronized boolean renameOperator(String oldOp, String newOp) {
 
-		int index = operators.indexOf(oldOp);
-		if (index == -1) {
+		if (!operators.remove(oldOp)) {
 			// operator does not exist!
 			return false;
 		}
-		operators.set(index, newOp);
+		operators.add(newOp);
+		changed(ChannelChange.OPERATOR_REMOVED, oldOp);
+		changed(ChannelChange.OPERATOR_ADDED, newOp);
 		return true;
 	}
 
+	/**
+	 * Returns a read-only snapshot of the operators of this channel, sorted
+	 * by name, which does not change when operators are added or removed
+	 * later on.
+	 */
 	public List<String> getOperatorList() {
-		return operators;
+
+		List<String> snapshot = new ArrayList<String>(operators);
+		Collections.sort(snapshot);
+		return Collections.unmodifiableList(snapshot);
+	}
+
+	public int operatorCount() {
+		return operators.size();
 	}
 
 	public void sendMessage(String msg) {
@@ -119,34 +204,67 @@ public class Channel implements Serializable {
 		return clients.size();
 	}
 
-	public void clearClients() {
-		clients.clear();
+	/**
+	 * Removes all the clients.
+	 * @param userIds to release the IDs of the clients
+	 */
+	public void clearClients(UserIds userIds) {
+
+		for (int client : clients.keys()) {
+			if (clients.remove(client) != null) {
+				userIds.release(client);
+			}
+		}
+	}
+
+	/** Returns a snapshot of the IDs of the users in this channel */
+	public int[] getClientIds() {
+		return clients.keys();
 	}
 
-	public String getClient(int index) {
+	/**
+	 * @param userIds to acquire the ID of the client
+	 */
+	public void addClient(String client, UserIds userIds) {
 
-		try {
-			return clients.get(index);
-		} catch (IndexOutOfBoundsException ex) {
-			return null;
+		int id = userIds.acquire(client);
+		if (clients.putIfAbsent(id, userIds.getName(id)) != null) {
+			userIds.release(id);
 		}
 	}
 
-	public void addClient(String client) {
-		clients.add(client);
+	/**
+	 * Adds all the clients from a CLIENTS command in one go.
+	 * @param names the tokenized command
+	 * @param startIndex index of the first client name in <code>names</code>
+	 * @param userIds to acquire the IDs of the names
+	 */
+	public void addClients(LineTokenizer names, int startIndex, UserIds userIds) {
+
+		for (int i = startIndex; i < names.size(); i++) {
+			addClient(names.get(i), userIds);
+		}
 	}
 
-	public void removeClient(String client) {
+	/**
+	 * @param userIds to release the ID of the client
+	 */
+	public void removeClient(String client, UserIds userIds) {
 
-		if (!clients.remove(client)) {
+		int id = userIds.get(client);
+		if (clients.remove(id) != null) {
+			userIds.release(id);
+		} else {
 			// should not happen!
 			logger.warn("Tried to remove a client that does not exist");
-			return;
 		}
 	}
 
-	public boolean isClient(String client) {
-		return clients.contains(client);
+	/**
+	 * @param client see {@link UserIds}
+	 */
+	public boolean isClient(int client) {
+		return clients.containsKey(client);
 	}
 
 	/** Returns 'null' if channel name is valid, an error description otherwise */
@@ -180,8 +298,12 @@ public class Channel implements Serializable {
 	 * "" means topic is disabled
 	 * @param topic the topic to set
 	 */
-	public void setTopic(String topic) {
-		this.topic = topic;
+	public synchronized void setTopic(String topic) {
+
+		if (!equal(this.topic, topic)) {
+			this.topic = topic;
+			changed(ChannelChange.TOPIC, topic);
+		}
 	}
 
 	public String getLogFileName() {
@@ -219,8 +341,12 @@ public class Channel implements Serializable {
 	 * We can not register this channel at all.
 	 * @param isStatic the isStatic to set
 	 */
-	public void setStatic(boolean isStatic) {
-		this.isStatic = isStatic;
+	public synchronized void setStatic(boolean isStatic) {
+
+		if (this.isStatic != isStatic) {
+			this.isStatic = isStatic;
+			changed(ChannelChange.STATIC, Misc.boolToStr(isStatic));
+		}
 	}
 
 	/**
@@ -235,8 +361,12 @@ public class Channel implements Serializable {
 	 * if "" then no key is set (channel is unlocked)
 	 * @param key the key to set
 	 */
-	public void setKey(String key) {
-		this.key = key;
+	public synchronized void setKey(String key) {
+
+		if (!equal(this.key, key)) {
+			this.key = key;
+			changed(ChannelChange.KEY, key);
+		}
 	}
 
 	/**
@@ -253,8 +383,12 @@ public class Channel implements Serializable {
 	 * The founder is the "owner" of the channel, he can assign operators etc.
 	 * @param founder the founder to set
 	 */
-	public void setFounder(String founder) {
-		this.founder = founder;
+	public synchronized void setFounder(String founder) {
+
+		if (!equal(this.founder, founder)) {
+			this.founder = founder;
+			changed(ChannelChange.FOUNDER, founder);
+		}
 	}
 
 	/**
@@ -271,8 +405,12 @@ public class Channel implements Serializable {
 	 * from them
 	 * @param antiSpam the antiSpam to set
 	 */
-	public void setAntiSpam(boolean antiSpam) {
-		this.antiSpam = antiSpam;
+	public synchronized void setAntiSpam(boolean antiSpam) {
+
+		if (this.antiSpam != antiSpam) {
+			this.antiSpam = antiSpam;
+			changed(ChannelChange.ANTISPAM, Misc.boolToStr(antiSpam));
+		}
 	}
 
 	/**
@@ -287,7 +425,11 @@ public class Channel implements Serializable {
 	 * anti-spam settings for this channel, used with AntiSpamSystem
 	 * @param antiSpamSettings the antiSpamSettings to set
 	 */
-	public void setAntiSpamSettings(SpamSettings antiSpamSettings) {
-		this.antiSpamSettings = antiSpamSettings;
+	public synchronized void setAntiSpamSettings(SpamSettings antiSpamSettings) {
+
+		if (!equal(this.antiSpamSettings, antiSpamSettings)) {
+			this.antiSpamSettings = antiSpamSettings;
+			changed(ChannelChange.ANTISPAM_SETTINGS, (antiSpamSettings == null) ? null : antiSpamSettings.toProtocolString());
+		}
 	}
 }
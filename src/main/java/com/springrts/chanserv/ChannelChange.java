@@ -0,0 +1,31 @@
+
+package com.springrts.chanserv;
+
+/**
+ * The kinds of changes to the persistent state of a channel.
+ * @see ConfigurationListener
+ * @author hoijui
+ */
+public enum ChannelChange {
+
+	/** The channel was added to the configuration; no value */
+	ADDED,
+	/** The channel was removed from the configuration; no value */
+	REMOVED,
+	/** value: the new topic */
+	TOPIC,
+	/** value: the new key */
+	KEY,
+	/** value: the new founder */
+	FOUNDER,
+	/** value: "1" if the channel is static now, "0" otherwise */
+	STATIC,
+	/** value: name of the new operator */
+	OPERATOR_ADDED,
+	/** value: name of the removed operator */
+	OPERATOR_REMOVED,
+	/** value: "1" if anti-spam protection is enabled now, "0" otherwise */
+	ANTISPAM,
+	/** value: the new settings in protocol format, see {@link com.springrts.chanserv.antispam.SpamSettings#toProtocolString()} */
+	ANTISPAM_SETTINGS
+}
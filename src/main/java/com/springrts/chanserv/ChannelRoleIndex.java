@@ -0,0 +1,187 @@
+
+package com.springrts.chanserv;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Indexes the channels of a {@link Configuration} by their founder and
+ * operators, so the channels of a user can be found without looking at
+ * every channel.
+ *
+ * The index follows the configuration as a {@link ConfigurationListener},
+ * so it is up to date after REGISTER, CHANGEFOUNDER, OP, DEOP, UNREGISTER,
+ * account renames and journal replays alike; when a new configuration is
+ * loaded, it has to be {@link #attach(Configuration) attached}, which
+ * rebuilds the index.
+ * Users are keyed by name, as most of them are not online, so they have
+ * no ID (see {@link UserIds}).
+ * @author hoijui
+ */
+public class ChannelRoleIndex implements ConfigurationListener {
+
+	/** The channels of a single user */
+	private static class Roles {
+
+		/** Names of the channels founded, sorted */
+		private final Set<String> founded = new TreeSet<String>();
+		/** Names of the channels operated, sorted */
+		private final Set<String> operated = new TreeSet<String>();
+
+		boolean isEmpty() {
+			return founded.isEmpty() && operated.isEmpty();
+		}
+	}
+
+	/** keys are user names */
+	private final Map<String, Roles> roles;
+	/**
+	 * Founder of each channel, as the founder change notification carries
+	 * only the new one
+	 */
+	private final Map<String, String> founders;
+	private Configuration configuration;
+
+	public ChannelRoleIndex() {
+
+		this.roles = new HashMap<String, Roles>();
+		this.founders = new HashMap<String, String>();
+		this.configuration = null;
+	}
+
+	/**
+	 * Follows the changes of a configuration from now on,
+	 * instead of the previous one, and indexes all its channels.
+	 */
+	public synchronized void attach(Configuration configuration) {
+
+		if (this.configuration != null) {
+			this.configuration.removeListener(this);
+		}
+		this.configuration = configuration;
+		// changes made from now on wait for us, and apply cleanly on top
+		configuration.addListener(this);
+
+		roles.clear();
+		founders.clear();
+		for (Channel channel : configuration.getChannels()) {
+			add(channel);
+		}
+	}
+
+	@Override
+	public synchronized void channelChanged(Channel channel, ChannelChange change, String value) {
+
+		String channelName = channel.getName();
+		switch (change) {
+			case ADDED:
+				add(channel);
+				break;
+			case REMOVED:
+				setFounder(channelName, null);
+				for (String operator : channel.getOperatorList()) {
+					removeOperator(channelName, operator);
+				}
+				break;
+			case FOUNDER:
+				setFounder(channelName, value);
+				break;
+			case OPERATOR_ADDED:
+				rolesOf(value).operated.add(channelName);
+				break;
+			case OPERATOR_REMOVED:
+				if (!channel.isOperator(value)) {
+					removeOperator(channelName, value);
+				}
+				break;
+			default:
+				// does not concern us
+		}
+	}
+
+	private void add(Channel channel) {
+
+		setFounder(channel.getName(), channel.getFounder());
+		for (String operator : channel.getOperatorList()) {
+			rolesOf(operator).operated.add(channel.getName());
+		}
+	}
+
+	private Roles rolesOf(String userName) {
+
+		Roles userRoles = roles.get(userName);
+		if (userRoles == null) {
+			userRoles = new Roles();
+			roles.put(userName, userRoles);
+		}
+		return userRoles;
+	}
+
+	/** Drops the roles of a user, if they have none left */
+	private void forgetIfEmpty(String userName, Roles userRoles) {
+
+		if (userRoles.isEmpty()) {
+			roles.remove(userName);
+		}
+	}
+
+	/**
+	 * @param founder <code>null</code> if the channel has none (anymore)
+	 */
+	private void setFounder(String channelName, String founder) {
+
+		String previous = founders.remove(channelName);
+		if (previous != null) {
+			Roles userRoles = roles.get(previous);
+			if (userRoles != null) {
+				userRoles.founded.remove(channelName);
+				forgetIfEmpty(previous, userRoles);
+			}
+		}
+		if (founder != null) {
+			founders.put(channelName, founder);
+			rolesOf(founder).founded.add(channelName);
+		}
+	}
+
+	private void removeOperator(String channelName, String operator) {
+
+		Roles userRoles = roles.get(operator);
+		if (userRoles != null) {
+			userRoles.operated.remove(channelName);
+			forgetIfEmpty(operator, userRoles);
+		}
+	}
+
+	/**
+	 * Returns the names of the channels a user is founder of, sorted.
+	 * The list is a snapshot, which does not change later on.
+	 */
+	public synchronized List<String> getFoundedChannels(String userName) {
+
+		Roles userRoles = roles.get(userName);
+		if (userRoles == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<String>(userRoles.founded);
+	}
+
+	/**
+	 * Returns the names of the channels a user is operator of, sorted.
+	 * The list is a snapshot, which does not change later on.
+	 */
+	public synchronized List<String> getOperatedChannels(String userName) {
+
+		Roles userRoles = roles.get(userName);
+		if (userRoles == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<String>(userRoles.operated);
+	}
+}
@@ -0,0 +1,650 @@
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import com.springrts.chanserv.metrics.Histogram;
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inverted index over the recent lines of the channel chat logs,
+ * by user name and message term, so moderators can search them without
+ * reading the log files.
+ *
+ * Lines are indexed as they are written, see {@link ChatLogWriter}, and on
+ * start-up, the lines still within the time window are loaded from the
+ * log files in the background.
+ * Each channel is split into buckets of an hour; each bucket holds the
+ * text of its lines and, for every user name and term, the positions of
+ * the lines containing it.
+ * A search only looks at the posting lists of the buckets in question,
+ * so it takes about the same time, no matter how large the logs are.
+ * Buckets older than {@link ChatLogSettings#getSearchDays()} are dropped,
+ * as are the oldest buckets of a channel with more than
+ * {@link ChatLogSettings#getMaxIndexedLines()} lines, and the oldest
+ * buckets of all channels while there are more than
+ * {@link ChatLogSettings#getMaxTotalIndexedLines()} lines, as the lines are
+ * kept in memory.
+ * @author hoijui
+ */
+public class ChatLogIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChatLogIndex.class);
+
+	/** Length of a time bucket, in seconds */
+	private static final long BUCKET_SECONDS = 3600;
+	/** Prefix of the keys for user names */
+	private static final String USER_KEY = "u:";
+	/** Prefix of the keys for message terms */
+	private static final String TERM_KEY = "t:";
+
+	/** A growable list of line positions */
+	private static class Postings {
+
+		private int[] positions = new int[4];
+		private int size = 0;
+
+		void add(int position) {
+
+			if ((size > 0) && (positions[size - 1] == position)) {
+				// the term appears more than once in the line
+				return;
+			}
+			if (size == positions.length) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(positions, 0, grown, 0, size);
+				positions = grown;
+			}
+			positions[size++] = position;
+		}
+
+		boolean contains(int position) {
+			return Arrays.binarySearch(positions, 0, size, position) >= 0;
+		}
+	}
+
+	/** The lines of a channel within an hour */
+	private static class Bucket {
+
+		/** The lines without their timestamps */
+		private final List<String> lines = new ArrayList<String>();
+		/** Unix timestamps of the lines */
+		private long[] times = new long[16];
+		private final Map<String, Postings> postings = new HashMap<String, Postings>();
+		/**
+		 * Whether the lines were added in chronological order;
+		 * not the case if lines loaded on start-up overlap with new ones
+		 */
+		private boolean chronological = true;
+
+		int add(long time, String text) {
+
+			int position = lines.size();
+			if ((position > 0) && (time < times[position - 1])) {
+				chronological = false;
+			}
+			lines.add(text);
+			if (position == times.length) {
+				long[] grown = new long[position * 2];
+				System.arraycopy(times, 0, grown, 0, position);
+				times = grown;
+			}
+			times[position] = time;
+			return position;
+		}
+
+		void post(String key, int position) {
+
+			Postings keyPostings = postings.get(key);
+			if (keyPostings == null) {
+				keyPostings = new Postings();
+				postings.put(key, keyPostings);
+			}
+			keyPostings.add(position);
+		}
+
+		/**
+		 * Returns the positions of the lines containing the user key,
+		 * or all the term keys, in chronological order.
+		 */
+		int[] match(String userKey, List<String> termKeys) {
+
+			Postings byUser = postings.get(userKey);
+			Postings[] byTerms = new Postings[termKeys.size()];
+			Postings rarest = null;
+			for (int t = 0; t < byTerms.length; t++) {
+				byTerms[t] = postings.get(termKeys.get(t));
+				if (byTerms[t] == null) {
+					byTerms = new Postings[0];
+					rarest = null;
+					break;
+				}
+				if ((rarest == null) || (byTerms[t].size < rarest.size)) {
+					rarest = byTerms[t];
+				}
+			}
+
+			int[] matches = new int[((byUser == null) ? 0 : byUser.size) + ((rarest == null) ? 0 : rarest.size)];
+			int count = 0;
+			int u = 0;
+			int r = 0;
+			while (((byUser != null) && (u < byUser.size)) || ((rarest != null) && (r < rarest.size))) {
+				int position;
+				boolean fromUser = (byUser != null) && (u < byUser.size)
+						&& ((rarest == null) || (r >= rarest.size) || (byUser.positions[u] <= rarest.positions[r]));
+				if (fromUser) {
+					position = byUser.positions[u++];
+					if ((rarest != null) && (r < rarest.size) && (rarest.positions[r] == position)) {
+						r++;
+					}
+				} else {
+					position = rarest.positions[r++];
+					boolean all = true;
+					for (Postings termPostings : byTerms) {
+						if ((termPostings != rarest) && !termPostings.contains(position)) {
+							all = false;
+							break;
+						}
+					}
+					if (!all) {
+						continue;
+					}
+				}
+				matches[count++] = position;
+			}
+
+			int[] result = new int[count];
+			System.arraycopy(matches, 0, result, 0, count);
+			if (!chronological) {
+				sortByTime(result);
+			}
+			return result;
+		}
+
+		/** Sorts positions by the time of their lines, keeping ties in order */
+		private void sortByTime(int[] positions) {
+
+			Integer[] boxed = new Integer[positions.length];
+			for (int p = 0; p < positions.length; p++) {
+				boxed[p] = positions[p];
+			}
+			// stable
+			Arrays.sort(boxed, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer position1, Integer position2) {
+
+					long time1 = times[position1];
+					long time2 = times[position2];
+					return (time1 < time2) ? -1 : ((time1 == time2) ? 0 : 1);
+				}
+			});
+			for (int p = 0; p < positions.length; p++) {
+				positions[p] = boxed[p];
+			}
+		}
+	}
+
+	/** All the buckets of a channel */
+	private static class ChannelIndex {
+
+		private final NavigableMap<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+		private int lines = 0;
+	}
+
+	/** The result of a search */
+	public static class Result {
+
+		private final int total;
+		private final List<String> lines;
+		private final long[] times;
+
+		Result(int total, List<String> lines, long[] times) {
+
+			this.total = total;
+			this.lines = lines;
+			this.times = times;
+		}
+
+		/** Number of all matching lines */
+		public int getTotal() {
+			return total;
+		}
+
+		/** The most recent matching lines, oldest first, without timestamps */
+		public List<String> getLines() {
+			return lines;
+		}
+
+		/** Returns the unix timestamp of one of the {@link #getLines()} */
+		public long getTime(int line) {
+			return times[line];
+		}
+	}
+
+	private final ChatLogSettings settings;
+	/** Indices by channel name */
+	private final ConcurrentMap<String, ChannelIndex> channels;
+	/** Number of lines in all channels */
+	private final AtomicInteger totalLines;
+	private final Counter indexedLines;
+	private final Histogram searchTiming;
+
+	public ChatLogIndex(ChatLogSettings settings, MetricsRegistry metrics) {
+
+		this.settings = settings;
+		this.channels = new ConcurrentHashMap<String, ChannelIndex>();
+		this.totalLines = new AtomicInteger(0);
+		this.indexedLines = metrics.counter("chatlog.indexed");
+		this.searchTiming = metrics.histogram("chatlog.search");
+	}
+
+	public boolean isEnabled() {
+		return settings.getSearchDays() > 0;
+	}
+
+	/**
+	 * Returns the name of the channel a log file belongs to,
+	 * or <code>null</code> if it is not a channel log.
+	 */
+	static String channelOfLog(String logName) {
+
+		if (!logName.startsWith("#") || !logName.endsWith(".log")) {
+			return null;
+		}
+		return logName.substring(1, logName.length() - ".log".length());
+	}
+
+	/** Returns the key for a user name */
+	private static String userKey(String userName) {
+		return USER_KEY + userName.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Splits a text into lower case terms of letters and digits.
+	 */
+	static List<String> terms(String text) {
+
+		List<String> terms = new ArrayList<String>();
+		int start = -1;
+		for (int c = 0; c <= text.length(); c++) {
+			boolean termChar = (c < text.length()) && Character.isLetterOrDigit(text.charAt(c));
+			if (termChar && (start == -1)) {
+				start = c;
+			} else if (!termChar && (start != -1)) {
+				terms.add(text.substring(start, c).toLowerCase(Locale.ENGLISH));
+				start = -1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Returns the user a line read back from a channel log is about,
+	 * or <code>null</code>.
+	 * Only "&lt;user&gt; message", "* user has joined #channel" and
+	 * "* user has left #channel" are attributed; other lines starting with
+	 * "* " may be actions of a user, but also notices like
+	 * "* Channel topic is ...", which can not be told apart by the text.
+	 * @param text the line without the timestamp
+	 */
+	static String userOfLine(String text, String channelName) {
+
+		if (text.startsWith("<")) {
+			int end = text.indexOf("> ");
+			return (end == -1) ? null : text.substring(1, end);
+		} else if (text.startsWith("* ")) {
+			int end = text.indexOf(' ', 2);
+			if (end == -1) {
+				return null;
+			}
+			String rest = text.substring(end);
+			if (rest.startsWith(" has joined #" + channelName)
+					|| rest.startsWith(" has left #" + channelName)) {
+				return text.substring(2, end);
+			}
+		}
+		return null;
+	}
+
+	/** Cuts the "&lt;user&gt; " or "* user " off the start of a text */
+	private static String withoutUser(String text, String user) {
+
+		if ((user != null) && (text.startsWith("<" + user + "> ") || text.startsWith("* " + user + " "))) {
+			return text.substring(user.length() + 3);
+		}
+		return text;
+	}
+
+	/**
+	 * Indexes a line of a channel log.
+	 * @param time unix timestamp of the line
+	 * @param user the user who wrote the line, or who it is about,
+	 *   or <code>null</code> if it is about none
+	 * @param line the line as written to the log, including the timestamp
+	 */
+	public void add(String channelName, long time, String user, String line) {
+
+		if (!isEnabled()) {
+			return;
+		}
+
+		String text = line.substring(line.indexOf(' ') + 1);
+		List<String> terms = terms(withoutUser(text, user));
+
+		ChannelIndex index = channels.get(channelName);
+		if (index == null) {
+			index = new ChannelIndex();
+			ChannelIndex existing = channels.putIfAbsent(channelName, index);
+			if (existing != null) {
+				index = existing;
+			}
+		}
+
+		long bucketStart = time / BUCKET_SECONDS;
+		synchronized (index) {
+			Bucket bucket = index.buckets.get(bucketStart);
+			if (bucket == null) {
+				bucket = new Bucket();
+				index.buckets.put(bucketStart, bucket);
+			}
+			int position = bucket.add(time, text);
+			if (user != null) {
+				bucket.post(userKey(user), position);
+			}
+			for (String term : terms) {
+				bucket.post(TERM_KEY + term, position);
+			}
+			index.lines++;
+			totalLines.incrementAndGet();
+			expire(index, time);
+		}
+		indexedLines.increment();
+		if (totalLines.get() > settings.getMaxTotalIndexedLines()) {
+			expireOldest();
+		}
+	}
+
+	/** Drops buckets which are too old, or too many */
+	private void expire(ChannelIndex index, long now) {
+
+		long oldestKept = (now - TimeUnit.DAYS.toSeconds(settings.getSearchDays())) / BUCKET_SECONDS;
+		int maxLines = Math.max(1, settings.getMaxIndexedLines());
+		while (!index.buckets.isEmpty()) {
+			Map.Entry<Long, Bucket> oldest = index.buckets.firstEntry();
+			if ((oldest.getKey() >= oldestKept) && ((index.lines <= maxLines) || (index.buckets.size() == 1))) {
+				break;
+			}
+			remove(index, oldest);
+		}
+	}
+
+	private void remove(ChannelIndex index, Map.Entry<Long, Bucket> bucket) {
+
+		int lines = bucket.getValue().lines.size();
+		index.lines -= lines;
+		totalLines.addAndGet(-lines);
+		index.buckets.remove(bucket.getKey());
+	}
+
+	/**
+	 * Drops the oldest buckets of all channels, until there are no more
+	 * lines than allowed in total.
+	 */
+	private void expireOldest() {
+
+		int maxLines = Math.max(1, settings.getMaxTotalIndexedLines());
+		while (totalLines.get() > maxLines) {
+			ChannelIndex oldestIndex = null;
+			long oldestBucket = Long.MAX_VALUE;
+			for (ChannelIndex index : channels.values()) {
+				synchronized (index) {
+					if (!index.buckets.isEmpty() && (index.buckets.firstKey() < oldestBucket)) {
+						oldestIndex = index;
+						oldestBucket = index.buckets.firstKey();
+					}
+				}
+			}
+			if (oldestIndex == null) {
+				return;
+			}
+			synchronized (oldestIndex) {
+				Map.Entry<Long, Bucket> oldest = oldestIndex.buckets.firstEntry();
+				if (oldest != null) {
+					remove(oldestIndex, oldest);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Searches the lines of a channel written by a user, or containing a
+	 * term.
+	 * @param query a user name, or a term; if it consists of multiple terms,
+	 *   lines have to contain all of them
+	 * @param since unix timestamp of the oldest line to consider
+	 * @param limit maximum number of lines to return
+	 */
+	public Result search(String channelName, String query, long since, int limit) {
+
+		long start = System.nanoTime();
+		ChannelIndex index = channels.get(channelName);
+		if (index == null) {
+			return new Result(0, Collections.<String>emptyList(), new long[0]);
+		}
+
+		String userKey = userKey(query);
+		List<String> termKeys = new ArrayList<String>();
+		for (String term : terms(query)) {
+			termKeys.add(TERM_KEY + term);
+		}
+
+		int total = 0;
+		List<String> lines = new ArrayList<String>(limit);
+		long[] times = new long[limit];
+		synchronized (index) {
+			// newest first
+			for (Bucket bucket : index.buckets.tailMap(since / BUCKET_SECONDS, true).descendingMap().values()) {
+				int[] matches = bucket.match(userKey, termKeys);
+				for (int m = matches.length - 1; m >= 0; m--) {
+					if (bucket.times[matches[m]] < since) {
+						continue;
+					}
+					total++;
+					if (lines.size() < limit) {
+						times[lines.size()] = bucket.times[matches[m]];
+						lines.add(bucket.lines.get(matches[m]));
+					}
+				}
+			}
+		}
+		Collections.reverse(lines);
+		long[] oldestFirst = new long[lines.size()];
+		for (int l = 0; l < oldestFirst.length; l++) {
+			oldestFirst[l] = times[oldestFirst.length - 1 - l];
+		}
+		searchTiming.recordSince(start);
+
+		return new Result(total, lines, oldestFirst);
+	}
+
+	/**
+	 * Indexes the lines of the channel logs in the folder that are still
+	 * within the time window.
+	 * Meant to be called once, on start-up, with the sizes the active log
+	 * files had before anything new was written to them.
+	 * @param activeSizes sizes of the active channel log files, by file name
+	 */
+	void load(File folder, Map<String, Long> activeSizes) {
+
+		long oldest = Misc.getUnixTimestamp() - TimeUnit.DAYS.toSeconds(settings.getSearchDays());
+		String oldestDay = ChatLogSegments.formatDay(TimeUnit.SECONDS.toMillis(oldest));
+
+		int loaded = 0;
+		for (ChatLogSegments.Segment segment : ChatLogSegments.listSegments(folder, null)) {
+			String channelName = channelOfLog(segment.getLogName());
+			// a segment may contain lines up to the day after it was started
+			if ((channelName == null) || ((segment.getDay().compareTo(oldestDay) < 0)
+					&& (segment.getFile().lastModified() < TimeUnit.SECONDS.toMillis(oldest)))) {
+				continue;
+			}
+			loaded += load(segment.getFile(), segment.isCompressed(), channelName, oldest, Long.MAX_VALUE);
+		}
+		for (Map.Entry<String, Long> active : activeSizes.entrySet()) {
+			String channelName = channelOfLog(active.getKey());
+			if (channelName != null) {
+				loaded += load(new File(folder, active.getKey()), false, channelName, oldest, active.getValue());
+			}
+		}
+		logger.info("Indexed {} chat log lines for searching", loaded);
+	}
+
+	/**
+	 * @param maxBytes how much of the file to read at most,
+	 *   before uncompressing
+	 */
+	private int load(File file, boolean compressed, String channelName, long oldest, long maxBytes) {
+
+		int loaded = 0;
+		try {
+			InputStream in = new LimitedInputStream(new FileInputStream(file), maxBytes);
+			if (compressed) {
+				in = new GZIPInputStream(in);
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, ChatLogWriter.CHARSET));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int timeEnd = line.indexOf(' ');
+					if (timeEnd == -1) {
+						continue;
+					}
+					long time;
+					try {
+						time = Long.parseLong(line.substring(0, timeEnd));
+					} catch (NumberFormatException ex) {
+						continue;
+					}
+					if (time >= oldest) {
+						add(channelName, time, userOfLine(line.substring(timeEnd + 1), channelName), line);
+						loaded++;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ex) {
+			logger.warn("Failed to index chat log " + file, ex);
+		}
+		return loaded;
+	}
+
+	/** Ends after a number of bytes, even if the underlying stream goes on */
+	private static class LimitedInputStream extends FilterInputStream {
+
+		private long left;
+
+		LimitedInputStream(InputStream in, long maxBytes) {
+
+			super(in);
+			this.left = maxBytes;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			if (left <= 0) {
+				return -1;
+			}
+			int b = super.read();
+			if (b != -1) {
+				left--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (left <= 0) {
+				return -1;
+			}
+			int read = super.read(b, off, (int) Math.min(len, left));
+			if (read > 0) {
+				left -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+
+			long skipped = super.skip(Math.min(n, left));
+			left -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), left);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Parses the start of a search period.
+	 * @param since either a unix timestamp, or a duration back from now,
+	 *   like "30m", "12h" or "7d"
+	 * @param now unix timestamp
+	 * @return unix timestamp, or <code>-1</code> if malformed
+	 */
+	public static long parseSince(String since, long now) {
+
+		if (since.length() == 0) {
+			return -1;
+		}
+		char unit = Character.toLowerCase(since.charAt(since.length() - 1));
+		long factor;
+		switch (unit) {
+			case 'm': factor = 60; break;
+			case 'h': factor = 3600; break;
+			case 'd': factor = 86400; break;
+			default:  factor = 0; break;
+		}
+		try {
+			if (factor == 0) {
+				return Long.parseLong(since);
+			}
+			return now - (Long.parseLong(since.substring(0, since.length() - 1)) * factor);
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+}
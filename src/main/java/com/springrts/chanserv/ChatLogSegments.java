@@ -0,0 +1,341 @@
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the closed segments of the chat log files.
+ *
+ * The segment currently written to always keeps the plain name of the log,
+ * for example <code>#main.log</code>, so existing tooling keeps working.
+ * When it is rolled, it is renamed to
+ * <code>&lt;name&gt;.&lt;yyyy-MM-dd&gt;.&lt;n&gt;.log</code>, where the date
+ * is the day the segment was started, and <code>n</code> counts the
+ * segments started that day.
+ * A background thread of low priority then compresses it to
+ * <code>&lt;segment&gt;.gz</code>, and deletes closed segments beyond the
+ * retention limits.
+ * The line format within the segments stays the same.
+ * @see ChatLogSettings
+ * @author hoijui
+ */
+public class ChatLogSegments implements Runnable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChatLogSegments.class);
+
+	private static final String LOG_SUFFIX = ".log";
+	private static final String COMPRESSED_SUFFIX = ".gz";
+	private static final String DAY_FORMAT = "yyyy-MM-dd";
+	/** &lt;name&gt;.&lt;yyyy-MM-dd&gt;.&lt;n&gt;.log[.gz] */
+	private static final Pattern SEGMENT_NAME = Pattern.compile("^(.*)\\.(\\d{4}-\\d{2}-\\d{2})\\.(\\d+)\\.log(\\.gz)?$");
+	/** How often retention limits are enforced, at least */
+	private static final long RETENTION_INTERVAL = TimeUnit.HOURS.toMillis(1);
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** A closed segment of a log file */
+	public static class Segment {
+
+		private final File file;
+		/** Name of the log file the segment belongs to */
+		private final String logName;
+		private final String day;
+		private final int number;
+
+		Segment(File file, String logName, String day, int number) {
+
+			this.file = file;
+			this.logName = logName;
+			this.day = day;
+			this.number = number;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public String getLogName() {
+			return logName;
+		}
+
+		/** The day the segment was started, formatted as yyyy-MM-dd */
+		public String getDay() {
+			return day;
+		}
+
+		public boolean isCompressed() {
+			return file.getName().endsWith(COMPRESSED_SUFFIX);
+		}
+	}
+
+	/** Sorts segments from oldest to newest */
+	private static final Comparator<Segment> AGE_ORDER = new Comparator<Segment>() {
+		@Override
+		public int compare(Segment s1, Segment s2) {
+
+			int byDay = s1.day.compareTo(s2.day);
+			return (byDay != 0) ? byDay : (s1.number - s2.number);
+		}
+	};
+
+	private final ChatLogSettings settings;
+	private final File folder;
+	/** Closed segments waiting to be compressed */
+	private final BlockingQueue<File> toCompress;
+	private final Counter rolled;
+	private final Counter compressed;
+	private final Counter deleted;
+
+	private volatile boolean running;
+	private Thread compactorThread;
+
+	public ChatLogSegments(ChatLogSettings settings, MetricsRegistry metrics) {
+
+		this.settings = settings;
+		this.folder = new File(settings.getFolder());
+		this.toCompress = new LinkedBlockingQueue<File>();
+		this.rolled = metrics.counter("chatlog.rolled");
+		this.compressed = metrics.counter("chatlog.compressed");
+		this.deleted = metrics.counter("chatlog.deleted");
+		this.running = false;
+		this.compactorThread = null;
+	}
+
+	/**
+	 * Starts the compactor thread.
+	 * Segments left uncompressed the last time we ran, are compressed too.
+	 */
+	public synchronized void start() {
+
+		if (running) {
+			return;
+		}
+		if (settings.isCompress()) {
+			for (Segment segment : listSegments(folder, null)) {
+				if (!segment.isCompressed()) {
+					toCompress.add(segment.getFile());
+				}
+			}
+		}
+		running = true;
+		compactorThread = new Thread(this, "ChatLogCompactor");
+		compactorThread.setDaemon(true);
+		compactorThread.setPriority(Thread.MIN_PRIORITY);
+		compactorThread.start();
+	}
+
+	/**
+	 * Stops the compactor thread, after the segment it is working on.
+	 * Segments still waiting are compressed the next time we start.
+	 */
+	public synchronized void stop() {
+
+		if (!running) {
+			return;
+		}
+		running = false;
+		compactorThread.interrupt();
+		try {
+			compactorThread.join(10000);
+		} catch (InterruptedException ex) {
+			logger.warn("Interrupted while waiting for the chat log compactor to finish", ex);
+		}
+		compactorThread = null;
+	}
+
+	/** Returns the day of the given time, as used in segment names */
+	public static String formatDay(long time) {
+		return new SimpleDateFormat(DAY_FORMAT).format(new Date(time));
+	}
+
+	/**
+	 * Closes the segment currently written to a log file.
+	 * The file has to be closed already.
+	 * @param logName the name of the log file, for example "#main.log"
+	 * @param day the day the segment was started, see {@link #formatDay(long)}
+	 */
+	public void roll(String logName, String day) {
+
+		File active = new File(folder, logName);
+		String baseName = logName.endsWith(LOG_SUFFIX)
+				? logName.substring(0, logName.length() - LOG_SUFFIX.length())
+				: logName;
+		// numbers are never reused, even after old segments were deleted,
+		// so they keep telling the order
+		int number = 1;
+		for (Segment existing : listSegments(folder, logName)) {
+			if (existing.day.equals(day)) {
+				number = Math.max(number, existing.number + 1);
+			}
+		}
+		File segment = new File(folder, baseName + "." + day + "." + number + LOG_SUFFIX);
+
+		if (!active.renameTo(segment)) {
+			logger.warn("Failed to roll log file {} to {}", active, segment);
+			return;
+		}
+		rolled.increment();
+		if (settings.isCompress()) {
+			toCompress.add(segment);
+		}
+	}
+
+	/**
+	 * Lists the closed segments in the log folder, oldest first.
+	 * @param logName only list segments of this log file, for example
+	 *   "#main.log"; <code>null</code> for all
+	 */
+	public static List<Segment> listSegments(File folder, String logName) {
+
+		List<Segment> segments = new ArrayList<Segment>();
+		String[] fileNames = folder.list();
+		if (fileNames == null) {
+			return segments;
+		}
+		for (String fileName : fileNames) {
+			Matcher matcher = SEGMENT_NAME.matcher(fileName);
+			if (!matcher.matches()) {
+				continue;
+			}
+			String segmentLogName = matcher.group(1) + LOG_SUFFIX;
+			if ((logName != null) && !logName.equals(segmentLogName)) {
+				continue;
+			}
+			int number;
+			try {
+				number = Integer.parseInt(matcher.group(3));
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			segments.add(new Segment(new File(folder, fileName), segmentLogName, matcher.group(2), number));
+		}
+		Collections.sort(segments, AGE_ORDER);
+		return segments;
+	}
+
+	@Override
+	public void run() {
+
+		long nextRetention = 0;
+		while (running) {
+			File segment = null;
+			try {
+				segment = toCompress.poll(RETENTION_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				// stop() was called
+				break;
+			}
+			if (segment != null) {
+				compress(segment);
+			}
+			if ((segment != null) || (System.currentTimeMillis() >= nextRetention)) {
+				enforceRetention(System.currentTimeMillis());
+				nextRetention = System.currentTimeMillis() + RETENTION_INTERVAL;
+			}
+		}
+	}
+
+	/** Replaces a segment with a gzip compressed copy */
+	private void compress(File segment) {
+
+		if (!segment.exists()) {
+			return;
+		}
+		File target = new File(segment.getPath() + COMPRESSED_SUFFIX);
+		File temp = new File(target.getPath() + ".tmp");
+		try {
+			InputStream in = new FileInputStream(segment);
+			try {
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+				try {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						out.write(buffer, 0, read);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			// retention goes by the time the segment was closed
+			temp.setLastModified(segment.lastModified());
+			if (!temp.renameTo(target)) {
+				throw new IOException("Failed to rename " + temp + " to " + target);
+			}
+			if (!segment.delete()) {
+				logger.warn("Failed to delete the compressed log segment {}", segment);
+			}
+			compressed.increment();
+		} catch (IOException ex) {
+			logger.warn("Failed to compress log segment " + segment, ex);
+			temp.delete();
+		}
+	}
+
+	/** Deletes closed segments beyond the retention limits */
+	private void enforceRetention(long now) {
+
+		int retentionDays = settings.getRetentionDays();
+		int maxSegments = settings.getMaxSegments();
+		if ((retentionDays <= 0) && (maxSegments <= 0)) {
+			return;
+		}
+
+		Map<String, List<Segment>> byLog = new HashMap<String, List<Segment>>();
+		for (Segment segment : listSegments(folder, null)) {
+			List<Segment> logSegments = byLog.get(segment.getLogName());
+			if (logSegments == null) {
+				logSegments = new ArrayList<Segment>();
+				byLog.put(segment.getLogName(), logSegments);
+			}
+			logSegments.add(segment);
+		}
+
+		long oldestKept = now - TimeUnit.DAYS.toMillis(retentionDays);
+		for (List<Segment> logSegments : byLog.values()) {
+			int remaining = logSegments.size();
+			// oldest first
+			for (Segment segment : logSegments) {
+				boolean delete = (maxSegments > 0) && (remaining > maxSegments);
+				if (!delete && (retentionDays > 0)) {
+					// the last line was written at the latest when the
+					// segment was closed
+					delete = (segment.getFile().lastModified() < oldestKept);
+				}
+				if (delete) {
+					if (segment.getFile().delete()) {
+						deleted.increment();
+					} else {
+						logger.warn("Failed to delete the old log segment {}", segment.getFile());
+					}
+					remaining--;
+				}
+			}
+		}
+	}
+}
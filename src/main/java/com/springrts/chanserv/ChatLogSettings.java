@@ -0,0 +1,233 @@
+
+package com.springrts.chanserv;
+
+
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * Settings for writing the channel and private chat logs.
+ * @see ChatLogWriter
+ * @author hoijui
+ */
+public class ChatLogSettings {
+
+	/** How hard we try to get log lines onto the disk */
+	public static enum Durability {
+		/**
+		 * Lines are handed to the operating system on each group commit.
+		 * Survives a crash of ChanServ, but not necessarily one of the machine.
+		 */
+		FLUSH,
+		/** Like FLUSH, but the files are also synced to disk (fsync) */
+		SYNC,
+		/**
+		 * Every line is handed to the operating system right away.
+		 * Closest to the old behavior, but the most expensive.
+		 */
+		LINE
+	}
+
+	/** folder where log files are put */
+	@XmlElement()
+	private String folder;
+	/** Maximum number of lines waiting to be written; more get dropped */
+	@XmlElement()
+	private int queueSize;
+	/** Maximum number of log files kept open at the same time */
+	@XmlElement()
+	private int maxOpenFiles;
+	/** Commit at least every so many milliseconds */
+	@XmlElement()
+	private int flushInterval;
+	/** Commit at least every so many lines */
+	@XmlElement()
+	private int flushLines;
+	@XmlElement()
+	private Durability durability;
+	/** Start a new segment of a log file every day */
+	@XmlElement()
+	private boolean rollDaily;
+	/**
+	 * Start a new segment of a log file when it reaches this many bytes;
+	 * 0 means unlimited
+	 */
+	@XmlElement()
+	private long maxSegmentSize;
+	/** gzip closed segments in the background */
+	@XmlElement()
+	private boolean compress;
+	/**
+	 * Delete closed segments after this many days;
+	 * 0 means keep them forever
+	 */
+	@XmlElement()
+	private int retentionDays;
+	/**
+	 * Keep at most this many closed segments per log file, deleting the
+	 * oldest ones; 0 means unlimited
+	 */
+	@XmlElement()
+	private int maxSegments;
+	/**
+	 * Keep the channel log lines of this many days in memory, indexed for
+	 * searching; 0 disables the index
+	 */
+	@XmlElement()
+	private int searchDays;
+	/**
+	 * Keep at most this many lines per channel indexed, dropping the
+	 * oldest ones
+	 */
+	@XmlElement()
+	private int maxIndexedLines;
+	/**
+	 * Keep at most this many lines of all channels indexed, dropping the
+	 * oldest ones
+	 */
+	@XmlElement()
+	private int maxTotalIndexedLines;
+
+	public ChatLogSettings() {
+
+		this.folder = "./log";
+		this.queueSize = 10000;
+		this.maxOpenFiles = 64;
+		this.flushInterval = 1000;
+		this.flushLines = 200;
+		this.durability = Durability.FLUSH;
+		this.rollDaily = true;
+		this.maxSegmentSize = 64L * 1024 * 1024;
+		this.compress = true;
+		this.retentionDays = 0;
+		this.maxSegments = 0;
+		this.searchDays = 7;
+		this.maxIndexedLines = 20000;
+		this.maxTotalIndexedLines = 200000;
+	}
+
+	ChatLogSettings(int searchDays, int maxIndexedLines, int maxTotalIndexedLines) {
+
+		this();
+		this.searchDays = searchDays;
+		this.maxIndexedLines = maxIndexedLines;
+		this.maxTotalIndexedLines = maxTotalIndexedLines;
+	}
+
+	/**
+	 * folder where log files are put
+	 * @return the folder
+	 */
+	public String getFolder() {
+		return folder;
+	}
+
+	/**
+	 * Maximum number of lines waiting to be written; more get dropped
+	 * @return the queueSize
+	 */
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * Maximum number of log files kept open at the same time
+	 * @return the maxOpenFiles
+	 */
+	public int getMaxOpenFiles() {
+		return maxOpenFiles;
+	}
+
+	/**
+	 * Commit at least every so many milliseconds
+	 * @return the flushInterval
+	 */
+	public int getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * Commit at least every so many lines
+	 * @return the flushLines
+	 */
+	public int getFlushLines() {
+		return flushLines;
+	}
+
+	/**
+	 * How hard we try to get log lines onto the disk
+	 * @return the durability
+	 */
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Start a new segment of a log file every day
+	 * @return the rollDaily
+	 */
+	public boolean isRollDaily() {
+		return rollDaily;
+	}
+
+	/**
+	 * Start a new segment of a log file when it reaches this many bytes;
+	 * 0 means unlimited
+	 * @return the maxSegmentSize
+	 */
+	public long getMaxSegmentSize() {
+		return maxSegmentSize;
+	}
+
+	/**
+	 * gzip closed segments in the background
+	 * @return the compress
+	 */
+	public boolean isCompress() {
+		return compress;
+	}
+
+	/**
+	 * Delete closed segments after this many days;
+	 * 0 means keep them forever
+	 * @return the retentionDays
+	 */
+	public int getRetentionDays() {
+		return retentionDays;
+	}
+
+	/**
+	 * Keep at most this many closed segments per log file, deleting the
+	 * oldest ones; 0 means unlimited
+	 * @return the maxSegments
+	 */
+	public int getMaxSegments() {
+		return maxSegments;
+	}
+
+	/**
+	 * Keep the channel log lines of this many days in memory, indexed for
+	 * searching; 0 disables the index
+	 * @return the searchDays
+	 */
+	public int getSearchDays() {
+		return searchDays;
+	}
+
+	/**
+	 * Keep at most this many lines per channel indexed, dropping the
+	 * oldest ones
+	 * @return the maxIndexedLines
+	 */
+	public int getMaxIndexedLines() {
+		return maxIndexedLines;
+	}
+
+	/**
+	 * Keep at most this many lines of all channels indexed, dropping the
+	 * oldest ones
+	 * @return the maxTotalIndexedLines
+	 */
+	public int getMaxTotalIndexedLines() {
+		return maxTotalIndexedLines;
+	}
+}
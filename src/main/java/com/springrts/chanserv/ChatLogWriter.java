@@ -0,0 +1,416 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import com.springrts.chanserv.metrics.Histogram;
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.FilenameFilter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes chat logs on a background thread, so the thread talking to the
+ * lobby server never waits for the disk.
+ *
+ * Lines are put into a bounded queue, and written in batches by the writer
+ * thread, which keeps the most recently used log files open.
+ * Batches are committed (group commit) every
+ * {@link ChatLogSettings#getFlushInterval()} milliseconds or
+ * {@link ChatLogSettings#getFlushLines()} lines, whichever comes first.
+ * If the queue is full, because the disk can not keep up,
+ * lines are dropped rather than blocking the caller.
+ * Log files are rolled into segments by day or size,
+ * see {@link ChatLogSegments}.
+ * Channel log lines are also indexed for searching, see {@link ChatLogIndex}.
+ * @author hoijui
+ */
+public class ChatLogWriter implements Runnable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChatLogWriter.class);
+
+	/** Encoding of the log files, the same as the one of the lobby protocol */
+	static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(CHARSET);
+
+	private static class LogLine {
+
+		private final String fileName;
+		/** unix timestamp */
+		private final long time;
+		/** who the line is about, or <code>null</code> */
+		private final String user;
+		private final String text;
+
+		LogLine(String fileName, long time, String user, String text) {
+
+			this.fileName = fileName;
+			this.time = time;
+			this.user = user;
+			this.text = time + " " + text;
+		}
+	}
+
+	private static class LogFile {
+
+		private final FileOutputStream stream;
+		private final OutputStream out;
+		/** whether there are lines written since the last commit */
+		private boolean dirty;
+		/** The day the current segment was started */
+		private final String day;
+		/** Size of the current segment in bytes */
+		private long size;
+
+		LogFile(File file, String today) throws IOException {
+
+			this.size = file.length();
+			this.day = (size > 0) ? ChatLogSegments.formatDay(file.lastModified()) : today;
+			this.stream = new FileOutputStream(file, true);
+			this.out = new BufferedOutputStream(stream);
+			this.dirty = false;
+		}
+	}
+
+	private final ChatLogSettings settings;
+	private final ChatLogSettings.Durability durability;
+	private final File folder;
+	private final BlockingQueue<LogLine> queue;
+	/**
+	 * Log files currently open, in access order.
+	 * Only accessed by the writer thread.
+	 */
+	private final Map<String, LogFile> openFiles;
+	private final Counter queuedLines;
+	private final Counter droppedLines;
+	private final Counter writtenLines;
+	private final Histogram commitTiming;
+	private final ChatLogSegments segments;
+	private final ChatLogIndex index;
+	/** see {@link ChatLogSegments#formatDay(long)} */
+	private String today;
+	/** When {@link #today} ends, see {@link System#currentTimeMillis()} */
+	private long todayEnd;
+
+	private volatile boolean running;
+	private Thread writerThread;
+
+	public ChatLogWriter(ChatLogSettings settings, MetricsRegistry metrics) {
+
+		this.settings = settings;
+		this.durability = (settings.getDurability() == null)
+				? ChatLogSettings.Durability.FLUSH
+				: settings.getDurability();
+		this.folder = new File(settings.getFolder());
+		this.queue = new ArrayBlockingQueue<LogLine>(Math.max(1, settings.getQueueSize()));
+		this.openFiles = new LinkedHashMap<String, LogFile>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, LogFile> eldest) {
+
+				if (size() > Math.max(1, ChatLogWriter.this.settings.getMaxOpenFiles())) {
+					close(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+		this.queuedLines = metrics.counter("chatlog.queued");
+		this.droppedLines = metrics.counter("chatlog.dropped");
+		this.writtenLines = metrics.counter("chatlog.written");
+		this.commitTiming = metrics.histogram("chatlog.commit");
+		this.segments = new ChatLogSegments(settings, metrics);
+		this.index = new ChatLogIndex(settings, metrics);
+		this.today = null;
+		this.todayEnd = 0;
+		this.running = false;
+		this.writerThread = null;
+	}
+
+	/** Starts the writer thread */
+	public synchronized void start() {
+
+		if (running) {
+			return;
+		}
+		if (!folder.isDirectory() && !folder.mkdirs()) {
+			logger.warn("Failed to create the log folder: {}", folder);
+		}
+		segments.start();
+		if (index.isEnabled()) {
+			startIndexLoader();
+		}
+		running = true;
+		writerThread = new Thread(this, "ChatLogWriter");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Indexes the existing channel logs in the background.
+	 * Only what the active log files contain right now is loaded from them;
+	 * lines written from now on are indexed by the writer thread.
+	 */
+	private void startIndexLoader() {
+
+		final Map<String, Long> activeSizes = new HashMap<String, Long>();
+		String[] activeLogs = folder.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return (ChatLogIndex.channelOfLog(name) != null);
+			}
+		});
+		if (activeLogs != null) {
+			for (String activeLog : activeLogs) {
+				activeSizes.put(activeLog, new File(folder, activeLog).length());
+			}
+		}
+
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				index.load(folder, activeSizes);
+			}
+		}, "ChatLogIndexLoader");
+		loader.setDaemon(true);
+		loader.setPriority(Thread.MIN_PRIORITY);
+		loader.start();
+	}
+
+	/**
+	 * Stops the writer thread,
+	 * after it wrote all the lines that were queued so far.
+	 */
+	public synchronized void stop() {
+
+		if (!running) {
+			return;
+		}
+		running = false;
+		writerThread.interrupt();
+		try {
+			writerThread.join(10000);
+		} catch (InterruptedException ex) {
+			logger.warn("Interrupted while waiting for the chat log writer to finish", ex);
+		}
+		writerThread = null;
+		segments.stop();
+	}
+
+	/**
+	 * Queues a line for writing to a log file.
+	 * A timestamp is automatically added in front of the line.
+	 * Never blocks; if the queue is full, the line is dropped.
+	 * @param fileName file name without path
+	 *   (the log folder is automatically added)
+	 * @return <code>false</code> if the line was dropped
+	 */
+	public boolean log(String fileName, String text) {
+		return log(fileName, null, text);
+	}
+
+	/**
+	 * Queues a line written by, or about a user, for writing to a log file.
+	 * The line is found when searching the channel log for the user.
+	 * @param user <code>null</code> if the line is about no user
+	 * @see #log(String, String)
+	 */
+	public boolean log(String fileName, String user, String text) {
+
+		LogLine line = new LogLine(fileName, Misc.getUnixTimestamp(), user, text);
+		if (!queue.offer(line)) {
+			droppedLines.increment();
+			long dropped = droppedLines.get();
+			// do not flood our own log
+			if ((dropped & (dropped - 1)) == 0) {
+				logger.warn("Chat log queue is full, dropped {} lines so far", dropped);
+			}
+			return false;
+		}
+		queuedLines.increment();
+		return true;
+	}
+
+	/** The index over the recent lines of the channel logs */
+	public ChatLogIndex getIndex() {
+		return index;
+	}
+
+	/** Number of lines dropped because the queue was full */
+	public long getDroppedLines() {
+		return droppedLines.get();
+	}
+
+	/** Number of lines waiting to be written */
+	public int getQueuedLines() {
+		return queue.size();
+	}
+
+	@Override
+	public void run() {
+
+		int flushLines = Math.max(1, settings.getFlushLines());
+		long flushInterval = Math.max(1, settings.getFlushInterval());
+		List<LogLine> batch = new ArrayList<LogLine>(flushLines);
+		int uncommitted = 0;
+		long nextCommit = System.currentTimeMillis() + flushInterval;
+
+		while (running || !queue.isEmpty()) {
+			try {
+				long wait = nextCommit - System.currentTimeMillis();
+				LogLine first = running ? queue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS) : queue.poll();
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, flushLines - 1);
+				}
+			} catch (InterruptedException ex) {
+				// stop() was called; write what is left
+			}
+
+			for (LogLine line : batch) {
+				write(line);
+			}
+			writtenLines.add(batch.size());
+			uncommitted += batch.size();
+			batch.clear();
+
+			if ((uncommitted >= flushLines) || (System.currentTimeMillis() >= nextCommit)) {
+				if (uncommitted > 0) {
+					commit();
+				}
+				uncommitted = 0;
+				nextCommit = System.currentTimeMillis() + flushInterval;
+			}
+		}
+
+		commit();
+		Iterator<Map.Entry<String, LogFile>> files = openFiles.entrySet().iterator();
+		while (files.hasNext()) {
+			Map.Entry<String, LogFile> file = files.next();
+			close(file.getKey(), file.getValue());
+			files.remove();
+		}
+	}
+
+	/** Returns the current day, see {@link ChatLogSegments#formatDay(long)} */
+	private String today() {
+
+		long now = System.currentTimeMillis();
+		if (now >= todayEnd) {
+			today = ChatLogSegments.formatDay(now);
+			Calendar tomorrow = Calendar.getInstance();
+			tomorrow.setTimeInMillis(now);
+			tomorrow.set(Calendar.HOUR_OF_DAY, 0);
+			tomorrow.set(Calendar.MINUTE, 0);
+			tomorrow.set(Calendar.SECOND, 0);
+			tomorrow.set(Calendar.MILLISECOND, 0);
+			tomorrow.add(Calendar.DAY_OF_MONTH, 1);
+			todayEnd = tomorrow.getTimeInMillis();
+		}
+		return today;
+	}
+
+	private boolean needsRoll(LogFile file, String currentDay) {
+
+		return (settings.isRollDaily() && !file.day.equals(currentDay))
+				|| ((settings.getMaxSegmentSize() > 0) && (file.size >= settings.getMaxSegmentSize()));
+	}
+
+	private void write(LogLine line) {
+
+		LogFile file = openFiles.get(line.fileName);
+		try {
+			String currentDay = today();
+			if (file == null) {
+				file = new LogFile(new File(folder, line.fileName), currentDay);
+				openFiles.put(line.fileName, file);
+			}
+			if (needsRoll(file, currentDay)) {
+				close(line.fileName, file);
+				openFiles.remove(line.fileName);
+				segments.roll(line.fileName, file.day);
+				file = new LogFile(new File(folder, line.fileName), currentDay);
+				openFiles.put(line.fileName, file);
+			}
+			byte[] text = line.text.getBytes(CHARSET);
+			file.out.write(text);
+			file.out.write(LINE_SEPARATOR);
+			file.size += text.length + LINE_SEPARATOR.length;
+			if (durability == ChatLogSettings.Durability.LINE) {
+				file.out.flush();
+			} else {
+				file.dirty = true;
+			}
+		} catch (IOException ex) {
+			logger.warn("Failed logging to file: " + line.fileName, ex);
+			if (file != null) {
+				close(line.fileName, file);
+				openFiles.remove(line.fileName);
+			}
+		}
+
+		String channelName = ChatLogIndex.channelOfLog(line.fileName);
+		if (channelName != null) {
+			index.add(channelName, line.time, line.user, line.text);
+		}
+	}
+
+	/** Hands all written lines to the OS, and syncs them if required */
+	private void commit() {
+
+		long start = System.nanoTime();
+		Iterator<Map.Entry<String, LogFile>> files = openFiles.entrySet().iterator();
+		while (files.hasNext()) {
+			Map.Entry<String, LogFile> entry = files.next();
+			LogFile file = entry.getValue();
+			if (!file.dirty) {
+				continue;
+			}
+			try {
+				file.out.flush();
+				if (durability == ChatLogSettings.Durability.SYNC) {
+					file.stream.getFD().sync();
+				}
+				file.dirty = false;
+			} catch (IOException ex) {
+				logger.warn("Failed to commit log file: " + entry.getKey(), ex);
+				close(entry.getKey(), file);
+				files.remove();
+			}
+		}
+		commitTiming.recordSince(start);
+	}
+
+	private void close(String fileName, LogFile file) {
+
+		try {
+			file.out.flush();
+			if (durability == ChatLogSettings.Durability.SYNC) {
+				file.stream.getFD().sync();
+			}
+		} catch (IOException ex) {
+			logger.warn("Failed to commit log file: " + fileName, ex);
+		}
+		try {
+			file.out.close();
+		} catch (IOException ex) {
+			logger.warn("Failed to close log file: " + fileName, ex);
+		}
+	}
+}
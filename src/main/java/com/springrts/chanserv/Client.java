@@ -10,6 +10,8 @@ package com.springrts.chanserv;
  */
 public class Client {
 
+	/** see {@link UserIds} */
+	private final int id;
 	private final String name;
 	private int status = 0;
 
@@ -24,7 +26,13 @@ public class Client {
 	 */
 	private long clientStatusChangeCheckpoint;
 
-	public Client(String name) {
+	/**
+	 * @param id see {@link UserIds#acquire(String)}
+	 * @param name the name as stored in {@link UserIds}
+	 */
+	public Client(int id, String name) {
+
+		this.id = id;
 		this.name = name;
 	}
 
@@ -36,6 +44,10 @@ public class Client {
 		return (status & 0x20) >> 5 == 1;
 	}
 
+	public int getId() {
+		return id;
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -0,0 +1,215 @@
+package com.springrts.chanserv;
+
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread-safe map from non-negative <code>int</code> keys to objects,
+ * for data read far more often than changed, like the users online or in
+ * a channel.
+ * Like {@link IntObjectMap}, it uses open addressing in parallel arrays,
+ * so no key has to be boxed, and no entry object is allocated per mapping.
+ *
+ * Reading does not lock; changes are made while synchronized.
+ * A removed mapping keeps its key in the table, so the probe sequences
+ * readers follow never change; the slot is used again if the same key is
+ * added again, which is common with {@link UserIds}, and dropped when the
+ * table is rebuilt.
+ * @see UserIds
+ * @author hoijui
+ */
+public class ConcurrentIntObjectMap<V> {
+
+	/** Marks an empty slot */
+	private static final int FREE = -1;
+
+	private static class Table {
+
+		/** The capacity is always a power of two */
+		private final AtomicIntegerArray keys;
+		/** <code>null</code> for removed mappings */
+		private final AtomicReferenceArray<Object> values;
+		/** Number of slots with a key; only used while synchronized */
+		private int used;
+
+		Table(int capacity) {
+
+			this.keys = new AtomicIntegerArray(capacity);
+			for (int s = 0; s < capacity; s++) {
+				keys.set(s, FREE);
+			}
+			this.values = new AtomicReferenceArray<Object>(capacity);
+			this.used = 0;
+		}
+
+		int capacity() {
+			return keys.length();
+		}
+
+		/** Returns the slot of a key, or the free slot it would go into */
+		int find(int key) {
+
+			int mask = capacity() - 1;
+			int s = IntObjectMap.slot(key, mask);
+			int k;
+			while (((k = keys.get(s)) != FREE) && (k != key)) {
+				s = (s + 1) & mask;
+			}
+			return s;
+		}
+	}
+
+	/** Replaced by a new table when the current one is half full */
+	private volatile Table table;
+	/** Only changed while synchronized */
+	private volatile int size;
+
+	public ConcurrentIntObjectMap() {
+		this(0);
+	}
+
+	/**
+	 * @param expectedSize number of mappings that fit in without rebuilding
+	 *   the table
+	 */
+	public ConcurrentIntObjectMap(int expectedSize) {
+
+		this.table = new Table(IntObjectMap.capacityFor(expectedSize));
+		this.size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return (size == 0);
+	}
+
+	/** Returns <code>null</code> if the key is not mapped */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+
+		if (key < 0) {
+			return null;
+		}
+		Table current = table;
+		return (V) current.values.get(current.find(key));
+	}
+
+	public boolean containsKey(int key) {
+		return (get(key) != null);
+	}
+
+	/**
+	 * @return the value previously mapped to the key, or <code>null</code>
+	 * @throws IllegalArgumentException if the key is negative,
+	 *   or the value <code>null</code>
+	 */
+	public synchronized V put(int key, V value) {
+		return put(key, value, true);
+	}
+
+	/**
+	 * Maps the key, unless it is mapped already.
+	 * @return the value mapped to the key already, or <code>null</code>
+	 * @throws IllegalArgumentException if the key is negative,
+	 *   or the value <code>null</code>
+	 */
+	public synchronized V putIfAbsent(int key, V value) {
+		return put(key, value, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	private V put(int key, V value, boolean replace) {
+
+		if ((key < 0) || (value == null)) {
+			throw new IllegalArgumentException("Only non-negative keys and non-null values are supported: " + key);
+		}
+		Table current = table;
+		int s = current.find(key);
+		V previous = (V) current.values.get(s);
+		if ((previous != null) && !replace) {
+			return previous;
+		}
+		// the value first, so readers finding the key see it
+		current.values.set(s, value);
+		if (current.keys.get(s) == FREE) {
+			current.keys.set(s, key);
+			current.used++;
+		}
+		if (previous == null) {
+			size++;
+		}
+		if ((current.used * 2) > current.capacity()) {
+			rebuild();
+		}
+		return previous;
+	}
+
+	/**
+	 * @return the value that was mapped to the key, or <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(int key) {
+
+		if (key < 0) {
+			return null;
+		}
+		Table current = table;
+		V previous = (V) current.values.getAndSet(current.find(key), null);
+		if (previous != null) {
+			size--;
+		}
+		return previous;
+	}
+
+	public synchronized void clear() {
+
+		table = new Table(IntObjectMap.capacityFor(0));
+		size = 0;
+	}
+
+	/**
+	 * Returns a snapshot of the keys, in no particular order.
+	 * Changes made while it is taken may or may not be contained.
+	 */
+	public int[] keys() {
+
+		Table current = table;
+		int[] array = new int[current.capacity()];
+		int a = 0;
+		for (int s = 0; s < array.length; s++) {
+			int key = current.keys.get(s);
+			if ((key != FREE) && (current.values.get(s) != null)) {
+				array[a++] = key;
+			}
+		}
+		int[] keys = new int[a];
+		System.arraycopy(array, 0, keys, 0, a);
+		return keys;
+	}
+
+	/**
+	 * Copies the mappings into a new table with room to grow,
+	 * leaving out the removed ones.
+	 */
+	private void rebuild() {
+
+		Table old = table;
+		Table rebuilt = new Table(IntObjectMap.capacityFor(size * 2));
+		for (int o = 0; o < old.capacity(); o++) {
+			Object value = old.values.get(o);
+			if (value != null) {
+				int s = rebuilt.find(old.keys.get(o));
+				rebuilt.values.set(s, value);
+				rebuilt.keys.set(s, old.keys.get(o));
+				rebuilt.used++;
+			}
+		}
+		// readers still on the old table do not see later changes,
+		// just like if they had finished before them
+		table = rebuilt;
+	}
+}
@@ -8,5 +8,12 @@ public interface ConfigStorage {
 
 	public void loadConfig(String fileName);
 
-	public void saveConfig(String fileName);
+	/**
+	 * Saves a configuration.
+	 * @param configuration the live configuration; storages writing all of
+	 *   it take a {@link Configuration#snapshot()} first, so saving does not
+	 *   have to block its users, while others need not copy it at all
+	 * @return <code>true</code> if the configuration was saved successfully
+	 */
+	public boolean saveConfig(Configuration configuration, String fileName);
 }
@@ -3,9 +3,15 @@ package com.springrts.chanserv;
 
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -23,9 +29,32 @@ public class Configuration implements Serializable {
 	private String username;
 	private String password;
 	private int remoteAccessPort;
+	private RemoteAccessServer.Mode remoteAccessMode;
+	/**
+	 * Number of threads processing the lines received from the lobby server;
+	 * 0 means they are processed by the thread reading them
+	 */
+	private int pipelineWorkers;
+	private ChatLogSettings chatLogSettings;
+	private OutboundSettings outboundSettings;
+	/** Copy-on-write, as it is read far more often than changed */
 	@XmlElementWrapper()
 	@XmlElement(name = "channel")
 	private final List<Channel> channels;
+	/**
+	 * Index over <code>channels</code>, by channel name.
+	 * Needs to be kept in sync with the list; this is why it may only be
+	 * modified through {@link #addChannel(Channel)} and
+	 * {@link #removeChannel(Channel)}.
+	 */
+	private final transient Map<String, Channel> channelIndex;
+	/**
+	 * Incremented on every change to the persistent state,
+	 * so storages can tell whether there is anything new to save.
+	 */
+	private final transient AtomicLong revision;
+	/** Get notified about changes to channels (needs to be thread-save) */
+	private final transient List<ConfigurationListener> listeners;
 	@XmlElementWrapper()
 	@XmlElement(name = "name")
 	private final List<String> remoteAccessAccounts;
@@ -36,9 +65,110 @@ public class Configuration implements Serializable {
 		serverPort = -1;
 		username = "";
 		password = "";
+		remoteAccessMode = RemoteAccessServer.Mode.THREADS;
+		pipelineWorkers = 0;
+		chatLogSettings = new ChatLogSettings();
+		outboundSettings = new OutboundSettings();
 
-		channels = Collections.synchronizedList(new LinkedList<Channel>());
+		channels = new CopyOnWriteArrayList<Channel>();
+		channelIndex = new ConcurrentHashMap<String, Channel>();
 		remoteAccessAccounts = Collections.synchronizedList(new LinkedList<String>());
+		revision = new AtomicLong(0);
+		listeners = new CopyOnWriteArrayList<ConfigurationListener>();
+	}
+
+	/**
+	 * Creates a deep copy of the persistent state of a configuration.
+	 * Changes to the copy are not tracked.
+	 */
+	private Configuration(Configuration original) {
+
+		this();
+
+		serverAddress = original.serverAddress;
+		serverPort = original.serverPort;
+		username = original.username;
+		password = original.password;
+		remoteAccessPort = original.remoteAccessPort;
+		remoteAccessMode = original.remoteAccessMode;
+		pipelineWorkers = original.pipelineWorkers;
+		chatLogSettings = original.chatLogSettings;
+		outboundSettings = original.outboundSettings;
+		// read first, so changes made while copying are saved next time
+		revision.set(original.revision.get());
+		List<Channel> copies = new ArrayList<Channel>();
+		for (Channel channel : original.channels) {
+			Channel copy = new Channel(channel);
+			copies.add(copy);
+			channelIndex.put(copy.getName(), copy);
+		}
+		channels.addAll(copies);
+		synchronized (original.remoteAccessAccounts) {
+			remoteAccessAccounts.addAll(original.remoteAccessAccounts);
+		}
+	}
+
+	/**
+	 * Creates a deep copy of the persistent state of this configuration,
+	 * which can then be saved without holding any locks.
+	 * The configuration may be modified concurrently; each channel is copied
+	 * in a consistent state, and the revision of the snapshot is the one from
+	 * before copying, so concurrent changes are not mistaken as saved.
+	 */
+	public Configuration snapshot() {
+		return new Configuration(this);
+	}
+
+	/**
+	 * Returns the current revision of the persistent state.
+	 * If two calls return the same value, nothing changed in between.
+	 */
+	public long getRevision() {
+		return revision.get();
+	}
+
+	private static boolean equal(Object obj1, Object obj2) {
+		return (obj1 == null) ? (obj2 == null) : obj1.equals(obj2);
+	}
+
+	/** Has to be called whenever a persistent property changed */
+	void markChanged() {
+		revision.incrementAndGet();
+	}
+
+	/**
+	 * Makes sure the revision is at least the one given,
+	 * for example after changes were restored from a journal.
+	 */
+	void advanceRevision(long minRevision) {
+
+		long current;
+		while ((current = revision.get()) < minRevision) {
+			if (revision.compareAndSet(current, minRevision)) {
+				break;
+			}
+		}
+	}
+
+	/** Has to be called whenever a persistent property of a channel changed */
+	void channelChanged(Channel channel, ChannelChange change, String value) {
+
+		markChanged();
+		for (ConfigurationListener listener : listeners) {
+			listener.channelChanged(channel, change, value);
+		}
+	}
+
+	/**
+	 * Registers a listener for changes to the channels.
+	 * Listeners are not copied to snapshots.
+	 */
+	public void addListener(ConfigurationListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ConfigurationListener listener) {
+		listeners.remove(listener);
 	}
 
 	public String getServerAddress() {
@@ -46,7 +176,10 @@ public class Configuration implements Serializable {
 	}
 
 	public void setServerAddress(String serverAddress) {
-		this.serverAddress = serverAddress;
+		if (!equal(this.serverAddress, serverAddress)) {
+			this.serverAddress = serverAddress;
+			markChanged();
+		}
 	}
 
 	public int getServerPort() {
@@ -54,7 +187,10 @@ public class Configuration implements Serializable {
 	}
 
 	public void setServerPort(int serverPort) {
-		this.serverPort = serverPort;
+		if (this.serverPort != serverPort) {
+			this.serverPort = serverPort;
+			markChanged();
+		}
 	}
 
 	public String getUsername() {
@@ -62,7 +198,10 @@ public class Configuration implements Serializable {
 	}
 
 	public void setUsername(String username) {
-		this.username = username;
+		if (!equal(this.username, username)) {
+			this.username = username;
+			markChanged();
+		}
 	}
 
 	public String getPassword() {
@@ -70,7 +209,10 @@ public class Configuration implements Serializable {
 	}
 
 	public void setPassword(String password) {
-		this.password = password;
+		if (!equal(this.password, password)) {
+			this.password = password;
+			markChanged();
+		}
 	}
 
 	public int getRemoteAccessPort() {
@@ -78,11 +220,123 @@ public class Configuration implements Serializable {
 	}
 
 	public void setRemoteAccessPort(int remoteAccessPort) {
-		this.remoteAccessPort = remoteAccessPort;
+		if (this.remoteAccessPort != remoteAccessPort) {
+			this.remoteAccessPort = remoteAccessPort;
+			markChanged();
+		}
 	}
 
+	public RemoteAccessServer.Mode getRemoteAccessMode() {
+		return remoteAccessMode;
+	}
+
+	public void setRemoteAccessMode(RemoteAccessServer.Mode remoteAccessMode) {
+		if (!equal(this.remoteAccessMode, remoteAccessMode)) {
+			this.remoteAccessMode = remoteAccessMode;
+			markChanged();
+		}
+	}
+
+	/**
+	 * Number of threads processing the lines received from the lobby server;
+	 * 0 means they are processed by the thread reading them
+	 * @see EventPipeline
+	 */
+	public int getPipelineWorkers() {
+		return pipelineWorkers;
+	}
+
+	public void setPipelineWorkers(int pipelineWorkers) {
+		if (this.pipelineWorkers != pipelineWorkers) {
+			this.pipelineWorkers = pipelineWorkers;
+			markChanged();
+		}
+	}
+
+	public ChatLogSettings getChatLogSettings() {
+		return chatLogSettings;
+	}
+
+	public void setChatLogSettings(ChatLogSettings chatLogSettings) {
+		if (!equal(this.chatLogSettings, chatLogSettings)) {
+			this.chatLogSettings = chatLogSettings;
+			markChanged();
+		}
+	}
+
+	public OutboundSettings getOutboundSettings() {
+		return outboundSettings;
+	}
+
+	public void setOutboundSettings(OutboundSettings outboundSettings) {
+		if (!equal(this.outboundSettings, outboundSettings)) {
+			this.outboundSettings = outboundSettings;
+			markChanged();
+		}
+	}
+
+	/**
+	 * Returns a read-only view on all registered and static channels.
+	 * Use {@link #addChannel(Channel)} and {@link #removeChannel(Channel)}
+	 * to modify the channel list.
+	 */
 	public List<Channel> getChannels() {
-		return channels;
+		return Collections.unmodifiableList(channels);
+	}
+
+	/** Returns <code>null</code> if the channel is not found */
+	public Channel getChannel(String name) {
+		return channelIndex.get(name);
+	}
+
+	/**
+	 * Adds a registered or static channel.
+	 * @return <code>false</code> if a channel with the same name exists already
+	 */
+	public boolean addChannel(Channel channel) {
+
+		synchronized (channels) {
+			if (channelIndex.containsKey(channel.getName())) {
+				return false;
+			}
+			channels.add(channel);
+			channelIndex.put(channel.getName(), channel);
+			channel.setConfiguration(this);
+		}
+		channelChanged(channel, ChannelChange.ADDED, null);
+		return true;
+	}
+
+	/**
+	 * Removes a registered or static channel.
+	 * @return <code>false</code> if the channel was not found
+	 */
+	public boolean removeChannel(Channel channel) {
+
+		synchronized (channels) {
+			if (!channels.remove(channel)) {
+				return false;
+			}
+			channelIndex.remove(channel.getName());
+			channel.setConfiguration(null);
+		}
+		channelChanged(channel, ChannelChange.REMOVED, null);
+		return true;
+	}
+
+	/**
+	 * JAXB fills the channel list directly, so we have to build the index,
+	 * and connect the channels to us after loading.
+	 */
+	private void afterUnmarshal(Unmarshaller unmarshaller, Object parent) {
+
+		synchronized (channels) {
+			channelIndex.clear();
+			for (Channel channel : channels) {
+				channelIndex.put(channel.getName(), channel);
+				channel.setConfiguration(this);
+			}
+		}
 	}
 
 	public List<String> getRemoteAccessAccounts() {
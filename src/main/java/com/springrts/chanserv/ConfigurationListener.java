@@ -0,0 +1,20 @@
+
+package com.springrts.chanserv;
+
+/**
+ * Gets notified about changes to the persistent state of the channels
+ * in a {@link Configuration}.
+ * @author hoijui
+ */
+public interface ConfigurationListener {
+
+	/**
+	 * Called after a persistent property of a channel changed,
+	 * on the thread that did the change.
+	 * @param channel the channel that changed
+	 * @param change what changed
+	 * @param value the new value, see {@link ChannelChange};
+	 *   may be <code>null</code>
+	 */
+	public void channelChanged(Channel channel, ChannelChange change, String value);
+}
@@ -2,6 +2,7 @@
 package com.springrts.chanserv;
 
 import com.springrts.chanserv.antispam.AntiSpamSystem;
+import com.springrts.chanserv.metrics.MetricsRegistry;
 
 /**
  * @author hoijui
@@ -13,6 +14,12 @@ public class Context {
 	private ConfigStorage configStorage;
 	private AntiSpamSystem antiSpamSystem;
 	private RemoteAccessServer remoteAccessServer;
+	private ChatLogWriter chatLogWriter;
+	private MuteListCache muteListCache;
+	private Scheduler scheduler;
+	private MetricsRegistry metrics = new MetricsRegistry();
+	private UserIds userIds = new UserIds();
+	private ChannelRoleIndex channelRoleIndex;
 
 	public ChanServ getChanServ() {
 		return chanServ;
@@ -53,4 +60,52 @@ public class Context {
 	public void setRemoteAccessServer(RemoteAccessServer remoteAccessServer) {
 		this.remoteAccessServer = remoteAccessServer;
 	}
+
+	public ChatLogWriter getChatLogWriter() {
+		return chatLogWriter;
+	}
+
+	public void setChatLogWriter(ChatLogWriter chatLogWriter) {
+		this.chatLogWriter = chatLogWriter;
+	}
+
+	public MuteListCache getMuteListCache() {
+		return muteListCache;
+	}
+
+	public void setMuteListCache(MuteListCache muteListCache) {
+		this.muteListCache = muteListCache;
+	}
+
+	public Scheduler getScheduler() {
+		return scheduler;
+	}
+
+	public void setScheduler(Scheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	public UserIds getUserIds() {
+		return userIds;
+	}
+
+	public void setUserIds(UserIds userIds) {
+		this.userIds = userIds;
+	}
+
+	public ChannelRoleIndex getChannelRoleIndex() {
+		return channelRoleIndex;
+	}
+
+	public void setChannelRoleIndex(ChannelRoleIndex channelRoleIndex) {
+		this.channelRoleIndex = channelRoleIndex;
+	}
 }
@@ -0,0 +1,249 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import com.springrts.chanserv.metrics.Gauge;
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes the lines received from the lobby server on a pool of worker
+ * threads, so busy channels do not have to wait for each other.
+ *
+ * Lines concerning a single channel (see {@link #getChannelCommands()}) are
+ * partitioned by channel name: all lines of a channel go to the same worker,
+ * so they are processed in the order they were received.
+ * All other lines, for example <code>ADDUSER</code>,
+ * <code>REMOVEUSER</code>, <code>CLIENTSTATUS</code>, private messages and
+ * user commands, are barriers: they are only processed after all lines
+ * received before them, by the thread reading from the server, while the
+ * workers wait.
+ * @author hoijui
+ */
+public class EventPipeline {
+
+	private static final Logger logger = LoggerFactory.getLogger(EventPipeline.class);
+
+	/** Lines waiting per worker; if full, the reader waits */
+	private static final int QUEUE_SIZE = 4096;
+
+	/**
+	 * Commands whose first argument is a channel name,
+	 * and which only concern that channel.
+	 */
+	private static final String[] CHANNEL_COMMAND_NAMES = {
+		"JOIN", "CLIENTS", "JOINED", "LEFT", "CHANNELTOPIC", "CHANNELMESSAGE",
+		"SAID", "SAIDEX"
+	};
+	private static final Set<String> CHANNEL_COMMANDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(CHANNEL_COMMAND_NAMES)));
+	public static Set<String> getChannelCommands() {
+		return CHANNEL_COMMANDS;
+	}
+
+	private class Worker implements Runnable {
+
+		private final BlockingQueue<String> queue;
+		/** Reused for every line processed by this worker */
+		private final LineTokenizer lineTokenizer;
+
+		Worker() {
+
+			this.queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+			this.lineTokenizer = new LineTokenizer();
+		}
+
+		@Override
+		public void run() {
+
+			while (running || !queue.isEmpty()) {
+				String line;
+				try {
+					line = queue.take();
+				} catch (InterruptedException ex) {
+					continue;
+				}
+				process(lineTokenizer.reset(line));
+			}
+		}
+	}
+
+	private final ServerCommandDispatcher dispatcher;
+	private final List<Worker> workers;
+	private final List<Thread> threads;
+	/** Lines handed to the workers, and not yet processed */
+	private final AtomicInteger outstanding;
+	/** Notified when <code>outstanding</code> drops to 0 */
+	private final Object idle;
+	private final Counter partitioned;
+	private final Counter barriers;
+
+	private volatile boolean running;
+
+	/**
+	 * @param workerCount number of worker threads
+	 */
+	public EventPipeline(int workerCount, ServerCommandDispatcher dispatcher, MetricsRegistry metrics) {
+
+		this.dispatcher = dispatcher;
+		this.workers = new ArrayList<Worker>(workerCount);
+		for (int w = 0; w < workerCount; w++) {
+			workers.add(new Worker());
+		}
+		this.threads = new ArrayList<Thread>(workerCount);
+		this.outstanding = new AtomicInteger(0);
+		this.idle = new Object();
+		this.partitioned = metrics.counter("pipeline.partitioned");
+		this.barriers = metrics.counter("pipeline.barriers");
+		this.running = false;
+
+		metrics.gauge("pipeline.queued", new Gauge() {
+			@Override
+			public long getValue() {
+				return outstanding.get();
+			}
+		});
+	}
+
+	/** Starts the worker threads */
+	public synchronized void start() {
+
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int w = 0; w < workers.size(); w++) {
+			Thread thread = new Thread(workers.get(w), "EventWorker-" + w);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+	}
+
+	/**
+	 * Stops the worker threads,
+	 * after they processed all the lines handed to them so far.
+	 */
+	public synchronized void stop() {
+
+		if (!running) {
+			return;
+		}
+		awaitIdle();
+		running = false;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException ex) {
+				logger.warn("Interrupted while waiting for the event workers to finish", ex);
+			}
+		}
+		threads.clear();
+	}
+
+	/**
+	 * Returns the channel a line is partitioned by,
+	 * or <code>null</code> if it is a barrier.
+	 */
+	static String partitionKey(LineTokenizer commands) {
+
+		if ((commands.size() < 2) || !isChannelCommand(commands)) {
+			return null;
+		}
+		if (commands.equalsIgnoreCase(0, "SAID") && (commands.size() > 3)
+				&& (commands.length(3) > 0) && (commands.charAt(3, 0) == '!'))
+		{
+			// user commands may concern any channel, or the configuration
+			return null;
+		}
+		return commands.get(1);
+	}
+
+	/** Checks the command name without creating a sub-string */
+	private static boolean isChannelCommand(LineTokenizer commands) {
+
+		for (String commandName : CHANNEL_COMMAND_NAMES) {
+			if (commands.equalsIgnoreCase(0, commandName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands a line to the worker of its channel.
+	 * May only be called from the thread reading from the lobby server.
+	 * @param commands the tokenized line; only used during this call
+	 * @return <code>false</code> if the line is a barrier; the caller then
+	 *   has to process it itself, after calling {@link #awaitIdle()}
+	 */
+	public boolean submit(LineTokenizer commands) {
+
+		String channelName = partitionKey(commands);
+		if (channelName == null) {
+			barriers.increment();
+			return false;
+		}
+
+		Worker worker = workers.get((channelName.hashCode() & Integer.MAX_VALUE) % workers.size());
+		outstanding.incrementAndGet();
+		boolean queued = false;
+		while (!queued) {
+			try {
+				// the callers tokenizer is reused; the worker tokenizes again
+				worker.queue.put(commands.getLine());
+				queued = true;
+			} catch (InterruptedException ex) {
+				// retry; dropping the line would break the channels state
+			}
+		}
+		partitioned.increment();
+		return true;
+	}
+
+	private void process(LineTokenizer commands) {
+
+		try {
+			dispatcher.dispatch(commands);
+		} catch (RuntimeException ex) {
+			logger.error("Failed to process: " + commands.getLine(), ex);
+		} finally {
+			if (outstanding.decrementAndGet() == 0) {
+				synchronized (idle) {
+					idle.notifyAll();
+				}
+			}
+		}
+	}
+
+	/** Waits until the workers processed all the lines handed to them */
+	public void awaitIdle() {
+
+		if (outstanding.get() == 0) {
+			return;
+		}
+		synchronized (idle) {
+			while (outstanding.get() > 0) {
+				try {
+					idle.wait();
+				} catch (InterruptedException ex) {
+					// keep waiting; the order of lines has to be kept
+				}
+			}
+		}
+	}
+}
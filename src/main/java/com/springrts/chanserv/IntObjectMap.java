@@ -0,0 +1,205 @@
+
+package com.springrts.chanserv;
+
+
+import java.util.Arrays;
+
+/**
+ * A map from non-negative <code>int</code> keys to objects, stored in two
+ * parallel arrays with open addressing, so no key has to be boxed, and no
+ * entry object is allocated per mapping.
+ *
+ * Not thread-safe.
+ * @see UserIds
+ * @see ConcurrentIntObjectMap
+ * @author hoijui
+ */
+public class IntObjectMap<V> {
+
+	/** Marks an empty slot */
+	private static final int FREE = -1;
+	private static final int MIN_CAPACITY = 8;
+
+	/** The capacity is always a power of two */
+	private int[] keys;
+	private Object[] values;
+	private int size;
+
+	public IntObjectMap() {
+		this(0);
+	}
+
+	/**
+	 * @param expectedSize number of mappings that fit in without growing
+	 */
+	public IntObjectMap(int expectedSize) {
+
+		int capacity = capacityFor(expectedSize);
+		this.keys = newKeys(capacity);
+		this.values = new Object[capacity];
+		this.size = 0;
+	}
+
+	/** Smallest power of two keeping the table at most half full */
+	static int capacityFor(int expectedSize) {
+
+		int capacity = MIN_CAPACITY;
+		while (capacity < (expectedSize * 2)) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/** Spreads dense IDs over the table */
+	static int slot(int key, int mask) {
+
+		int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private static int[] newKeys(int capacity) {
+
+		int[] table = new int[capacity];
+		Arrays.fill(table, FREE);
+		return table;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return (size == 0);
+	}
+
+	/** Returns the slot of a key, or <code>-1</code> if it is not mapped */
+	private int find(int key) {
+
+		if (key < 0) {
+			return -1;
+		}
+		int mask = keys.length - 1;
+		for (int s = slot(key, mask); keys[s] != FREE; s = (s + 1) & mask) {
+			if (keys[s] == key) {
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	/** Returns <code>null</code> if the key is not mapped */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+
+		int s = find(key);
+		return (s == -1) ? null : (V) values[s];
+	}
+
+	public boolean containsKey(int key) {
+		return (find(key) != -1);
+	}
+
+	/**
+	 * @return the value previously mapped to the key, or <code>null</code>
+	 * @throws IllegalArgumentException if the key is negative
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+
+		if (key < 0) {
+			throw new IllegalArgumentException("Only non-negative keys are supported: " + key);
+		}
+		int mask = keys.length - 1;
+		int s = slot(key, mask);
+		for (; keys[s] != FREE; s = (s + 1) & mask) {
+			if (keys[s] == key) {
+				V previous = (V) values[s];
+				values[s] = value;
+				return previous;
+			}
+		}
+		keys[s] = key;
+		values[s] = value;
+		size++;
+		if ((size * 2) > keys.length) {
+			rehash(keys.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value that was mapped to the key, or <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+
+		int s = find(key);
+		if (s == -1) {
+			return null;
+		}
+		V previous = (V) values[s];
+		keys[s] = FREE;
+		values[s] = null;
+		size--;
+		closeGap(s, keys.length - 1);
+		return previous;
+	}
+
+	/**
+	 * Moves the mappings following a freed slot back,
+	 * so none of them is cut off from its home slot.
+	 */
+	private void closeGap(int gap, int mask) {
+
+		for (int s = (gap + 1) & mask; keys[s] != FREE; s = (s + 1) & mask) {
+			int home = slot(keys[s], mask);
+			// move the mapping, unless its home lies cyclically in (gap, s]
+			if (((s - home) & mask) >= ((s - gap) & mask)) {
+				keys[gap] = keys[s];
+				values[gap] = values[s];
+				keys[s] = FREE;
+				values[s] = null;
+				gap = s;
+			}
+		}
+	}
+
+	public void clear() {
+
+		keys = newKeys(capacityFor(0));
+		values = new Object[keys.length];
+		size = 0;
+	}
+
+	/** Returns the keys in no particular order */
+	public int[] keys() {
+
+		int[] array = new int[size];
+		int a = 0;
+		for (int key : keys) {
+			if (key != FREE) {
+				array[a++] = key;
+			}
+		}
+		return array;
+	}
+
+	private void rehash(int capacity) {
+
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = newKeys(capacity);
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		for (int o = 0; o < oldKeys.length; o++) {
+			if (oldKeys[o] != FREE) {
+				int s = slot(oldKeys[o], mask);
+				while (keys[s] != FREE) {
+					s = (s + 1) & mask;
+				}
+				keys[s] = oldKeys[o];
+				values[s] = oldValues[o];
+			}
+		}
+	}
+}
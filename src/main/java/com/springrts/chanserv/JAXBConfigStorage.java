@@ -3,11 +3,11 @@ package com.springrts.chanserv;
 
 
 import com.springrts.chanserv.antispam.DefaultAntiSpamSystem;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
@@ -26,6 +26,8 @@ public class JAXBConfigStorage implements ConfigStorage {
 
 	private final Context context;
 	private JAXBContext jaxbContext;
+	/** Reused for all saves; only to be used while synchronized on this */
+	private Marshaller marshaller;
 
 	public JAXBConfigStorage(Context context) {
 
@@ -71,21 +73,45 @@ public class JAXBConfigStorage implements ConfigStorage {
 	}
 
 	@Override
-	public void saveConfig(String fileName) {
+	public boolean saveConfig(Configuration configuration, String fileName) {
+		return writeConfig(configuration.snapshot(), fileName);
+	}
 
-		OutputStream out = null;
+	/**
+	 * Writes a configuration as is, so it should not change meanwhile.
+	 * Writes to a temporary file first, which then replaces the old file,
+	 * so a crash while saving can not leave us with a corrupt config file.
+	 * @param snapshot see {@link Configuration#snapshot()}
+	 */
+	synchronized boolean writeConfig(Configuration snapshot, String fileName) {
+
+		File target = new File(fileName);
+		File temp = new File(fileName + ".tmp");
+		FileOutputStream out = null;
 		try {
-			Marshaller marshaller = jaxbContext.createMarshaller();
-			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-			marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
-			out = new FileOutputStream(fileName);
+			if (marshaller == null) {
+				marshaller = jaxbContext.createMarshaller();
+				marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+				marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+			}
+			out = new FileOutputStream(temp);
 
 			// persist
-			marshaller.marshal(context.getConfiguration(), out);
+			marshaller.marshal(snapshot, out);
+			out.flush();
+			out.getFD().sync();
+			out.close();
+			out = null;
+
+			if (!Misc.replaceFile(temp, target)) {
+				throw new IOException("Failed to replace " + target + " with " + temp);
+			}
 
 			logger.debug("Configuration saved to file : {}", fileName);
+			return true;
 		} catch (Exception ex) {
 			logger.error("Failed to save configuration to file: " + fileName, ex);
+			return false;
 		} finally {
 			if (out != null) {
 				try {
@@ -128,7 +154,7 @@ public class JAXBConfigStorage implements ConfigStorage {
 
 		// save new
 		ConfigStorage configStorage_jaxb = new JAXBConfigStorage(context);
-		configStorage_jaxb.saveConfig(newConfigFile);
+		configStorage_jaxb.saveConfig(context.getConfiguration(), newConfigFile);
 
 		// reload new, for validation
 		configStorage_jaxb.loadConfig(newConfigFile);
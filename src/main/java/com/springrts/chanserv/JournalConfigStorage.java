@@ -0,0 +1,468 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.antispam.SpamSettings;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the configuration in a snapshot file, written with
+ * {@link JAXBConfigStorage}, plus a journal of all the changes to channels
+ * since that snapshot.
+ *
+ * Each change is appended to the journal as soon as it happens, as one
+ * compact line, so the cost of persisting a change does not depend on the
+ * size of the configuration.
+ * {@link #saveConfig(Configuration, String)} only syncs the journal to disk
+ * (fsync), unless the journal grew large, in which case it writes a new snapshot,
+ * and drops the journal records contained in it (compaction).
+ * Only then is the configuration copied (see {@link Configuration#snapshot()}).
+ * As the journal is applied on top of the snapshot when loading,
+ * all records are idempotent; applying a record twice does no harm.
+ *
+ * Changes are appended while the channel that changed is locked, so
+ * appending only holds a lock of its own, never the one of saving.
+ * For compaction, the journal is swapped for an empty one, and the retired
+ * journal is filtered afterwards, without blocking further changes.
+ * The retired journal is replayed before the current one when loading.
+ *
+ * Journal line format: <code>revision change channel [=value]</code>
+ *
+ * Note: Only channel changes are journaled; the global settings in
+ * {@link Configuration} are written with the next snapshot.
+ * @author hoijui
+ */
+public class JournalConfigStorage implements ConfigStorage, ConfigurationListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(JournalConfigStorage.class);
+
+	private static final String JOURNAL_SUFFIX = ".journal";
+	/** Suffix of the journal retired by the last compaction */
+	private static final String RETIRED_SUFFIX = ".old";
+	/** Write a new snapshot once the journal has this many records */
+	static final int COMPACTION_THRESHOLD = 1000;
+
+	private final Context context;
+	private final JAXBConfigStorage snapshotStorage;
+
+	/**
+	 * Guards appending to the journal; never held while writing a
+	 * snapshot or filtering a journal.
+	 * Loading and saving synchronize on this storage instead.
+	 */
+	private final Object journalLock;
+	/** Only changed while synchronized on both this and journalLock */
+	private volatile File journalFile;
+	/** Only to be used while synchronized on journalLock */
+	private Writer journal;
+	/**
+	 * The file stream under <code>journal</code>, to sync it to disk.
+	 * Only to be used while synchronized on journalLock
+	 */
+	private FileOutputStream journalStream;
+	/**
+	 * Number of records in the journal files.
+	 * Only to be used while synchronized on journalLock
+	 */
+	private int journalRecords;
+	/** The configuration we are listening to */
+	private volatile Configuration configuration;
+
+	public JournalConfigStorage(Context context) {
+
+		this.context = context;
+		this.snapshotStorage = new JAXBConfigStorage(context);
+		this.journalLock = new Object();
+		this.journalFile = null;
+		this.journal = null;
+		this.journalStream = null;
+		this.journalRecords = 0;
+		this.configuration = null;
+	}
+
+	@Override
+	public synchronized void loadConfig(String fileName) {
+
+		synchronized (journalLock) {
+			closeJournal();
+		}
+		if (configuration != null) {
+			configuration.removeListener(this);
+		}
+
+		snapshotStorage.loadConfig(fileName);
+		configuration = context.getConfiguration();
+
+		File file = new File(fileName + JOURNAL_SUFFIX);
+		// in the order they were written
+		int records = replay(retiredFile(file), configuration);
+		records += replay(file, configuration);
+		if (records > 0) {
+			// the journal might have changed some anti-spam settings
+			for (Channel channel : configuration.getChannels()) {
+				context.getAntiSpamSystem().setSpamSettingsForChannel(channel.getName(), channel.getAntiSpamSettings());
+			}
+			logger.info("Applied {} journal records from file: {}", records, file);
+		}
+
+		synchronized (journalLock) {
+			journalFile = file;
+			journalRecords = records;
+			openJournal();
+		}
+		configuration.addListener(this);
+	}
+
+	private static File retiredFile(File journalFile) {
+		return new File(journalFile.getPath() + RETIRED_SUFFIX);
+	}
+
+	/**
+	 * Syncs the journal to disk, and writes a new snapshot
+	 * if the journal grew too large.
+	 */
+	@Override
+	public synchronized boolean saveConfig(Configuration configuration, String fileName) {
+
+		File file = new File(fileName + JOURNAL_SUFFIX);
+		boolean ownJournal;
+		FileOutputStream toSync = null;
+		synchronized (journalLock) {
+			ownJournal = file.equals(journalFile) && (journal != null);
+			if (ownJournal && (journalRecords < COMPACTION_THRESHOLD) && new File(fileName).exists()) {
+				try {
+					journal.flush();
+					toSync = journalStream;
+				} catch (IOException ex) {
+					logger.error("Failed to flush the config journal: " + journalFile, ex);
+					return false;
+				}
+			}
+		}
+		if (toSync != null) {
+			// the stream is only closed while saving or loading, so it stays
+			// open, and syncing does not have to block changes
+			try {
+				toSync.getFD().sync();
+				return true;
+			} catch (IOException ex) {
+				logger.error("Failed to sync the config journal: " + file, ex);
+				return false;
+			}
+		}
+
+		Configuration snapshot = configuration.snapshot();
+		if (!snapshotStorage.writeConfig(snapshot, fileName)) {
+			return false;
+		}
+		if (ownJournal) {
+			compact(snapshot.getRevision());
+		}
+		return true;
+	}
+
+	@Override
+	public void channelChanged(Channel channel, ChannelChange change, String value) {
+
+		synchronized (journalLock) {
+			appendChange(channel, change, value);
+		}
+	}
+
+	private void appendChange(Channel channel, ChannelChange change, String value) {
+
+		if (journal == null) {
+			return;
+		}
+
+		long revision = configuration.getRevision();
+		try {
+			appendRecord(revision, change, channel.getName(), value);
+			if (change == ChannelChange.ADDED) {
+				// make the record self-contained
+				appendRecord(revision, ChannelChange.STATIC, channel.getName(), Misc.boolToStr(channel.isStatic()));
+				appendRecord(revision, ChannelChange.TOPIC, channel.getName(), channel.getTopic());
+				appendRecord(revision, ChannelChange.KEY, channel.getName(), channel.getKey());
+				appendRecord(revision, ChannelChange.FOUNDER, channel.getName(), channel.getFounder());
+				appendRecord(revision, ChannelChange.ANTISPAM, channel.getName(), Misc.boolToStr(channel.isAntiSpam()));
+				SpamSettings spamSettings = channel.getAntiSpamSettings();
+				appendRecord(revision, ChannelChange.ANTISPAM_SETTINGS, channel.getName(), (spamSettings == null) ? null : spamSettings.toProtocolString());
+				for (String operator : channel.getOperatorList()) {
+					appendRecord(revision, ChannelChange.OPERATOR_ADDED, channel.getName(), operator);
+				}
+			}
+			// hand it to the OS right away; syncing is done in saveConfig()
+			journal.flush();
+		} catch (IOException ex) {
+			logger.error("Failed to write to the config journal: " + journalFile, ex);
+		}
+	}
+
+	private void appendRecord(long revision, ChannelChange change, String channelName, String value) throws IOException {
+
+		journal.write(formatRecord(revision, change, channelName, value));
+		journal.write('\n');
+		journalRecords++;
+	}
+
+	private static String formatRecord(long revision, ChannelChange change, String channelName, String value) {
+
+		StringBuilder record = new StringBuilder();
+		record.append(revision).append(' ').append(change.name()).append(' ').append(channelName);
+		if (value != null) {
+			record.append(" =").append(value);
+		}
+		return record.toString();
+	}
+
+	private static long parseRevision(String record) {
+		return Long.parseLong(record.substring(0, record.indexOf(' ')));
+	}
+
+	/**
+	 * Applies all the records of a journal file to a configuration.
+	 * @return number of records in the journal
+	 */
+	private int replay(File file, Configuration config) {
+
+		// so new records are never ordered before the ones replayed
+		long maxRevision = 0;
+
+		if (!file.exists()) {
+			return 0;
+		}
+
+		int records = 0;
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String record;
+			while ((record = in.readLine()) != null) {
+				if (record.length() == 0) {
+					continue;
+				}
+				records++;
+				try {
+					maxRevision = Math.max(maxRevision, parseRevision(record));
+					apply(record, config);
+				} catch (RuntimeException ex) {
+					// probably the last record, cut off by a crash
+					logger.warn("Skipping malformed config journal record: " + record, ex);
+				}
+			}
+		} catch (IOException ex) {
+			logger.error("Failed reading the config journal: " + file, ex);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) {
+					logger.warn("Failed to close the config journal.", ex);
+				}
+			}
+		}
+		config.advanceRevision(maxRevision);
+
+		return records;
+	}
+
+	private void apply(String record, Configuration config) {
+
+		int changeStart = record.indexOf(' ') + 1;
+		int nameStart = record.indexOf(' ', changeStart) + 1;
+		if ((changeStart == 0) || (nameStart == 0)) {
+			throw new IllegalArgumentException("Too few fields");
+		}
+		int valueStart = record.indexOf(" =", nameStart);
+		ChannelChange change = ChannelChange.valueOf(record.substring(changeStart, nameStart - 1));
+		String channelName = (valueStart == -1) ? record.substring(nameStart) : record.substring(nameStart, valueStart);
+		String value = (valueStart == -1) ? null : record.substring(valueStart + 2);
+
+		Channel channel = config.getChannel(channelName);
+		if (change == ChannelChange.ADDED) {
+			if (channel == null) {
+				config.addChannel(new Channel(context, channelName));
+			}
+			return;
+		}
+		if (channel == null) {
+			// the channel was removed later on
+			return;
+		}
+
+		switch (change) {
+			case REMOVED:
+				config.removeChannel(channel);
+				break;
+			case TOPIC:
+				channel.setTopic(value);
+				break;
+			case KEY:
+				channel.setKey(value);
+				break;
+			case FOUNDER:
+				channel.setFounder(value);
+				break;
+			case STATIC:
+				channel.setStatic(Misc.strToBool(value));
+				break;
+			case OPERATOR_ADDED:
+				if (!channel.isOperator(value)) {
+					channel.addOperator(value);
+				}
+				break;
+			case OPERATOR_REMOVED:
+				channel.removeOperator(value);
+				break;
+			case ANTISPAM:
+				channel.setAntiSpam(Misc.strToBool(value));
+				break;
+			case ANTISPAM_SETTINGS:
+				channel.setAntiSpamSettings((value == null) ? null : SpamSettings.fromProtocolString(value));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown change: " + change);
+		}
+	}
+
+	/**
+	 * Drops all journal records that are contained in the snapshot
+	 * just written.
+	 * Changes are only blocked while the journal is swapped for an empty
+	 * one; the records made since the snapshot are then filtered out of the
+	 * retired journal.
+	 */
+	private void compact(long snapshotRevision) {
+
+		File retired = retiredFile(journalFile);
+		if (retired.exists() && (filter(retired, snapshotRevision) > 0)) {
+			// still needed, and it has to stay ahead of the current journal
+			logger.debug("Postponing config journal compaction; {} still has records after the snapshot", retired);
+			return;
+		}
+
+		synchronized (journalLock) {
+			closeJournal();
+			boolean swapped = !journalFile.exists() || journalFile.renameTo(retired);
+			if (swapped) {
+				journalRecords = 0;
+			} else {
+				logger.error("Failed to retire the config journal: " + journalFile);
+			}
+			openJournal();
+			if (!swapped) {
+				return;
+			}
+		}
+
+		int kept = filter(retired, snapshotRevision);
+		synchronized (journalLock) {
+			journalRecords += kept;
+		}
+		logger.debug("Compacted the config journal; {} records left", kept);
+	}
+
+	/**
+	 * Drops all records not newer than a revision from a journal file,
+	 * and deletes the file if none are left.
+	 * @return the number of records left; on failure, the file is left
+	 *   untouched, and its number of records returned
+	 */
+	private int filter(File file, long revision) {
+
+		File temp = new File(file.getPath() + ".tmp");
+		BufferedReader in = null;
+		FileOutputStream outStream = null;
+		Writer out = null;
+		int kept = 0;
+		int total = 0;
+		try {
+			outStream = new FileOutputStream(temp);
+			out = new BufferedWriter(new OutputStreamWriter(outStream, "UTF-8"));
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String record;
+			while ((record = in.readLine()) != null) {
+				total++;
+				try {
+					if (parseRevision(record) > revision) {
+						out.write(record);
+						out.write('\n');
+						kept++;
+					}
+				} catch (RuntimeException ex) {
+					logger.warn("Dropping malformed config journal record: " + record, ex);
+				}
+			}
+			in.close();
+			in = null;
+			out.flush();
+			outStream.getFD().sync();
+			out.close();
+			out = null;
+			if (kept == 0) {
+				if (!file.delete()) {
+					throw new IOException("Failed to delete " + file);
+				}
+				temp.delete();
+			} else if (!Misc.replaceFile(temp, file)) {
+				throw new IOException("Failed to replace " + file + " with " + temp);
+			}
+			return kept;
+		} catch (IOException ex) {
+			// not fatal; the old journal is still valid on top of the new snapshot
+			logger.error("Failed to compact the config journal: " + file, ex);
+			return total;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) {
+					logger.warn("Failed to close the config journal.", ex);
+				}
+			}
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {
+					logger.warn("Failed to close the new config journal.", ex);
+				}
+			}
+		}
+	}
+
+	private void openJournal() {
+
+		try {
+			journalStream = new FileOutputStream(journalFile, true);
+			journal = new BufferedWriter(new OutputStreamWriter(journalStream, "UTF-8"));
+		} catch (IOException ex) {
+			logger.error("Failed to open the config journal: " + journalFile + "; changes will only be saved with full snapshots", ex);
+			journal = null;
+			journalStream = null;
+		}
+	}
+
+	private void closeJournal() {
+
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException ex) {
+				logger.warn("Failed to close the config journal.", ex);
+			}
+			journal = null;
+			journalStream = null;
+		}
+	}
+}
@@ -103,7 +103,7 @@ public class LegacyConfigStorage implements ConfigStorage {
 						spamSettings = SpamSettings.DEFAULT_SETTINGS;
 					}
 					chan.setAntiSpamSettings(spamSettings);
-					config.getChannels().add(chan);
+					config.addChannel(chan);
 					// apply anti-spam settings:
 					context.getAntiSpamSystem().setSpamSettingsForChannel(chan.getName(), chan.getAntiSpamSettings());
 				}
@@ -136,7 +136,7 @@ public class LegacyConfigStorage implements ConfigStorage {
 						spamSettings = SpamSettings.DEFAULT_SETTINGS;
 					}
 					chan.setAntiSpamSettings(spamSettings);
-					config.getChannels().add(chan);
+					config.addChannel(chan);
 					// load this channel's operator list:
 					node2 = node.getFirstChild();
 					while (node2 != null) {
@@ -183,10 +183,10 @@ public class LegacyConfigStorage implements ConfigStorage {
 	}
 
 	@Override
-	public void saveConfig(String fileName) {
+	public boolean saveConfig(Configuration configuration, String fileName) {
 
 		ChanServ chanServ = context.getChanServ();
-		Configuration config = context.getConfiguration();
+		Configuration config = configuration.snapshot();
 
 		try {
 			XPath xpath = XPathFactory.newInstance().newXPath();
@@ -204,7 +204,7 @@ public class LegacyConfigStorage implements ConfigStorage {
 				if (root == null) {
 					logger.error("Bad XML document. Path config/channels/static does not exist. Exiting ...");
 					chanServ.closeAndExit(1);
-					return; // never reached
+					return false; // never reached
 				}
 
 				// delete all static channels:
@@ -240,7 +240,7 @@ public class LegacyConfigStorage implements ConfigStorage {
 				if (root == null) {
 					logger.error("Bad XML document. Path config/channels/registered does not exist. Exiting ...");
 					chanServ.closeAndExit(1);
-					return; // never reached
+					return false; // never reached
 				}
 
 				// delete all channels:
@@ -288,6 +288,7 @@ public class LegacyConfigStorage implements ConfigStorage {
 			} catch (XPathExpressionException ex) {
 				logger.error("Failed parsing legacy config file", ex);
 				chanServ.closeAndExit(1);
+				return false;
 			}
 
 			// ok save it now:
@@ -303,6 +304,8 @@ public class LegacyConfigStorage implements ConfigStorage {
 			logger.debug("Config file saved to {}", fileName);
 		} catch (Exception ex) {
 			logger.error("Unable to save config file to " + fileName + "! Ignoring ...", ex);
+			return false;
 		}
+		return true;
 	}
 }
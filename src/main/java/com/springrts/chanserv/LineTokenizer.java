@@ -0,0 +1,285 @@
+
+package com.springrts.chanserv;
+
+
+/**
+ * A reusable, read-only view on a single protocol line, split up into
+ * space separated tokens.
+ * Instead of creating sub-strings, only the offsets of the tokens within the
+ * original line are stored. Sub-strings are only created on demand, and the
+ * internal arrays are reused for the next line, so tokenizing a line does not
+ * allocate anything in the common case.
+ *
+ * Tokenizing is equivalent to <code>line.trim().split(" ")</code>, and
+ * {@link #rest(int)} is equivalent to {@link Misc#makeSentence(String[], int)}
+ * on the result of that.
+ *
+ * Instances are not thread-safe; each thread should use its own.
+ * @author hoijui
+ */
+public class LineTokenizer {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private String line;
+	/** index of the first character of the trimmed line */
+	private int begin;
+	/** index after the last character of the trimmed line */
+	private int end;
+	private int size;
+	private int[] starts;
+	private int[] ends;
+	/** sub-strings that were already requested, for reuse */
+	private String[] tokens;
+
+	public LineTokenizer() {
+
+		this.line = "";
+		this.begin = 0;
+		this.end = 0;
+		this.size = 0;
+		this.starts = new int[INITIAL_CAPACITY];
+		this.ends = new int[INITIAL_CAPACITY];
+		this.tokens = new String[INITIAL_CAPACITY];
+	}
+
+	public LineTokenizer(String line) {
+
+		this();
+		reset(line);
+	}
+
+	/**
+	 * Tokenizes a new line, replacing the previous one.
+	 * @return this
+	 */
+	public LineTokenizer reset(String line) {
+
+		for (int i = 0; i < size; i++) {
+			tokens[i] = null;
+		}
+
+		this.line = line;
+		begin = 0;
+		end = line.length();
+		while ((begin < end) && (line.charAt(begin) <= ' ')) {
+			begin++;
+		}
+		while ((end > begin) && (line.charAt(end - 1) <= ' ')) {
+			end--;
+		}
+
+		size = 0;
+		if (begin == end) {
+			return this;
+		}
+		int tokenStart = begin;
+		for (int i = begin; i < end; i++) {
+			if (line.charAt(i) == ' ') {
+				addToken(tokenStart, i);
+				tokenStart = i + 1;
+			}
+		}
+		addToken(tokenStart, end);
+
+		return this;
+	}
+
+	private void addToken(int start, int stop) {
+
+		if (size == starts.length) {
+			int newCapacity = starts.length * 2;
+			int[] newStarts = new int[newCapacity];
+			int[] newEnds = new int[newCapacity];
+			String[] newTokens = new String[newCapacity];
+			System.arraycopy(starts, 0, newStarts, 0, size);
+			System.arraycopy(ends, 0, newEnds, 0, size);
+			System.arraycopy(tokens, 0, newTokens, 0, size);
+			starts = newStarts;
+			ends = newEnds;
+			tokens = newTokens;
+		}
+		starts[size] = start;
+		ends[size] = stop;
+		size++;
+	}
+
+	/** Returns the original, untrimmed line */
+	public String getLine() {
+		return line;
+	}
+
+	/** Whether the line consists of white-space only */
+	public boolean isEmpty() {
+		return (size == 0);
+	}
+
+	/** Number of tokens in the line */
+	public int size() {
+		return size;
+	}
+
+	/** Returns the index of the first character of a token within the line */
+	public int start(int index) {
+		checkIndex(index);
+		return starts[index];
+	}
+
+	/** Returns the index after the last character of a token within the line */
+	public int end(int index) {
+		checkIndex(index);
+		return ends[index];
+	}
+
+	/** Returns the length of a token */
+	public int length(int index) {
+		checkIndex(index);
+		return ends[index] - starts[index];
+	}
+
+	/** Returns a character of a token */
+	public char charAt(int index, int pos) {
+
+		checkIndex(index);
+		if ((pos < 0) || (pos >= (ends[index] - starts[index]))) {
+			throw new IndexOutOfBoundsException("Invalid char position " + pos + " in token " + index);
+		}
+		return line.charAt(starts[index] + pos);
+	}
+
+	/** Returns a token as a string; the sub-string is created only once */
+	public String get(int index) {
+
+		checkIndex(index);
+		String token = tokens[index];
+		if (token == null) {
+			token = line.substring(starts[index], ends[index]);
+			tokens[index] = token;
+		}
+		return token;
+	}
+
+	/**
+	 * Returns the rest of the line, starting at a token.
+	 * @return <code>""</code> if there is no such token
+	 */
+	public String rest(int index) {
+
+		if (index >= size) {
+			return "";
+		}
+		return line.substring(starts[index], end);
+	}
+
+	/** Compares a token with a string, without creating a sub-string */
+	public boolean equals(int index, String str) {
+
+		checkIndex(index);
+		int len = ends[index] - starts[index];
+		return (len == str.length()) && line.regionMatches(starts[index], str, 0, len);
+	}
+
+	/**
+	 * Compares a token with a string, ignoring case,
+	 * without creating a sub-string.
+	 */
+	public boolean equalsIgnoreCase(int index, String str) {
+
+		checkIndex(index);
+		int len = ends[index] - starts[index];
+		return (len == str.length()) && line.regionMatches(true, starts[index], str, 0, len);
+	}
+
+	/**
+	 * Parses a token as a decimal integer, without creating a sub-string.
+	 * @see #parseInt(int, int)
+	 */
+	public int parseInt(int index) {
+		return parseInt(index, 0);
+	}
+
+	/**
+	 * Parses part of a token as a decimal integer,
+	 * without creating a sub-string.
+	 * @param index the token to parse
+	 * @param offset number of characters to skip at the start of the token
+	 * @throws NumberFormatException if the token is not a valid integer
+	 */
+	public int parseInt(int index, int offset) {
+
+		checkIndex(index);
+		int pos = starts[index] + offset;
+		int stop = ends[index];
+		if (pos >= stop) {
+			throw new NumberFormatException("Empty number in token " + index);
+		}
+
+		boolean negative = false;
+		char first = line.charAt(pos);
+		if ((first == '-') || (first == '+')) {
+			negative = (first == '-');
+			pos++;
+			if (pos == stop) {
+				throw new NumberFormatException("Invalid number: " + line.substring(starts[index], stop));
+			}
+		}
+
+		// accumulate negatively, to be able to represent Integer.MIN_VALUE
+		long result = 0;
+		for (; pos < stop; pos++) {
+			int digit = Character.digit(line.charAt(pos), 10);
+			if (digit < 0) {
+				throw new NumberFormatException("Invalid number: " + line.substring(starts[index], stop));
+			}
+			result = result * 10 - digit;
+			if (result < Integer.MIN_VALUE) {
+				throw new NumberFormatException("Number out of range: " + line.substring(starts[index], stop));
+			}
+		}
+		if (!negative) {
+			if (result == Integer.MIN_VALUE) {
+				throw new NumberFormatException("Number out of range: " + line.substring(starts[index], stop));
+			}
+			result = -result;
+		}
+
+		return (int) result;
+	}
+
+	/**
+	 * Calculates a case-insensitive hash code of a token,
+	 * which equals <code>get(index).toUpperCase().hashCode()</code>
+	 * for ASCII tokens.
+	 */
+	public int hashCodeIgnoreCase(int index) {
+
+		checkIndex(index);
+		int hash = 0;
+		for (int i = starts[index]; i < ends[index]; i++) {
+			hash = 31 * hash + Character.toUpperCase(line.charAt(i));
+		}
+		return hash;
+	}
+
+	/** Returns all the tokens, like <code>line.trim().split(" ")</code> */
+	public String[] toArray() {
+
+		String[] result = new String[size];
+		for (int i = 0; i < size; i++) {
+			result[i] = get(i);
+		}
+		return result;
+	}
+
+	private void checkIndex(int index) {
+
+		if ((index < 0) || (index >= size)) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return line.substring(begin, end);
+	}
+}
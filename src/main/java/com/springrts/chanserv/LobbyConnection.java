@@ -0,0 +1,48 @@
+
+package com.springrts.chanserv;
+
+/**
+ * The line based connection to the lobby server.
+ * @author hoijui
+ */
+public interface LobbyConnection {
+
+	/** Receives the lines read from the lobby server. */
+	public static interface LineHandler {
+
+		/** Processes a single line, without the line terminator */
+		public void lineReceived(String line);
+	}
+
+	/**
+	 * Connects to the lobby server.
+	 * @return <code>false</code> if connecting failed
+	 */
+	public boolean connect(String address, int port);
+
+	/**
+	 * Queues a line to be sent to the server.
+	 * Multiple threads may call this method; it does not wait for the line
+	 * to be actually sent.
+	 */
+	public void sendLine(String line);
+
+	/**
+	 * Waits until all the lines queued so far were sent to the server,
+	 * but no longer than the given time.
+	 * @return <code>false</code> if not all lines were sent in time
+	 */
+	public boolean flush(long timeoutMillis);
+
+	/**
+	 * Reads lines from the server, and hands them to the handler one by one,
+	 * until the connection is closed.
+	 */
+	public void readLines(LineHandler handler);
+
+	/** Closes the connection, which also ends {@link #readLines(LineHandler)} */
+	public void close();
+
+	/** Whether we are currently connected to the server */
+	public boolean isOpen();
+}
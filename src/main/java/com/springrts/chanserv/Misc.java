@@ -6,13 +6,13 @@ package com.springrts.chanserv;
 
 
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.Semaphore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -131,27 +131,19 @@ public class Misc {
 		return true;
 	}
 
-	private static Semaphore logToDiskLock = new Semaphore(1, true);
-	/** folder where log files are put */
-	private static final String LOG_FOLDER = "./log";
 	/**
-	 * Timestamp is automatically added in front of the line.
-	 * @param fname file name without path ("./logs" path is automatically added).
+	 * Replaces a file with an other one, as atomically as the platform allows.
+	 * @param source the new file, which will be gone afterwards
+	 * @param target the file to replace
+	 * @return <code>false</code> if the file could not be replaced
 	 */
-	private static boolean logToFile(String fname, String text, boolean newLine) {
+	public static boolean replaceFile(File source, File target) {
 
-		try {
-			logToDiskLock.acquire();
-			return Misc.appendTextToFile(LOG_FOLDER + "/" + fname, Misc.getUnixTimestamp() + " " + text, newLine);
-		} catch (InterruptedException e) {
-			return false;
-		} finally {
-			logToDiskLock.release();
+		if (source.renameTo(target)) {
+			return true;
 		}
-	}
-
-	public static boolean logToFile(String fname, String text) {
-		return logToFile(fname, text, true);
+		// some platforms (Windows) do not allow renaming onto an existing file
+		return target.delete() && source.renameTo(target);
 	}
 
 	/** Creates a string consisting of the specified amount of spaces */
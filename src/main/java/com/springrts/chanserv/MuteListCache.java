@@ -0,0 +1,347 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the mute lists of channels, as sent by the lobby server,
+ * and forwards them to the users who requested them.
+ *
+ * A cached list is used for a while, as long as ChanServ did not mute or
+ * unmute anyone in that channel in the meantime; unmuting removes the
+ * entry right away, while muting makes us fetch the list again, as only
+ * the lobby server knows the exact mute duration.
+ * Requests for the same channel arriving while a list is being fetched,
+ * share that fetch.
+ * Requests for which no list arrived in time, and lists no longer usable,
+ * are dropped by deadlines on the {@link Scheduler}.
+ *
+ * The list is sent in pages of at most {@link #PAGE_SIZE} entries, with
+ * multiple entries per line.
+ * @author hoijui
+ */
+public class MuteListCache {
+
+	/** How long a fetched mute list is used, in milliseconds */
+	private static final long TIME_TO_LIVE = 60000;
+	/** How long to wait for the lobby server to send a list, in milliseconds */
+	private static final long REQUEST_TIMEOUT = 10000;
+	/** Maximum number of entries sent per request */
+	public static final int PAGE_SIZE = 30;
+	/** Maximum length of the entries part of a line sent to the user */
+	private static final int LINE_LENGTH = 300;
+
+	/** "&lt;username&gt;, &lt;seconds&gt; seconds remaining..." */
+	private static final Pattern TIMED_ENTRY = Pattern.compile("^(\\S+), (\\d+) seconds remaining(.*)$");
+	/** "&lt;username&gt;, indefinite time remaining..." */
+	private static final Pattern INDEFINITE_ENTRY = Pattern.compile("^(\\S+), indefinite time remaining(.*)$");
+
+	/** A single mute, as sent by the lobby server */
+	private static class Entry {
+
+		private final String username;
+		/**
+		 * When the mute ends, see {@link System#currentTimeMillis()};
+		 * <code>-1</code> if it does not
+		 */
+		private final long expires;
+		/** The rest of the description after the remaining time */
+		private final String rest;
+		/**
+		 * The description as sent by the lobby server, if we could not
+		 * parse it; <code>null</code> otherwise
+		 */
+		private final String raw;
+
+		Entry(String username, long expires, String rest, String raw) {
+
+			this.username = username;
+			this.expires = expires;
+			this.rest = rest;
+			this.raw = raw;
+		}
+
+		static Entry parse(String description, long now) {
+
+			Matcher timed = TIMED_ENTRY.matcher(description);
+			if (timed.matches()) {
+				try {
+					long seconds = Long.parseLong(timed.group(2));
+					return new Entry(timed.group(1), now + (seconds * 1000), timed.group(3), null);
+				} catch (NumberFormatException ex) {
+					// keep it as it is
+				}
+			}
+			Matcher indefinite = INDEFINITE_ENTRY.matcher(description);
+			if (indefinite.matches()) {
+				return new Entry(indefinite.group(1), -1, indefinite.group(2), null);
+			}
+			// unknown format; keep it as it is
+			int nameEnd = description.indexOf(',');
+			String username = (nameEnd == -1) ? description : description.substring(0, nameEnd);
+			return new Entry(username, -1, "", description);
+		}
+
+		boolean isExpired(long now) {
+			return (expires != -1) && (expires <= now);
+		}
+
+		String describe(long now) {
+
+			if (raw != null) {
+				return raw;
+			} else if (expires == -1) {
+				return username + ", indefinite time remaining" + rest;
+			} else {
+				return username + ", " + Math.max(0, (expires - now) / 1000) + " seconds remaining" + rest;
+			}
+		}
+	}
+
+	/** The mute list of a single channel */
+	private static class ChannelMutes {
+
+		private List<Entry> entries = null;
+		/** When the entries were fetched; see {@link System#currentTimeMillis()} */
+		private long fetched = 0;
+		/** whether someone got muted since the list was fetched */
+		private boolean stale = false;
+		/** When the current fetch was started; <code>-1</code> if none */
+		private long fetching = -1;
+		private final List<MuteListRequest> waiting = new LinkedList<MuteListRequest>();
+
+		boolean isUsable(long now) {
+			return (entries != null) && !stale && ((now - fetched) < TIME_TO_LIVE);
+		}
+	}
+
+	private final Context context;
+	/** Mute lists by channel name */
+	private final Map<String, ChannelMutes> channels;
+
+	/** The channel whose mute list the lobby server is currently sending */
+	private String receivingChannel;
+	private List<Entry> receivingEntries;
+
+	private final Counter fetches;
+	private final Counter hits;
+	private final Counter expired;
+
+	public MuteListCache(Context context) {
+
+		this.context = context;
+		this.channels = new HashMap<String, ChannelMutes>();
+		this.receivingChannel = null;
+		this.receivingEntries = new ArrayList<Entry>();
+		this.fetches = context.getMetrics().counter("mutelist.fetches");
+		this.hits = context.getMetrics().counter("mutelist.cached");
+		this.expired = context.getMetrics().counter("mutelist.expired");
+	}
+
+	private ChannelMutes getChannelMutes(String channelName) {
+
+		ChannelMutes mutes = channels.get(channelName);
+		if (mutes == null) {
+			mutes = new ChannelMutes();
+			channels.put(channelName, mutes);
+		}
+		return mutes;
+	}
+
+	/**
+	 * Forwards the mute list of a channel to a user, either from the cache,
+	 * or once it arrived from the lobby server.
+	 */
+	public synchronized void request(MuteListRequest request) {
+
+		long now = request.getRequestTime();
+		ChannelMutes mutes = getChannelMutes(request.getChannelName());
+		if (mutes.isUsable(now)) {
+			hits.increment();
+			forward(request, mutes.entries, now);
+			return;
+		}
+
+		mutes.waiting.add(request);
+		if (mutes.fetching == -1) {
+			final String channelName = request.getChannelName();
+			final long fetching = now;
+			mutes.fetching = fetching;
+			fetches.increment();
+			context.getChanServ().sendLine("MUTELIST " + channelName);
+			context.getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					expireFetch(channelName, fetching);
+				}
+			}, REQUEST_TIMEOUT);
+		}
+	}
+
+	/** Has to be called when ChanServ mutes a user in a channel */
+	public synchronized void muted(String channelName, String username) {
+
+		ChannelMutes mutes = channels.get(channelName);
+		if (mutes != null) {
+			mutes.stale = true;
+		}
+	}
+
+	/** Has to be called when ChanServ unmutes a user in a channel */
+	public synchronized void unmuted(String channelName, String username) {
+
+		ChannelMutes mutes = channels.get(channelName);
+		if ((mutes != null) && (mutes.entries != null)) {
+			Iterator<Entry> entries = mutes.entries.iterator();
+			while (entries.hasNext()) {
+				if (entries.next().username.equals(username)) {
+					entries.remove();
+				}
+			}
+		}
+	}
+
+	/** The lobby server starts sending the mute list of a channel */
+	public synchronized void beginReceiving(String channelName) {
+
+		receivingChannel = channelName;
+		receivingEntries = new ArrayList<Entry>();
+	}
+
+	/** The lobby server sent an entry of the mute list */
+	public synchronized void entryReceived(String description) {
+		receivingEntries.add(Entry.parse(description, System.currentTimeMillis()));
+	}
+
+	/**
+	 * The lobby server finished sending the mute list;
+	 * forwards it to everyone waiting for it.
+	 */
+	public synchronized void endReceiving() {
+
+		if (receivingChannel == null) {
+			return;
+		}
+
+		final String channelName = receivingChannel;
+		final long now = System.currentTimeMillis();
+		ChannelMutes mutes = getChannelMutes(channelName);
+		mutes.entries = receivingEntries;
+		mutes.fetched = now;
+		mutes.stale = false;
+		mutes.fetching = -1;
+		for (MuteListRequest request : mutes.waiting) {
+			forward(request, mutes.entries, now);
+		}
+		mutes.waiting.clear();
+		context.getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				forget(channelName, now);
+			}
+		}, TIME_TO_LIVE);
+
+		receivingChannel = null;
+		receivingEntries = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Drops the requests waiting for a list, if the lobby server did not
+	 * send it in time.
+	 * @param fetching when the fetch was started
+	 */
+	private synchronized void expireFetch(String channelName, long fetching) {
+
+		ChannelMutes mutes = channels.get(channelName);
+		if ((mutes == null) || (mutes.fetching != fetching)) {
+			// the list arrived in time
+			return;
+		}
+		mutes.fetching = -1;
+		for (MuteListRequest request : mutes.waiting) {
+			expired.increment();
+			Client target = context.getChanServ().getClient(request.getSendTo());
+			if (target != null) {
+				context.getChanServ().sendMessage(target,
+						context.getChanServ().getChannel(request.getReplyToChan()),
+						"Error: Did not receive the mute list for #" + channelName + " in time.");
+			}
+		}
+		mutes.waiting.clear();
+		if (!mutes.isUsable(System.currentTimeMillis())) {
+			channels.remove(channelName);
+		}
+	}
+
+	/**
+	 * Forgets a list once it is too old to be used.
+	 * @param fetched when the list was fetched
+	 */
+	private synchronized void forget(String channelName, long fetched) {
+
+		ChannelMutes mutes = channels.get(channelName);
+		if ((mutes != null) && (mutes.fetched == fetched) && (mutes.fetching == -1)) {
+			channels.remove(channelName);
+		}
+	}
+
+	/** Sends the requested page of a mute list */
+	private void forward(MuteListRequest request, List<Entry> allEntries, long now) {
+
+		Client target = context.getChanServ().getClient(request.getSendTo());
+		if (target == null) {
+			// user who made the request has already gone offline!
+			return;
+		}
+		Channel replyTo = context.getChanServ().getChannel(request.getReplyToChan());
+
+		List<Entry> entries = new ArrayList<Entry>(allEntries.size());
+		for (Entry entry : allEntries) {
+			if (!entry.isExpired(now)) {
+				entries.add(entry);
+			}
+		}
+
+		if (entries.isEmpty()) {
+			context.getChanServ().sendMessage(target, replyTo, "Mute list for #" + request.getChannelName() + " is empty!");
+			return;
+		}
+
+		int pages = (entries.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+		int page = Math.max(1, Math.min(request.getPage(), pages));
+		String header = "Mute list for #" + request.getChannelName() + " (" + entries.size() + " entries";
+		if (pages > 1) {
+			header += ", page " + page + " of " + pages;
+		}
+		context.getChanServ().sendMessage(target, replyTo, header + "):");
+
+		StringBuilder line = new StringBuilder(LINE_LENGTH + 64);
+		int last = Math.min(page * PAGE_SIZE, entries.size());
+		for (int e = (page - 1) * PAGE_SIZE; e < last; e++) {
+			String description = entries.get(e).describe(now);
+			if ((line.length() > 0) && ((line.length() + description.length()) > LINE_LENGTH)) {
+				context.getChanServ().sendMessage(target, replyTo, line.toString());
+				line.setLength(0);
+			}
+			if (line.length() > 0) {
+				line.append("; ");
+			}
+			line.append(description);
+		}
+		if (line.length() > 0) {
+			context.getChanServ().sendMessage(target, replyTo, line.toString());
+		}
+		if (page < pages) {
+			context.getChanServ().sendMessage(target, replyTo, "For the next page, add " + (page + 1) + " to the command.");
+		}
+	}
+}
@@ -20,13 +20,24 @@ public class MuteListRequest {
 	 * who requested the mute list (via private message).
 	 */
 	private String replyToChan;
+	/** Page of the mute list to send, starting with 1 */
+	private int page;
 
-	public MuteListRequest(String chanName, String sendTo, long requestTime, String replyToChan) {
+	public MuteListRequest(String chanName, String sendTo, long requestTime, String replyToChan, int page) {
 
 		this.channelName = chanName;
 		this.sendTo = sendTo;
 		this.requestTime = requestTime;
 		this.replyToChan = replyToChan;
+		this.page = page;
+	}
+
+	/**
+	 * Page of the mute list to send, starting with 1
+	 * @return the page
+	 */
+	public int getPage() {
+		return page;
 	}
 
 	/**
@@ -0,0 +1,241 @@
+
+package com.springrts.chanserv;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection to the lobby server based on a {@link SocketChannel}.
+ *
+ * Outgoing lines are queued in an {@link OutboundQueue}, and written by a
+ * dedicated writer thread, which encodes all the lines it may send at that
+ * time into a single buffer, and writes them with as few system calls as
+ * possible.
+ * Incoming data is read into a reusable buffer and decoded as UTF-8
+ * explicitly.
+ * @author hoijui
+ */
+public class NioLobbyConnection implements LobbyConnection {
+
+	private static final Logger logger = LoggerFactory.getLogger(NioLobbyConnection.class);
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final String LINE_TERMINATOR = "\n";
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final OutboundQueue outQueue;
+	private volatile SocketChannel channel;
+	private Thread writerThread;
+
+	public NioLobbyConnection(OutboundQueue outQueue) {
+
+		this.outQueue = outQueue;
+		this.channel = null;
+		this.writerThread = null;
+	}
+
+	@Override
+	public boolean connect(String address, int port) {
+
+		try {
+			channel = SocketChannel.open(new InetSocketAddress(address, port));
+			channel.configureBlocking(true);
+			// we do our own coalescing of lines
+			channel.socket().setTcpNoDelay(true);
+		} catch (IOException ex) {
+			logger.error("Could not get I/O for the connection to: " + address, ex);
+			close();
+			return false;
+		}
+
+		outQueue.clear();
+		writerThread = new Thread(new Writer(channel), "LobbyConnectionWriter");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		return true;
+	}
+
+	@Override
+	public void sendLine(String line) {
+		outQueue.add(line);
+	}
+
+	@Override
+	public boolean flush(long timeoutMillis) {
+
+		if (!isOpen()) {
+			return false;
+		}
+		try {
+			return outQueue.awaitSent(timeoutMillis);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+
+		SocketChannel currentChannel = channel;
+		return (currentChannel != null) && currentChannel.isOpen();
+	}
+
+	@Override
+	public void close() {
+
+		SocketChannel currentChannel = channel;
+		if (currentChannel != null) {
+			try {
+				currentChannel.close();
+			} catch (IOException ex) {
+				logger.debug("Failed to close the connection to the lobby server", ex);
+			}
+		}
+		if (writerThread != null) {
+			writerThread.interrupt();
+			writerThread = null;
+		}
+		outQueue.clear();
+	}
+
+	@Override
+	public void readLines(LineHandler handler) {
+
+		SocketChannel currentChannel = channel;
+		CharsetDecoder decoder = CHARSET.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+		CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+		StringBuilder line = new StringBuilder(256);
+
+		try {
+			while (currentChannel.read(bytes) != -1) {
+				bytes.flip();
+				CoderResult result;
+				do {
+					result = decoder.decode(bytes, chars, false);
+					chars.flip();
+					splitLines(chars, line, handler);
+					chars.clear();
+				} while (result.isOverflow());
+				bytes.compact();
+			}
+		} catch (IOException ex) {
+			if (currentChannel.isOpen()) {
+				logger.error("Connection with server closed with exception.", ex);
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Hands all complete lines in <code>chars</code> to the handler,
+	 * and keeps the incomplete rest in <code>line</code>.
+	 */
+	private static void splitLines(CharBuffer chars, StringBuilder line, LineHandler handler) {
+
+		char[] array = chars.array();
+		int start = chars.arrayOffset() + chars.position();
+		int end = chars.arrayOffset() + chars.limit();
+		for (int i = start; i < end; i++) {
+			if (array[i] == '\n') {
+				line.append(array, start, i - start);
+				int length = line.length();
+				if ((length > 0) && (line.charAt(length - 1) == '\r')) {
+					line.setLength(length - 1);
+				}
+				String completeLine = line.toString();
+				line.setLength(0);
+				handler.lineReceived(completeLine);
+				start = i + 1;
+			}
+		}
+		line.append(array, start, end - start);
+	}
+
+	/** Writes the queued lines to the server, as long as the channel is open */
+	private class Writer implements Runnable {
+
+		private final SocketChannel writeChannel;
+		private final CharsetEncoder encoder;
+		private final ByteBuffer buffer;
+
+		Writer(SocketChannel writeChannel) {
+
+			this.writeChannel = writeChannel;
+			this.encoder = CHARSET.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		@Override
+		public void run() {
+
+			List<String> pending = new ArrayList<String>();
+			try {
+				while (writeChannel.isOpen()) {
+					outQueue.take(pending);
+					for (String line : pending) {
+						encode(line);
+						encode(LINE_TERMINATOR);
+					}
+					int lines = pending.size();
+					pending.clear();
+					flush();
+					outQueue.sent(lines);
+				}
+			} catch (InterruptedException ex) {
+				// the connection is being closed
+			} catch (IOException ex) {
+				if (writeChannel.isOpen()) {
+					logger.error("Failed to send to the lobby server", ex);
+					close();
+				}
+			}
+		}
+
+		private void encode(String text) throws IOException {
+
+			CharBuffer chars = CharBuffer.wrap(text);
+			encoder.reset();
+			while (true) {
+				CoderResult result = encoder.encode(chars, buffer, true);
+				if (result.isOverflow()) {
+					flush();
+				} else {
+					break;
+				}
+			}
+			while (encoder.flush(buffer).isOverflow()) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				writeChannel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,316 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import com.springrts.chanserv.metrics.Gauge;
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Lines waiting to be sent to the lobby server.
+ *
+ * Every line is put into one of several lanes, by its command; lines in
+ * a lane of higher priority are always sent first, so for example a PING
+ * never waits behind chat output.
+ * A line only overtakes lines for other targets though: if lines for the
+ * same channel or user are still waiting in a lane of lower priority, it is
+ * put behind them, so for example a notice to a channel is sent before
+ * leaving it.
+ * Sending is governed by a token bucket, so we stay below the flood limit
+ * of the lobby server: each sent byte takes a token, and tokens are
+ * refilled at a fixed rate, up to the burst size.
+ * Under overload, chat lines are dropped, while all others are kept.
+ * @see OutboundSettings
+ * @author hoijui
+ */
+public class OutboundQueue {
+
+	/** Lanes, from highest to lowest priority */
+	public static enum Lane {
+		/** Keep-alive, login and joining or leaving channels */
+		SESSION,
+		/** Moderation actions, like muting or kicking */
+		MODERATION,
+		/** Queries on behalf of remote access clients */
+		REMOTE,
+		/** Chat output; dropped under overload */
+		CHATTER
+	}
+
+	private static final Map<String, Lane> COMMAND_LANES;
+	static {
+		Map<String, Lane> commandLanes = new HashMap<String, Lane>();
+		commandLanes.put("PING", Lane.SESSION);
+		commandLanes.put("LOGIN", Lane.SESSION);
+		commandLanes.put("JOIN", Lane.SESSION);
+		commandLanes.put("LEAVE", Lane.SESSION);
+		commandLanes.put("MUTE", Lane.MODERATION);
+		commandLanes.put("UNMUTE", Lane.MODERATION);
+		commandLanes.put("MUTELIST", Lane.MODERATION);
+		commandLanes.put("KICKUSER", Lane.MODERATION);
+		commandLanes.put("FORCELEAVECHANNEL", Lane.MODERATION);
+		commandLanes.put("CHANNELTOPIC", Lane.MODERATION);
+		commandLanes.put("SETCHANNELKEY", Lane.MODERATION);
+		commandLanes.put("FORGEMSG", Lane.REMOTE);
+		commandLanes.put("SAY", Lane.CHATTER);
+		commandLanes.put("SAYEX", Lane.CHATTER);
+		commandLanes.put("SAYPRIVATE", Lane.CHATTER);
+		commandLanes.put("CHANNELMESSAGE", Lane.CHATTER);
+		COMMAND_LANES = Collections.unmodifiableMap(commandLanes);
+	}
+
+	/** A line waiting to be sent */
+	private static class Queued {
+
+		private final String line;
+		/** see {@link OutboundQueue#target(String)} */
+		private final String target;
+
+		Queued(String line, String target) {
+
+			this.line = line;
+			this.target = target;
+		}
+	}
+
+	private final List<LinkedList<Queued>> lanes;
+	/**
+	 * Number of lines waiting per lane, for each target that has
+	 * lines waiting
+	 */
+	private final Map<String, int[]> targetDepths;
+	/** Number of lines in all lanes */
+	private int depth;
+	/** Number of lines taken by the writer, but not yet reported as sent */
+	private int inFlight;
+
+	/** bytes per nanosecond; 0 means unlimited */
+	private final double rate;
+	private final double burst;
+	private final int chatterLimit;
+	/** May become negative, if a line was larger than the tokens left */
+	private double tokens;
+	/** When tokens were last refilled, see {@link System#nanoTime()} */
+	private long lastRefill;
+
+	private final Counter dropped;
+
+	public OutboundQueue(OutboundSettings settings, MetricsRegistry metrics) {
+
+		this.lanes = new ArrayList<LinkedList<Queued>>(Lane.values().length);
+		for (int l = 0; l < Lane.values().length; l++) {
+			lanes.add(new LinkedList<Queued>());
+		}
+		this.targetDepths = new HashMap<String, int[]>();
+		this.depth = 0;
+		this.inFlight = 0;
+		this.rate = Math.max(0, settings.getRate()) / 1e9;
+		this.burst = Math.max(1, settings.getBurst());
+		this.chatterLimit = settings.getChatterLimit();
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+		this.dropped = metrics.counter("outbound.dropped");
+
+		metrics.gauge("outbound.queued", new Gauge() {
+			@Override
+			public long getValue() {
+				return getDepth();
+			}
+		});
+		for (final Lane lane : Lane.values()) {
+			metrics.gauge("outbound.queued." + lane.name().toLowerCase(Locale.ENGLISH), new Gauge() {
+				@Override
+				public long getValue() {
+					return getDepth(lane);
+				}
+			});
+		}
+	}
+
+	/** Returns the lane a line to the lobby server belongs to */
+	public static Lane classify(String line) {
+
+		if (line.startsWith("#")) {
+			// has a message ID, so a reply is waited for
+			return Lane.REMOTE;
+		}
+		int commandEnd = line.indexOf(' ');
+		Lane lane = COMMAND_LANES.get((commandEnd == -1) ? line : line.substring(0, commandEnd));
+		return (lane == null) ? Lane.MODERATION : lane;
+	}
+
+	/**
+	 * Returns the channel or user a line is about, or <code>null</code> if
+	 * it is not about one in particular.
+	 * This is the first argument of all commands we know, except PING and
+	 * LOGIN.
+	 */
+	static String target(String line) {
+
+		if (line.startsWith("#")) {
+			return null;
+		}
+		int commandEnd = line.indexOf(' ');
+		if (commandEnd == -1) {
+			return null;
+		}
+		String command = line.substring(0, commandEnd);
+		if (!COMMAND_LANES.containsKey(command) || command.equals("LOGIN")) {
+			return null;
+		}
+		int targetEnd = line.indexOf(' ', commandEnd + 1);
+		return (targetEnd == -1) ? line.substring(commandEnd + 1) : line.substring(commandEnd + 1, targetEnd);
+	}
+
+	/**
+	 * Queues a line for sending.
+	 * @return <code>false</code> if it was dropped, due to overload
+	 */
+	public synchronized boolean add(String line) {
+
+		Lane lane = classify(line);
+		if ((lane == Lane.CHATTER) && (lanes.get(lane.ordinal()).size() >= chatterLimit)) {
+			dropped.increment();
+			return false;
+		}
+
+		String target = target(line);
+		if (target != null) {
+			int[] depths = targetDepths.get(target);
+			if (depths == null) {
+				depths = new int[lanes.size()];
+				targetDepths.put(target, depths);
+			}
+			// do not overtake lines for the same target
+			for (int l = lanes.size() - 1; l > lane.ordinal(); l--) {
+				if (depths[l] > 0) {
+					lane = Lane.values()[l];
+					break;
+				}
+			}
+			depths[lane.ordinal()]++;
+		}
+		lanes.get(lane.ordinal()).add(new Queued(line, target));
+		depth++;
+		notifyAll();
+		return true;
+	}
+
+	/** Keeps track of a line of a target leaving its lane */
+	private void removed(Queued queued, int lane) {
+
+		if (queued.target == null) {
+			return;
+		}
+		int[] depths = targetDepths.get(queued.target);
+		depths[lane]--;
+		for (int d : depths) {
+			if (d > 0) {
+				return;
+			}
+		}
+		targetDepths.remove(queued.target);
+	}
+
+	/**
+	 * Waits until lines may be sent, and then moves as many of them as the
+	 * rate allows into <code>batch</code>, highest priority first.
+	 */
+	public synchronized void take(List<String> batch) throws InterruptedException {
+
+		while (true) {
+			while (depth == 0) {
+				wait();
+			}
+
+			refill();
+			for (int l = 0; l < lanes.size(); l++) {
+				LinkedList<Queued> queue = lanes.get(l);
+				while (!queue.isEmpty() && ((rate == 0) || (tokens > 0))) {
+					Queued queued = queue.poll();
+					removed(queued, l);
+					depth--;
+					inFlight++;
+					if (rate != 0) {
+						// the line terminator needs a byte too
+						tokens -= queued.line.length() + 1;
+					}
+					batch.add(queued.line);
+				}
+			}
+			if (!batch.isEmpty()) {
+				return;
+			}
+
+			// wait until there are tokens again
+			long waitNanos = (long) (-tokens / rate) + 1;
+			wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+		}
+	}
+
+	private void refill() {
+
+		long now = System.nanoTime();
+		if (rate != 0) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate);
+		}
+		lastRefill = now;
+	}
+
+	/**
+	 * Reports that lines previously handed out by
+	 * {@link #take(List)} were written.
+	 */
+	public synchronized void sent(int lines) {
+
+		inFlight = Math.max(0, inFlight - lines);
+		notifyAll();
+	}
+
+	/**
+	 * Waits until all lines queued so far were taken and reported as sent,
+	 * but no longer than the given time.
+	 * @return <code>false</code> if there were still lines left
+	 */
+	public synchronized boolean awaitSent(long timeoutMillis) throws InterruptedException {
+
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while ((depth + inFlight) > 0) {
+			long waitNanos = deadline - System.nanoTime();
+			if (waitNanos <= 0) {
+				return false;
+			}
+			wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+		}
+		return true;
+	}
+
+	/** Drops all lines waiting to be sent */
+	public synchronized void clear() {
+
+		for (LinkedList<Queued> queue : lanes) {
+			queue.clear();
+		}
+		targetDepths.clear();
+		depth = 0;
+		inFlight = 0;
+		notifyAll();
+	}
+
+	/** Returns the number of lines waiting to be sent */
+	public synchronized int getDepth() {
+		return depth;
+	}
+
+	/** Returns the number of lines waiting to be sent in a lane */
+	public synchronized int getDepth(Lane lane) {
+		return lanes.get(lane.ordinal()).size();
+	}
+}
@@ -0,0 +1,67 @@
+package com.springrts.chanserv;
+
+
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * Settings for sending to the lobby server.
+ * @see OutboundQueue
+ * @author hoijui
+ */
+public class OutboundSettings {
+
+	/**
+	 * Average number of bytes sent per second at most;
+	 * 0 means unlimited
+	 */
+	@XmlElement()
+	private int rate;
+	/** Number of bytes that may be sent at once, after being idle */
+	@XmlElement()
+	private int burst;
+	/**
+	 * Maximum number of chat lines waiting to be sent;
+	 * more get dropped
+	 */
+	@XmlElement()
+	private int chatterLimit;
+
+	public OutboundSettings() {
+
+		this.rate = 8192;
+		this.burst = 16384;
+		this.chatterLimit = 1000;
+	}
+
+	OutboundSettings(int rate, int burst, int chatterLimit) {
+
+		this.rate = rate;
+		this.burst = burst;
+		this.chatterLimit = chatterLimit;
+	}
+
+	/**
+	 * Average number of bytes sent per second at most;
+	 * 0 means unlimited
+	 * @return the rate
+	 */
+	public int getRate() {
+		return rate;
+	}
+
+	/**
+	 * Number of bytes that may be sent at once, after being idle
+	 * @return the burst
+	 */
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Maximum number of chat lines waiting to be sent; more get dropped
+	 * @return the chatterLimit
+	 */
+	public int getChatterLimit() {
+		return chatterLimit;
+	}
+}
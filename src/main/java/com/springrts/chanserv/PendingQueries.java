@@ -0,0 +1,327 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import com.springrts.chanserv.metrics.Histogram;
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Correlates the queries remote clients send to the lobby server with the
+ * replies coming back.
+ *
+ * Every query gets a message ID of its own, allocated from a counter, so no
+ * two outstanding queries share an ID, even if they come from the same
+ * remote client.
+ * Each query is a pending entry with a deadline on the {@link Scheduler};
+ * the handler given when registering it is called with the reply, or, if
+ * none arrived in time, notified that the query timed out.
+ *
+ * Replies to read-only queries are cached for a while, and identical
+ * read-only queries in flight at the same time share a single query to the
+ * lobby server.
+ * @author hoijui
+ */
+public class PendingQueries {
+
+	private static final Logger logger = LoggerFactory.getLogger(PendingQueries.class);
+
+	/**
+	 * Returned by {@link #register(RemoteClient, String, int, long, boolean, ReplyHandler)}
+	 * if nothing has to be sent to the lobby server.
+	 */
+	public static final int NO_QUERY = -1;
+
+	/** Handles the reply of the lobby server to a query */
+	public static interface ReplyHandler {
+		/** Called with the first reply line */
+		void replyReceived(String reply);
+		/** Called instead, if no reply arrived before the deadline */
+		void timedOut();
+	}
+
+	/** A remote client waiting for the reply to a query */
+	private static class Waiter {
+
+		private final RemoteClient owner;
+		private final ReplyHandler handler;
+
+		Waiter(RemoteClient owner, ReplyHandler handler) {
+
+			this.owner = owner;
+			this.handler = handler;
+		}
+	}
+
+	private static class PendingQuery {
+
+		private final String command;
+		/** whether the reply may be cached and shared */
+		private final boolean cacheable;
+		/** see {@link QueryCache#getGeneration()} */
+		private final long cacheGeneration;
+		private final List<Waiter> waiters;
+		/** When the query was sent, see {@link System#nanoTime()} */
+		private final long sent;
+		/** in milliseconds */
+		private final long timeout;
+		/** <code>null</code> until the query got its ID */
+		private Scheduler.Handle deadline;
+		/** Number of reply lines still expected */
+		private int remainingLines;
+		private boolean answered;
+		private boolean expired;
+
+		PendingQuery(String command, boolean cacheable, long cacheGeneration, int replyLines, long timeout) {
+
+			this.command = command;
+			this.cacheable = cacheable;
+			this.cacheGeneration = cacheGeneration;
+			this.waiters = new ArrayList<Waiter>(1);
+			this.sent = System.nanoTime();
+			this.timeout = timeout;
+			this.deadline = null;
+			this.remainingLines = replyLines;
+			this.answered = false;
+			this.expired = false;
+		}
+
+		/**
+		 * @return <code>false</code> if the query is answered or expired
+		 *   already, so the waiter has to look elsewhere
+		 */
+		synchronized boolean addWaiter(Waiter waiter) {
+
+			if (answered || expired) {
+				return false;
+			}
+			waiters.add(waiter);
+			return true;
+		}
+	}
+
+	private final AtomicInteger nextId;
+	private final ConcurrentMap<Integer, PendingQuery> pending;
+	/** Cacheable queries in flight, by command */
+	private final ConcurrentMap<String, PendingQuery> inFlight;
+	private final QueryCache cache;
+	private final Scheduler scheduler;
+
+	/** Time from sending a query to the lobby server, until its reply arrived */
+	private final Histogram queryTiming;
+	private final Counter timeouts;
+	private final Counter cacheHits;
+	/** Queries that joined an identical one in flight */
+	private final Counter coalesced;
+
+	public PendingQueries(Scheduler scheduler, MetricsRegistry metrics, QueryCache cache) {
+
+		this.nextId = new AtomicInteger(0);
+		this.pending = new ConcurrentHashMap<Integer, PendingQuery>();
+		this.inFlight = new ConcurrentHashMap<String, PendingQuery>();
+		this.cache = cache;
+		this.scheduler = scheduler;
+		this.queryTiming = metrics.histogram("remote.query");
+		this.timeouts = metrics.counter("remote.query.timeouts");
+		this.cacheHits = metrics.counter("remote.query.cached");
+		this.coalesced = metrics.counter("remote.query.coalesced");
+	}
+
+	/**
+	 * Registers a query that is about to be sent to the lobby server.
+	 * If the query is cacheable, and its reply is cached, the handler is
+	 * called right away; if an identical query is in flight already, the
+	 * handler will get its reply.
+	 * In both cases, nothing has to be sent.
+	 * @param command the query, as sent to the lobby server
+	 * @param replyLines number of lines the lobby server replies with;
+	 *   only the first one is handed to the handler
+	 * @param timeout in milliseconds
+	 * @param cacheable whether the query is read-only,
+	 *   and its reply may be cached
+	 * @return the message ID to send the query with, or {@link #NO_QUERY}
+	 */
+	public int register(RemoteClient owner, String command, int replyLines, long timeout, boolean cacheable, ReplyHandler handler) {
+
+		Waiter waiter = new Waiter(owner, handler);
+		long now = System.currentTimeMillis();
+
+		if (!cacheable) {
+			PendingQuery query = new PendingQuery(command, false, 0, replyLines, timeout);
+			query.addWaiter(waiter);
+			return add(query);
+		}
+
+		while (true) {
+			String cached = cache.get(command, now);
+			if (cached != null) {
+				cacheHits.increment();
+				handler.replyReceived(cached);
+				return NO_QUERY;
+			}
+
+			PendingQuery query = new PendingQuery(command, true, cache.getGeneration(), replyLines, timeout);
+			query.addWaiter(waiter);
+			PendingQuery existing = inFlight.putIfAbsent(command, query);
+			if (existing == null) {
+				return add(query);
+			}
+			if (existing.addWaiter(waiter)) {
+				coalesced.increment();
+				return NO_QUERY;
+			}
+			// it was answered in the meantime; try to take its place
+			if (inFlight.replace(command, existing, query)) {
+				return add(query);
+			}
+		}
+	}
+
+	/** Allocates a message ID for a query, and sets its deadline */
+	private int add(final PendingQuery query) {
+
+		Integer id;
+		do {
+			// stay positive when wrapping around,
+			// and skip IDs still in use after that
+			id = nextId.incrementAndGet() & Integer.MAX_VALUE;
+		} while (pending.putIfAbsent(id, query) != null);
+
+		final int messageId = id;
+		Scheduler.Handle deadline = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expire(messageId, query);
+			}
+		}, query.timeout);
+		synchronized (query) {
+			query.deadline = deadline;
+		}
+
+		return id;
+	}
+
+	/**
+	 * Forgets all cached replies.
+	 * Has to be called whenever a query changes state on the lobby server.
+	 */
+	public void invalidateCache() {
+		cache.invalidate();
+	}
+
+	/**
+	 * Hands a reply line of the lobby server to the query it belongs to.
+	 * @return <code>false</code> if there is no such query (anymore)
+	 */
+	public boolean complete(int id, String reply) {
+
+		PendingQuery query = pending.get(id);
+		if (query == null) {
+			return false;
+		}
+
+		List<Waiter> waiters = null;
+		synchronized (query) {
+			if (query.expired || (query.remainingLines <= 0)) {
+				return false;
+			}
+			if (!query.answered) {
+				query.answered = true;
+				waiters = new ArrayList<Waiter>(query.waiters);
+				query.waiters.clear();
+			}
+			query.remainingLines--;
+			if (query.remainingLines <= 0) {
+				pending.remove(id, query);
+				if (query.deadline != null) {
+					query.deadline.cancel();
+				}
+			}
+		}
+
+		// further lines are only swallowed
+		if (waiters != null) {
+			queryTiming.recordSince(query.sent);
+			if (query.cacheable) {
+				cache.put(query.command, reply, query.cacheGeneration, System.currentTimeMillis());
+				inFlight.remove(query.command, query);
+			}
+			for (Waiter waiter : waiters) {
+				waiter.handler.replyReceived(reply);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets all queries of a remote client,
+	 * for example because it disconnected.
+	 * Queries shared with other clients are still waited for.
+	 */
+	public void cancel(RemoteClient owner) {
+
+		Iterator<PendingQuery> queries = pending.values().iterator();
+		while (queries.hasNext()) {
+			PendingQuery query = queries.next();
+			synchronized (query) {
+				Iterator<Waiter> waiters = query.waiters.iterator();
+				while (waiters.hasNext()) {
+					if (waiters.next().owner == owner) {
+						waiters.remove();
+					}
+				}
+				if (query.waiters.isEmpty() && !query.cacheable) {
+					queries.remove();
+					if (query.deadline != null) {
+						query.deadline.cancel();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes a query whose deadline passed,
+	 * and notifies the handlers still waiting for its reply.
+	 */
+	private void expire(int id, PendingQuery query) {
+
+		List<Waiter> waiters = null;
+		synchronized (query) {
+			query.expired = true;
+			if (!query.answered) {
+				waiters = new ArrayList<Waiter>(query.waiters);
+				query.waiters.clear();
+			}
+		}
+		pending.remove(id, query);
+		if (query.cacheable) {
+			inFlight.remove(query.command, query);
+		}
+		if (waiters != null) {
+			logger.debug("Query {} of a remote client timed out", id);
+			timeouts.increment();
+			for (Waiter waiter : waiters) {
+				try {
+					waiter.handler.timedOut();
+				} catch (RuntimeException ex) {
+					logger.warn("Failed to handle a timed out query", ex);
+				}
+			}
+		}
+	}
+
+	/** Returns the number of queries waiting for a reply */
+	public int size() {
+		return pending.size();
+	}
+}
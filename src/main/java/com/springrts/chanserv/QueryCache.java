@@ -0,0 +1,98 @@
+
+package com.springrts.chanserv;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the replies of the lobby server to read-only queries,
+ * for a limited time.
+ * Holds at most a fixed number of replies; the least recently used ones
+ * are evicted first.
+ * @see PendingQueries
+ * @author hoijui
+ */
+public class QueryCache {
+
+	private static class CachedReply {
+
+		private final String reply;
+		/** see {@link System#currentTimeMillis()} */
+		private final long expires;
+
+		CachedReply(String reply, long expires) {
+
+			this.reply = reply;
+			this.expires = expires;
+		}
+	}
+
+	private final long timeToLive;
+	private final Map<String, CachedReply> entries;
+	/**
+	 * Incremented on every invalidation, so replies to queries sent before
+	 * that can be told apart, and are not cached.
+	 */
+	private long generation;
+
+	/**
+	 * @param maxSize maximum number of replies held
+	 * @param timeToLive in milliseconds
+	 */
+	public QueryCache(final int maxSize, long timeToLive) {
+
+		this.timeToLive = timeToLive;
+		this.entries = new LinkedHashMap<String, CachedReply>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedReply> eldest) {
+				return size() > maxSize;
+			}
+		};
+		this.generation = 0;
+	}
+
+	/**
+	 * Returns the cached reply to a query,
+	 * or <code>null</code> if there is none, or it expired.
+	 */
+	public synchronized String get(String query, long now) {
+
+		CachedReply entry = entries.get(query);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires <= now) {
+			entries.remove(query);
+			return null;
+		}
+		return entry.reply;
+	}
+
+	/**
+	 * Caches a reply, unless the cache was invalidated since the query was
+	 * sent.
+	 * @param generation see {@link #getGeneration()}, when the query was sent
+	 */
+	public synchronized void put(String query, String reply, long generation, long now) {
+
+		if (generation == this.generation) {
+			entries.put(query, new CachedReply(reply, now + timeToLive));
+		}
+	}
+
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/** Forgets all cached replies */
+	public synchronized void invalidate() {
+
+		entries.clear();
+		generation++;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -5,16 +5,25 @@
 package com.springrts.chanserv;
 
 
+import com.springrts.chanserv.metrics.Counter;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,9 +33,9 @@ import org.slf4j.LoggerFactory;
  *
  * - communication is meant to be short - 1 or 2 commands and then connection should be terminated
  * - connection gets closed automatically after 30 seconds of inactivity.
- * - communication is strictly synchronous - when client sends a command server responds with another command.
- *   If same client must query multiple commands, he should either wait for a response after each command
- *   before sending new command, or use new connection for next command.
+ * - communication is synchronous - when client sends a command server responds with another command.
+ *   A client may send multiple commands without waiting for the responses; the commands are then processed
+ *   concurrently, but the responses are still sent in the order of the commands.
  *
  * *** COMMAND LIST: ***
  *
@@ -67,6 +76,7 @@ import org.slf4j.LoggerFactory;
  *   Returns 1 for "normal", 2 for "moderator", 3 for "admin".
  *   If user is not found, returns 0 as a result.
  *   If the operation fails for some reason, socket will simply get disconnected.
+ *   The result may be up to 30 seconds old.
  *
  * * GENERATEUSERID username
  *   Will send acquireuserid command to <username>. This command doesn't return anything, you won't
@@ -79,11 +89,49 @@ import org.slf4j.LoggerFactory;
  *   Currently commands that may be passed to this function are limited - only some command are allowed. This is so
  *   in order to avoid some security risks with the command.
  *   If the operation fails for some reason, socket will simply get disconnected.
+ *   Responses to read-only commands (like GETLASTLOGINTIME) may be up to 30 seconds old,
+ *   unless a command changing state on the server (like UPDATEMOTD) was passed in the meantime.
+ *
+ * * SEARCHLOG channel username|term [since]
+ *   Searches the recent lines of the channels log written by <username>, or containing <term>.
+ *   <since> limits the search to lines not older than that, given either as a unix timestamp,
+ *   or as a duration back from now, like 30m, 12h or 7d.
+ *   Returns, on a single line, separated by tabs, the number of matching lines, followed by
+ *   the last 100 of them, each starting with its unix timestamp.
+ *   Returns NOTOK if searching is disabled, or <since> is malformed.
+ *
+ * * GETCHANNELS username
+ *   Returns the registered channels <username> is founder or operator of, on a single line:
+ *   the channels founded, separated by spaces, then a tab, then the channels operated,
+ *   separated by spaces; channel names are given without the leading '#'.
+ *
+ * * GETMETRICS [prefix]
+ *   Returns the current values of all runtime metrics (whose name starts with
+ *   <prefix>), on a single line, separated by spaces.
+ *   Counters are given as name=value, histograms as
+ *   name=count/mean/p50/p99/max, with durations in microseconds.
+ *
+ * Connections are either served by a thread each, or all by this thread,
+ * using a selector; see {@link Mode}.
  */
 public class RemoteAccessServer extends Thread {
 
 	private static final Logger logger = LoggerFactory.getLogger(ChanServ.class);
 
+	/** How connections to the remote access port are served */
+	public static enum Mode {
+		/** A thread per connection, with blocking I/O */
+		THREADS,
+		/**
+		 * All connections are served by the server thread, with non-blocking
+		 * I/O; replies of the lobby server are sent on asynchronously.
+		 */
+		SELECTOR
+	}
+
+	/** How often to check for inactive connections, in milliseconds */
+	private static final long IDLE_CHECK_INTERVAL = 1000;
+
 	/** used with QUERYSERVER command */
 	private static final List<String> ALLOWED_QUERY_COMMANDS;
 	static {
@@ -103,30 +151,92 @@ public class RemoteAccessServer extends Thread {
 		return ALLOWED_QUERY_COMMANDS;
 	}
 
+	/**
+	 * QUERYSERVER commands that only read state on the lobby server;
+	 * their replies are cached.
+	 */
+	private static final List<String> CACHEABLE_QUERY_COMMANDS;
+	/**
+	 * QUERYSERVER commands that change state on the lobby server;
+	 * they invalidate all cached replies.
+	 */
+	private static final List<String> INVALIDATING_QUERY_COMMANDS;
+	static {
+		List<String> cacheableQueryCommands = new ArrayList<String>();
+		cacheableQueryCommands.add("GETREGISTRATIONDATE");
+		cacheableQueryCommands.add("GETINGAMETIME");
+		cacheableQueryCommands.add("GETLASTIP");
+		cacheableQueryCommands.add("GETLASTLOGINTIME");
+		cacheableQueryCommands.add("GETLOBBYVERSION");
+		cacheableQueryCommands.add("GETUSERID");
+		CACHEABLE_QUERY_COMMANDS = Collections.unmodifiableList(cacheableQueryCommands);
+
+		List<String> invalidatingQueryCommands = new ArrayList<String>();
+		invalidatingQueryCommands.add("RELOADUPDATEPROPERTIES");
+		invalidatingQueryCommands.add("UPDATEMOTD");
+		INVALIDATING_QUERY_COMMANDS = Collections.unmodifiableList(invalidatingQueryCommands);
+	}
+	public static List<String> getCacheableQueryCommands() {
+		return CACHEABLE_QUERY_COMMANDS;
+	}
+	public static List<String> getInvalidatingQueryCommands() {
+		return INVALIDATING_QUERY_COMMANDS;
+	}
+
+	/** Maximum number of cached replies to read-only queries */
+	private static final int QUERY_CACHE_SIZE = 1000;
+	/** How long replies to read-only queries are cached, in milliseconds */
+	private static final long QUERY_CACHE_TTL = 30000;
+
 	/** Keys for remote server access (needs to be thread-save) */
 	private final List<String> remoteAccounts;
 
-	/** A list of all currently running client threads (needs to be thread-save) */
-	private final Map<Integer, RemoteClientThread> threads;
+	/** All currently connected clients (needs to be thread-save) */
+	private final Map<Integer, RemoteClient> clients;
+	private final AtomicInteger lastClientId;
+	/** Queries sent to the lobby server on behalf of the clients */
+	private final PendingQueries pendingQueries;
 	private final int port;
 	private ServerSocket serverSocket;
 	private boolean running;
 
+	/** only used in {@link Mode#SELECTOR} */
+	private Selector selector;
+	/** Clients with lines waiting to be sent; only used in {@link Mode#SELECTOR} */
+	private final Queue<SelectorRemoteClient> pendingWrites;
+
 	private Context context;
 
+	private final Counter connections;
+
 	public RemoteAccessServer(Context context, int port) {
 
 		this.context = context;
+		this.connections = context.getMetrics().counter("remote.connections");
 		this.port = port;
 		this.serverSocket = null;
 		this.running = false;
 		this.remoteAccounts = java.util.Collections.synchronizedList(new LinkedList<String>());
-		this.threads = java.util.Collections.synchronizedMap(new HashMap<Integer, RemoteClientThread>());
+		this.clients = java.util.Collections.synchronizedMap(new HashMap<Integer, RemoteClient>());
+		this.lastClientId = new AtomicInteger(0);
+		this.pendingQueries = new PendingQueries(context.getScheduler(), context.getMetrics(),
+				new QueryCache(QUERY_CACHE_SIZE, QUERY_CACHE_TTL));
+		this.selector = null;
+		this.pendingWrites = new ConcurrentLinkedQueue<SelectorRemoteClient>();
 	}
 
 	@Override
 	public void run() {
 
+		if (context.getConfiguration().getRemoteAccessMode() == Mode.SELECTOR) {
+			runSelector();
+		} else {
+			runThreads();
+		}
+	}
+
+	private void runThreads() {
+
 		logger.info("Trying to run remote access server on port {} ...", port);
 
 		try {
@@ -139,8 +249,9 @@ public class RemoteAccessServer extends Thread {
 		while (running) {
 			try {
 				Socket cs = serverSocket.accept();
+				connections.increment();
 				RemoteClientThread thread = new RemoteClientThread(context, this, cs);
-				threads.put(thread.getClientId(), thread);
+				clients.put(thread.getClientId(), thread);
 				thread.start();
 			} catch (SocketException sex) {
 				// this is triggered when the server-socket was closed while we
@@ -152,6 +263,96 @@ public class RemoteAccessServer extends Thread {
 		}
 	}
 
+	private void runSelector() {
+
+		logger.info("Trying to run remote access server on port {}, with a selector ...", port);
+
+		ServerSocketChannel serverChannel = null;
+		try {
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.socket().bind(new InetSocketAddress(port));
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			running = true;
+		} catch (IOException ex) {
+			logger.error("Failed to start the remote access server", ex);
+		}
+
+		long lastIdleCheck = System.currentTimeMillis();
+		while (running) {
+			try {
+				selector.select(IDLE_CHECK_INTERVAL);
+			} catch (IOException ex) {
+				logger.error("Failed to select on the remote access connections", ex);
+				break;
+			}
+
+			SelectorRemoteClient writer;
+			while ((writer = pendingWrites.poll()) != null) {
+				writer.enableWriting();
+			}
+
+			for (SelectionKey key : selector.selectedKeys()) {
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept(serverChannel);
+					continue;
+				}
+				SelectorRemoteClient client = (SelectorRemoteClient) key.attachment();
+				if (key.isReadable()) {
+					client.read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					client.write();
+				}
+			}
+			selector.selectedKeys().clear();
+
+			long now = System.currentTimeMillis();
+			if ((now - lastIdleCheck) >= IDLE_CHECK_INTERVAL) {
+				lastIdleCheck = now;
+				for (SelectionKey key : selector.keys()) {
+					Object client = key.attachment();
+					if ((client != null) && ((SelectorRemoteClient) client).isIdle(now)) {
+						((SelectorRemoteClient) client).kill();
+					}
+				}
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel serverChannel) {
+
+		try {
+			SocketChannel channel = serverChannel.accept();
+			if (channel == null) {
+				return;
+			}
+			connections.increment();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			SelectorRemoteClient client = new SelectorRemoteClient(context, this, key);
+			key.attach(client);
+			clients.put(client.getClientId(), client);
+		} catch (IOException ex) {
+			logger.warn("Failed to handle a remote client connect operation", ex);
+		}
+	}
+
+	/**
+	 * Makes the selector thread send the lines queued for a client.
+	 * May be called from any thread.
+	 */
+	void requestWrite(SelectorRemoteClient client) {
+
+		pendingWrites.add(client);
+		selector.wakeup();
+	}
+
 	/**
 	 * Keys for remote server access (needs to be thread-save)
 	 * @return the remoteAccounts
@@ -160,31 +361,30 @@ public class RemoteAccessServer extends Thread {
 		return remoteAccounts;
 	}
 
+	/** Returns a new ID, not used by any other client since start-up */
+	int nextClientId() {
+		return lastClientId.incrementAndGet();
+	}
+
+	public PendingQueries getPendingQueries() {
+		return pendingQueries;
+	}
+
 	/**
-	 * Forward a command to the waiting thread.
+	 * Forward a reply of the lobby server to the query waiting for it.
 	 * @return true if forwarded successfully
 	 */
-	public boolean forwardCommand(int threadId, String command) {
-
-		synchronized (threads) {
-			RemoteClientThread rct = threads.get(threadId);
-			if (rct != null) {
-				try {
-					rct.putCommand(command);
-					return true;
-				} catch (InterruptedException ex) {
-					logger.warn("Failed forwarding a command", ex);
-					return false;
-				}
-			}
-		}
-		// No suitable thread could be found!
-		// Perhaps the thread has already finished
-		// before it could read the response (not a problem).
-		return false;
+	public boolean forwardCommand(int messageId, String command) {
+
+		// If no suitable query could be found, perhaps it timed out, or the
+		// client has already disconnected before it could read the response
+		// (not a problem).
+		return pendingQueries.complete(messageId, command);
 	}
 
-	public RemoteClientThread removeRemoteClientThread(RemoteClientThread thread) {
-		return threads.remove(thread.getClientId());
+	public RemoteClient removeRemoteClient(RemoteClient client) {
+
+		pendingQueries.cancel(client);
+		return clients.remove(client.getClientId());
 	}
 }
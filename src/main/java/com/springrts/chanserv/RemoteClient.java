@@ -0,0 +1,386 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client connected to the remote access port.
+ * Implements the protocol described in {@link RemoteAccessServer},
+ * independent of how the connection is served.
+ *
+ * Processing a command never blocks: queries to the lobby server are sent,
+ * and the reply is handled when it comes back through the
+ * {@link PendingQueries}.
+ * Several queries may be in flight at the same time, but the responses are
+ * sent in the order the commands were received.
+ * @see RemoteAccessServer
+ * @author hoijui
+ */
+public abstract class RemoteClient {
+
+	private static final Logger logger = LoggerFactory.getLogger(RemoteClient.class);
+
+	/** How long to wait for the lobby server to reply, in milliseconds */
+	private static final long QUERY_TIMEOUT = 20000;
+	/** Maximum number of lines returned by SEARCHLOG */
+	private static final int SEARCH_LOG_LINES = 100;
+	/**
+	 * A client that does not read what we send, gets disconnected once this
+	 * many bytes are waiting for it, instead of making us buffer them
+	 * forever.
+	 */
+	protected static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+	/** The response to a single command */
+	private static class Response {
+		/** <code>null</code> if there is nothing to send */
+		private String line = null;
+		private boolean done = false;
+		/** whether the response depends on a reply of the lobby server */
+		private boolean waiting = false;
+	}
+
+	/** Unique among all clients connected since start-up */
+	private final int id;
+	protected final String ip;
+	/** whether the remote client has already identified */
+	private boolean identified;
+
+	/** Responses not yet sent, in the order the commands were received */
+	private final Queue<Response> responses;
+	/** Reused for every line received from the remote client */
+	private final LineTokenizer lineTokenizer;
+
+	/** the object that accepted this client */
+	protected final RemoteAccessServer parent;
+
+	protected final Context context;
+
+	private final Counter commands;
+
+	protected RemoteClient(Context context, RemoteAccessServer parent, String ip) {
+
+		this.id = parent.nextClientId();
+		this.ip = ip;
+		this.identified = false;
+		this.responses = new LinkedList<Response>();
+		this.lineTokenizer = new LineTokenizer();
+		this.parent = parent;
+		this.context = context;
+		this.commands = context.getMetrics().counter("remote.commands");
+	}
+
+	public int getClientId() {
+		return id;
+	}
+
+	/**
+	 * Sends a line to the remote client.
+	 * May be called from any thread, and must not block, as it is called
+	 * from the thread reading from the lobby server and from the scheduler.
+	 */
+	public abstract void sendLine(String text);
+
+	/** Closes the connection to the remote client */
+	protected abstract void disconnect();
+
+	protected void kill() {
+		disconnect();
+		parent.removeRemoteClient(this);
+	}
+
+	/** Has to be called for every line received from the remote client */
+	protected synchronized void lineReceived(String line) {
+
+		Response response = new Response();
+		responses.add(response);
+		processCommand(line, response);
+		if (!response.waiting) {
+			// commands without response are done right away
+			response.done = true;
+		}
+		sendResponses();
+	}
+
+	/**
+	 * Finishes the response to a command,
+	 * and sends it as soon as all earlier ones were sent.
+	 */
+	private synchronized void respond(Response response, String line) {
+
+		response.line = line;
+		response.done = true;
+		sendResponses();
+	}
+
+	private void sendResponses() {
+
+		while (!responses.isEmpty() && responses.peek().done) {
+			String line = responses.poll().line;
+			if (line != null) {
+				sendLine(line);
+			}
+		}
+	}
+
+	/**
+	 * Sends a query to the lobby server; the reply will be handed to the
+	 * given handler, from the thread reading from the lobby server,
+	 * or from the scheduler if it does not arrive in time.
+	 * @param replyLines number of lines the lobby server replies with;
+	 *   only the first one is handed to the handler
+	 * @param cacheable whether the query is read-only; if so, the reply may
+	 *   come from the cache, or be shared with identical queries in flight
+	 * @param response the response waiting for the reply
+	 */
+	private void queryTASServer(String command, int replyLines, boolean cacheable, Response response, PendingQueries.ReplyHandler handler) {
+
+		response.waiting = true;
+		int messageId = parent.getPendingQueries().register(this, command, replyLines, QUERY_TIMEOUT, cacheable, handler);
+		if (messageId != PendingQueries.NO_QUERY) {
+			context.getChanServ().sendLine("#" + messageId + " " + command);
+		}
+	}
+
+	/** Appends the items separated by spaces */
+	private static void appendList(StringBuilder line, List<String> items) {
+
+		for (int i = 0; i < items.size(); i++) {
+			if (i > 0) {
+				line.append(' ');
+			}
+			line.append(items.get(i));
+		}
+	}
+
+	private void processCommand(String command, final Response response) {
+
+		LineTokenizer params = lineTokenizer.reset(command);
+		if (params.isEmpty()) {
+			return;
+		}
+
+		logger.debug("processCommand from {}: \"{}\"", ip, command);
+		commands.increment();
+
+		if (params.equalsIgnoreCase(0, "IDENTIFY")) {
+			if (params.size() != 2) {
+				logger.trace("Malformed command: {}", params);
+				return;
+			}
+			if (!context.getChanServ().isConnected()) {
+				respond(response, "FAILED");
+				return;
+			}
+			for (int i = 0; i < parent.getRemoteAccounts().size(); i++) {
+				if (parent.getRemoteAccounts().get(i).equals(params.get(1))) {
+					respond(response, "PROCEED");
+					identified = true; // client has successfully identified
+					return;
+				}
+			}
+			respond(response, "FAILED");
+		} else if (params.equalsIgnoreCase(0, "TESTLOGIN")) {
+			if (!identified) {
+				return;
+			}
+			if (params.size() != 3) {
+				logger.trace("Malformed command: {}", params);
+				return;
+			}
+			if (!context.getChanServ().isConnected()) {
+				respond(response, "LOGINBAD");
+				return;
+			}
+			queryTASServer("TESTLOGIN " + params.get(1) + " " + params.get(2), 1, false, response, new PendingQueries.ReplyHandler() {
+				@Override
+				public void replyReceived(String reply) {
+					if (reply.equalsIgnoreCase("TESTLOGINACCEPT")) {
+						respond(response, "LOGINOK");
+					} else {
+						respond(response, "LOGINBAD");
+					}
+				}
+				@Override
+				public void timedOut() {
+					respond(response, "LOGINBAD");
+				}
+			});
+		} else if (params.equalsIgnoreCase(0, "GETACCESS")) {
+			if (!identified) {
+				return;
+			}
+			if (params.size() != 2) {
+				logger.trace("Malformed command: {}", params);
+				return;
+			}
+			if (!context.getChanServ().isConnected()) {
+				kill();
+				return;
+			}
+			final String userName = params.get(1);
+			queryTASServer("GETACCOUNTACCESS " + userName, 1, true, response, new PendingQueries.ReplyHandler() {
+				@Override
+				public void replyReceived(String reply) {
+
+					// if user not found:
+					if (reply.equals("User <" + userName + "> not found!")) {
+						respond(response, "0");
+						return;
+					}
+
+					String[] tmp = reply.split(" ");
+					int access = 0;
+					try {
+						access = Integer.parseInt(tmp[tmp.length-1]);
+					} catch (NumberFormatException e) { // should not happen
+						kill();
+						return;
+					}
+					respond(response, "" + (access & 0x7));
+				}
+				@Override
+				public void timedOut() {
+					kill();
+				}
+			});
+		} else if (params.equalsIgnoreCase(0, "GENERATEUSERID")) {
+			if (!identified) {
+				return;
+			}
+			if (params.size() != 2) {
+				logger.trace("Malformed command: {}", params);
+				return;
+			}
+			if (!context.getChanServ().isConnected()) {
+				kill();
+				return;
+			}
+			// the lobby server does not reply to this
+			context.getChanServ().sendLine("FORGEMSG " + params.get(1) + " ACQUIREUSERID");
+			respond(response, "OK");
+		} else if (params.equalsIgnoreCase(0, "ISONLINE")) {
+			if (!identified) {
+				return;
+			}
+			if (params.size() != 2) {
+				logger.trace("Malformed command: {}", params);
+				return;
+			}
+			if (!context.getChanServ().isConnected()) {
+				kill();
+				return;
+			}
+
+			boolean success = (context.getChanServ().getClient(params.get(1)) != null);
+			respond(response, success ? "OK" : "NOTOK");
+		} else if (params.equalsIgnoreCase(0, "QUERYSERVER")) {
+			if (!identified) {
+				return;
+			}
+			if (params.size() < 2) {
+				logger.trace("Malformed command: {}", params);
+				return;
+			}
+			if (!context.getChanServ().isConnected()) {
+				kill();
+				return;
+			}
+			String queryCommand = params.get(1);
+			boolean allow = RemoteAccessServer.getAllowedQueryCommands().contains(queryCommand);
+
+			if (!allow) {
+				// client is trying to execute a command that is not allowed!
+				kill();
+				return;
+			}
+
+			final boolean invalidating = RemoteAccessServer.getInvalidatingQueryCommands().contains(queryCommand);
+			if (invalidating) {
+				parent.getPendingQueries().invalidateCache();
+			}
+
+			// quick fix for context.getChanServ() crash on adding ban entry in
+			// the web interface: this one replies with two lines
+			int replyLines = queryCommand.equalsIgnoreCase("RETRIEVELATESTBANLIST") ? 2 : 1;
+			boolean cacheable = RemoteAccessServer.getCacheableQueryCommands().contains(queryCommand);
+			queryTASServer(params.rest(1), replyLines, cacheable, response, new PendingQueries.ReplyHandler() {
+				@Override
+				public void replyReceived(String reply) {
+					if (invalidating) {
+						// queries sent in the meantime might have seen the old state
+						parent.getPendingQueries().invalidateCache();
+					}
+					respond(response, reply);
+				}
+				@Override
+				public void timedOut() {
+					kill();
+				}
+			});
+		} else if (params.equalsIgnoreCase(0, "SEARCHLOG")) {
+			if (!identified) {
+				return;
+			}
+			if ((params.size() < 3) || (params.size() > 4)) {
+				logger.trace("Malformed command: {}", params);
+				return;
+			}
+			ChatLogIndex index = context.getChatLogWriter().getIndex();
+			long since = 0;
+			if (params.size() == 4) {
+				since = ChatLogIndex.parseSince(params.get(3), Misc.getUnixTimestamp());
+			}
+			if (!index.isEnabled() || (since < 0)) {
+				respond(response, "NOTOK");
+				return;
+			}
+			String channelName = params.get(1);
+			if (channelName.startsWith("#")) {
+				channelName = channelName.substring(1);
+			}
+			ChatLogIndex.Result result = index.search(channelName, params.get(2), since, SEARCH_LOG_LINES);
+			StringBuilder lines = new StringBuilder().append(result.getTotal());
+			for (int l = 0; l < result.getLines().size(); l++) {
+				lines.append('\t').append(result.getTime(l)).append(' ')
+						.append(result.getLines().get(l).replace('\t', ' '));
+			}
+			respond(response, lines.toString());
+		} else if (params.equalsIgnoreCase(0, "GETCHANNELS")) {
+			if (!identified) {
+				return;
+			}
+			if (params.size() != 2) {
+				logger.trace("Malformed command: {}", params);
+				return;
+			}
+			ChannelRoleIndex roles = context.getChannelRoleIndex();
+			StringBuilder channels = new StringBuilder();
+			appendList(channels, roles.getFoundedChannels(params.get(1)));
+			channels.append('\t');
+			appendList(channels, roles.getOperatedChannels(params.get(1)));
+			respond(response, channels.toString());
+		} else if (params.equalsIgnoreCase(0, "GETMETRICS")) {
+			if (!identified) {
+				return;
+			}
+			StringBuilder report = new StringBuilder();
+			for (String metric : context.getMetrics().report((params.size() > 1) ? params.get(1) : "")) {
+				if (report.length() > 0) {
+					report.append(' ');
+				}
+				report.append(metric);
+			}
+			respond(response, report.toString());
+		} else {
+			// unknown command!
+		}
+	}
+}
@@ -0,0 +1,327 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import com.springrts.chanserv.metrics.Gauge;
+import com.springrts.chanserv.metrics.Histogram;
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs all the delayed and periodic work of ChanServ.
+ *
+ * One-shot deadlines, of which there are many, most of them cancelled
+ * before they expire (for example query timeouts), are kept in a hashed
+ * timing wheel: scheduling and cancelling cost the same, no matter how many
+ * are pending, and the wheel thread only looks at the current slot on each
+ * tick, so deadlines are accurate to {@link #TICK} milliseconds.
+ * Expired tasks, and the few periodic jobs, are run by a small pool of
+ * worker threads.
+ *
+ * A task throwing an exception is logged and counted, but does not affect
+ * other tasks, nor later runs of a periodic job.
+ * How late tasks start is recorded in the histogram "scheduler.lag";
+ * periodic jobs running longer than their period are counted as
+ * "scheduler.overruns".
+ * @author hoijui
+ */
+public class Scheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(Scheduler.class);
+
+	/** Length of a tick of the timing wheel, in milliseconds */
+	private static final long TICK = 100;
+	/** Number of slots in the timing wheel; a power of two */
+	private static final int WHEEL_SIZE = 512;
+	/** Number of threads running tasks */
+	private static final int WORKERS = 2;
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/** A scheduled task, which may be cancelled */
+	public static interface Handle {
+		/**
+		 * Makes sure the task does not run (again).
+		 * @return <code>false</code> if it already ran, or was cancelled before
+		 */
+		boolean cancel();
+	}
+
+	/** A deadline in the timing wheel */
+	private class Timeout implements Handle {
+
+		private final Runnable task;
+		/** see {@link System#nanoTime()} */
+		private final long deadline;
+		/** Full turns of the wheel left before the deadline */
+		private long rounds;
+		private final AtomicInteger state;
+
+		Timeout(Runnable task, long deadline) {
+
+			this.task = task;
+			this.deadline = deadline;
+			this.rounds = 0;
+			this.state = new AtomicInteger(PENDING);
+		}
+
+		@Override
+		public boolean cancel() {
+
+			if (state.compareAndSet(PENDING, CANCELLED)) {
+				pendingTimeouts.decrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		void expire() {
+
+			if (state.compareAndSet(PENDING, EXPIRED)) {
+				pendingTimeouts.decrementAndGet();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						lag.record(System.nanoTime() - deadline);
+						runSafely(task);
+					}
+				});
+			}
+		}
+
+		boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+	}
+
+	/** A periodic job */
+	private class Periodic implements Runnable, Handle {
+
+		private final String name;
+		private final Runnable task;
+		/** in nanoseconds */
+		private final long period;
+		/** When the job should run next, see {@link System#nanoTime()} */
+		private long next;
+		private ScheduledFuture<?> future;
+
+		Periodic(String name, Runnable task, long initialDelay, long period) {
+
+			this.name = name;
+			this.task = task;
+			this.period = TimeUnit.MILLISECONDS.toNanos(period);
+			this.next = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelay);
+		}
+
+		@Override
+		public void run() {
+
+			long start = System.nanoTime();
+			lag.record(Math.max(0, start - next));
+			runSafely(task);
+			long end = System.nanoTime();
+			if ((end - start) > period) {
+				overruns.increment();
+				logger.warn("Periodic job {} took {} ms, longer than its period", name, TimeUnit.NANOSECONDS.toMillis(end - start));
+			}
+			next += period;
+		}
+
+		@Override
+		public boolean cancel() {
+			return future.cancel(false);
+		}
+	}
+
+	/** Length of a tick of the timing wheel, in milliseconds */
+	private final long tick;
+	/** Slots of the timing wheel; only accessed by the wheel thread */
+	private final List<Timeout>[] wheel;
+	/** Timeouts not yet put into the wheel */
+	private final Queue<Timeout> incoming;
+	private final AtomicInteger pendingTimeouts;
+	private final ScheduledThreadPoolExecutor executor;
+	/** see {@link System#nanoTime()} */
+	private long startTime;
+	private Thread wheelThread;
+	private volatile boolean running;
+
+	private final Histogram lag;
+	private final Counter overruns;
+	private final Counter failures;
+
+	public Scheduler(MetricsRegistry metrics) {
+		this(metrics, TICK, WHEEL_SIZE);
+	}
+
+	/**
+	 * Allows tests to use a small, fast turning wheel.
+	 * @param tick in milliseconds
+	 * @param wheelSize a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	Scheduler(MetricsRegistry metrics, long tick, int wheelSize) {
+
+		this.tick = tick;
+		this.wheel = (List<Timeout>[]) new List<?>[wheelSize];
+		for (int s = 0; s < wheelSize; s++) {
+			wheel[s] = new LinkedList<Timeout>();
+		}
+		this.incoming = new ConcurrentLinkedQueue<Timeout>();
+		this.pendingTimeouts = new AtomicInteger(0);
+		this.executor = new ScheduledThreadPoolExecutor(WORKERS, new ThreadFactory() {
+			private final AtomicInteger threads = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable runnable) {
+
+				Thread thread = new Thread(runnable, "SchedulerWorker-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.startTime = System.nanoTime();
+		this.wheelThread = null;
+		this.running = false;
+		this.lag = metrics.histogram("scheduler.lag");
+		this.overruns = metrics.counter("scheduler.overruns");
+		this.failures = metrics.counter("scheduler.failures");
+
+		metrics.gauge("scheduler.timeouts", new Gauge() {
+			@Override
+			public long getValue() {
+				return pendingTimeouts.get();
+			}
+		});
+	}
+
+	/** Starts the wheel thread */
+	public synchronized void start() {
+
+		if (running) {
+			return;
+		}
+		running = true;
+		startTime = System.nanoTime();
+		wheelThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				turnWheel();
+			}
+		}, "Scheduler");
+		wheelThread.setDaemon(true);
+		wheelThread.start();
+	}
+
+	/** Stops all threads; pending tasks are not run anymore */
+	public synchronized void stop() {
+
+		if (!running) {
+			return;
+		}
+		running = false;
+		wheelThread.interrupt();
+		wheelThread = null;
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Runs a task once, after a delay.
+	 * Meant for deadlines; the task may run up to {@link #TICK} milliseconds
+	 * late, and should be short.
+	 * @param delay in milliseconds
+	 */
+	public Handle schedule(Runnable task, long delay) {
+
+		Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+		pendingTimeouts.incrementAndGet();
+		incoming.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Runs a job regularly, until cancelled.
+	 * @param name used in log messages
+	 * @param initialDelay in milliseconds
+	 * @param period in milliseconds
+	 */
+	public Handle scheduleAtFixedRate(String name, Runnable task, long initialDelay, long period) {
+
+		Periodic periodic = new Periodic(name, task, initialDelay, period);
+		periodic.future = executor.scheduleAtFixedRate(periodic, initialDelay, period, TimeUnit.MILLISECONDS);
+		return periodic;
+	}
+
+	private void runSafely(Runnable task) {
+
+		try {
+			task.run();
+		} catch (RuntimeException ex) {
+			failures.increment();
+			logger.error("Scheduled task failed", ex);
+		}
+	}
+
+	private void turnWheel() {
+
+		long tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+		int mask = wheel.length - 1;
+		long currentTick = 0;
+		while (running) {
+			long sleep = (startTime + ((currentTick + 1) * tickNanos)) - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException ex) {
+					continue;
+				}
+			}
+
+			transferIncoming(currentTick, tickNanos);
+
+			Iterator<Timeout> slot = wheel[(int) (currentTick & mask)].iterator();
+			while (slot.hasNext()) {
+				Timeout timeout = slot.next();
+				if (timeout.isCancelled()) {
+					slot.remove();
+				} else if (timeout.rounds <= 0) {
+					slot.remove();
+					timeout.expire();
+				} else {
+					timeout.rounds--;
+				}
+			}
+			currentTick++;
+		}
+	}
+
+	/** Puts the newly scheduled timeouts into their slots */
+	private void transferIncoming(long currentTick, long tickNanos) {
+
+		Timeout timeout;
+		while ((timeout = incoming.poll()) != null) {
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			// round up, so the task never runs early
+			long ticks = (timeout.deadline - startTime + tickNanos - 1) / tickNanos - 1;
+			ticks = Math.max(ticks, currentTick);
+			timeout.rounds = (ticks - currentTick) / wheel.length;
+			wheel[(int) (ticks & (wheel.length - 1))].add(timeout);
+		}
+	}
+}
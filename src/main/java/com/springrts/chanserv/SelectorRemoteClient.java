@@ -0,0 +1,183 @@
+
+package com.springrts.chanserv;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remote client served by the selector thread of the
+ * {@link RemoteAccessServer}, with non-blocking I/O.
+ * Reading and writing is only done by the selector thread;
+ * lines to send may be queued from any thread.
+ * @see RemoteAccessServer.Mode#SELECTOR
+ * @author hoijui
+ */
+public class SelectorRemoteClient extends RemoteClient {
+
+	private static final Logger logger = LoggerFactory.getLogger(SelectorRemoteClient.class);
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	/** in milliseconds */
+	private static final long TIMEOUT = 30000;
+	private static final int BUFFER_SIZE = 4 * 1024;
+	/**
+	 * Lines longer than this are cut, so a client can not make us buffer
+	 * unlimited amounts of data.
+	 */
+	private static final int MAX_LINE_LENGTH = 16 * 1024;
+
+	private final SelectionKey key;
+	private final SocketChannel channel;
+	private final CharsetDecoder decoder;
+	private final ByteBuffer readBuffer;
+	private final CharBuffer chars;
+	private final StringBuilder line;
+	/** Encoded lines waiting to be sent */
+	private final Queue<ByteBuffer> outgoing;
+	/** Number of bytes in {@link #outgoing} */
+	private final AtomicInteger queuedBytes;
+	/** When we last received something, see {@link System#currentTimeMillis()} */
+	private volatile long lastActivity;
+	private volatile boolean closed;
+
+	SelectorRemoteClient(Context context, RemoteAccessServer parent, SelectionKey key) {
+
+		super(context, parent, ((SocketChannel) key.channel()).socket().getInetAddress().getHostAddress());
+
+		this.key = key;
+		this.channel = (SocketChannel) key.channel();
+		this.decoder = CHARSET.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		this.chars = CharBuffer.allocate(BUFFER_SIZE);
+		this.line = new StringBuilder(256);
+		this.outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.queuedBytes = new AtomicInteger(0);
+		this.lastActivity = System.currentTimeMillis();
+		this.closed = false;
+	}
+
+	@Override
+	public void sendLine(String text) {
+
+		if (closed) {
+			return;
+		}
+		logger.debug("RAS: \"{}\"", text);
+		byte[] bytes = (text + "\n").getBytes(CHARSET);
+		if (queuedBytes.addAndGet(bytes.length) > MAX_QUEUED_BYTES) {
+			logger.warn("Remote client {} does not read its responses; disconnecting", ip);
+			kill();
+			return;
+		}
+		outgoing.add(ByteBuffer.wrap(bytes));
+		parent.requestWrite(this);
+	}
+
+	@Override
+	protected void disconnect() {
+
+		closed = true;
+		outgoing.clear();
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			logger.warn("Failed to propperly close the remote client connection with " + ip, ex);
+		}
+	}
+
+	boolean isIdle(long now) {
+		return (now - lastActivity) > TIMEOUT;
+	}
+
+	/** Called by the selector thread when there is something to read */
+	void read() {
+
+		try {
+			int read = channel.read(readBuffer);
+			if (read == -1) {
+				kill();
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+
+			readBuffer.flip();
+			CoderResult result;
+			do {
+				result = decoder.decode(readBuffer, chars, false);
+				chars.flip();
+				splitLines();
+				chars.clear();
+			} while (result.isOverflow());
+			readBuffer.compact();
+		} catch (IOException ex) {
+			kill();
+		}
+	}
+
+	/** Hands all complete lines to the protocol, and keeps the rest */
+	private void splitLines() {
+
+		while (chars.hasRemaining() && !closed) {
+			char c = chars.get();
+			if (c == '\n') {
+				int length = line.length();
+				if ((length > 0) && (line.charAt(length - 1) == '\r')) {
+					line.setLength(length - 1);
+				}
+				String completeLine = line.toString();
+				line.setLength(0);
+				lineReceived(completeLine);
+			} else if (line.length() < MAX_LINE_LENGTH) {
+				line.append(c);
+			}
+		}
+	}
+
+	/** Called by the selector thread when lines were queued */
+	void enableWriting() {
+
+		if (key.isValid()) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Called by the selector thread when the socket is ready for writing.
+	 * Stops waiting for that as soon as all queued lines are sent.
+	 */
+	void write() {
+
+		try {
+			ByteBuffer buffer;
+			while ((buffer = outgoing.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					// the socket buffer is full; continue later
+					return;
+				}
+				outgoing.poll();
+				queuedBytes.addAndGet(-buffer.capacity());
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException ex) {
+			kill();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.Counter;
+import com.springrts.chanserv.metrics.Histogram;
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps lobby server commands to the handlers processing them.
+ * Any component may register handlers for the commands it is interested in.
+ * As a side effect, the dispatcher records the time spent per command
+ * in the histogram "inbound.&lt;COMMAND&gt;" of the {@link MetricsRegistry}.
+ *
+ * Handlers are looked up directly with the first token of a
+ * {@link LineTokenizer}, case-insensitive, in an open-addressing hash table,
+ * so no sub-string or upper-case copy of the command name is created.
+ * The table is rebuilt on each (rare) registration, and replaced atomically,
+ * so lookups never need to lock.
+ * @author hoijui
+ */
+public class ServerCommandDispatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(ServerCommandDispatcher.class);
+
+	private static class Entry {
+
+		private final String commandName;
+		private final int hash;
+		private final ServerCommandHandler handler;
+		private final Histogram timing;
+
+		Entry(String commandName, ServerCommandHandler handler, Histogram timing) {
+
+			this.commandName = commandName;
+			this.hash = commandName.hashCode();
+			this.handler = handler;
+			this.timing = timing;
+		}
+	}
+
+	/** keys are upper-case command names (needs to be thread-save) */
+	private final Map<String, Entry> entries;
+	private final MetricsRegistry metrics;
+	/** Lines for which no handler is registered */
+	private final Counter unhandled;
+	/**
+	 * Lookup table built from <code>entries</code>;
+	 * its length is a power of two, and it is at most half full.
+	 */
+	private volatile Entry[] table;
+
+	public ServerCommandDispatcher(MetricsRegistry metrics) {
+
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.metrics = metrics;
+		this.unhandled = metrics.counter("inbound.unhandled");
+		this.table = new Entry[1];
+	}
+
+	/**
+	 * Registers the handler for a command.
+	 * @param commandName name of the command, for example "SAID"
+	 * @return the previously registered handler for this command, or
+	 *   <code>null</code>, if there was none
+	 */
+	public synchronized ServerCommandHandler register(String commandName, ServerCommandHandler handler) {
+
+		String key = commandName.toUpperCase();
+		Entry previous = entries.put(key, new Entry(key, handler, metrics.histogram("inbound." + key)));
+		rebuildTable();
+
+		return (previous == null) ? null : previous.handler;
+	}
+
+	/**
+	 * Removes the handler for a command.
+	 * @return the removed handler, or <code>null</code>, if there was none
+	 */
+	public synchronized ServerCommandHandler unregister(String commandName) {
+
+		Entry previous = entries.remove(commandName.toUpperCase());
+		rebuildTable();
+
+		return (previous == null) ? null : previous.handler;
+	}
+
+	private void rebuildTable() {
+
+		int capacity = 1;
+		while (capacity < entries.size() * 2) {
+			capacity <<= 1;
+		}
+
+		Entry[] newTable = new Entry[capacity];
+		int mask = capacity - 1;
+		for (Entry entry : entries.values()) {
+			int i = spread(entry.hash) & mask;
+			while (newTable[i] != null) {
+				i = (i + 1) & mask;
+			}
+			newTable[i] = entry;
+		}
+		table = newTable;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Returns the handler for a command.
+	 * @param commandName the upper-case command name
+	 * @return <code>null</code> if no handler is registered for the command
+	 */
+	public ServerCommandHandler getHandler(String commandName) {
+
+		Entry entry = entries.get(commandName);
+		return (entry == null) ? null : entry.handler;
+	}
+
+	private Entry lookup(LineTokenizer commands) {
+
+		int hash = commands.hashCodeIgnoreCase(0);
+		Entry[] tab = table;
+		int mask = tab.length - 1;
+		int i = spread(hash) & mask;
+		Entry entry;
+		while ((entry = tab[i]) != null) {
+			if ((entry.hash == hash) && commands.equalsIgnoreCase(0, entry.commandName)) {
+				return entry;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Executes the command with the handler registered for it.
+	 * Commands without a handler are ignored.
+	 * @param commands the tokenized command line; token 0 is the command name
+	 * @return <code>false</code> if the handler failed to process the command
+	 */
+	public boolean dispatch(LineTokenizer commands) {
+
+		if (commands.isEmpty()) {
+			return false;
+		}
+
+		Entry entry = lookup(commands);
+		if (entry == null) {
+			unhandled.increment();
+			if (logger.isTraceEnabled()) {
+				logger.trace("No handler for command: {}", commands.get(0));
+			}
+			return true;
+		}
+
+		long start = System.nanoTime();
+		try {
+			return entry.handler.execute(commands);
+		} finally {
+			entry.timing.recordSince(start);
+		}
+	}
+}
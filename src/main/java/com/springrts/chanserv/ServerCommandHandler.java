@@ -0,0 +1,19 @@
+
+package com.springrts.chanserv;
+
+/**
+ * Processes one type of command sent to us by the lobby server.
+ * @see ServerCommandDispatcher
+ * @author hoijui
+ */
+public interface ServerCommandHandler {
+
+	/**
+	 * Processes a single command received from the lobby server.
+	 * @param commands the tokenized command line; token 0 is the command name.
+	 *   It is only valid during this call, as it gets reused for the next line.
+	 * @return <code>false</code> if the command could not be processed,
+	 *   for example because it was malformed
+	 */
+	public boolean execute(LineTokenizer commands);
+}
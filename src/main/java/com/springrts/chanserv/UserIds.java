@@ -0,0 +1,185 @@
+
+package com.springrts.chanserv;
+
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps user names to dense integer IDs, so the structures keeping track of
+ * users (the logged in clients, channel members, spam records) can store
+ * an <code>int</code> instead of a reference to a name of their own.
+ *
+ * An ID is reference counted: every structure storing it
+ * {@link #acquire(String) acquires} it, and {@link #release(int) releases}
+ * it when it drops the user again. Once no structure refers to it anymore,
+ * the name is forgotten, and the ID is handed out again later on, so the
+ * table only grows with the number of users currently referred to, not
+ * with all the names seen since start-up.
+ * Freed IDs are reused in the order they were freed, and only once
+ * {@link #REUSE_DELAY} others are waiting, so a thread still holding an ID
+ * it looked up just before the user was dropped does not see it change
+ * owner under its feet.
+ *
+ * Looking up an ID by name, a name by ID, and acquiring or releasing an ID
+ * that is still referred to, does not lock.
+ * @author hoijui
+ */
+public class UserIds {
+
+	/** Returned by {@link #get(String)} for unknown names */
+	public static final int NONE = -1;
+
+	/** Number of freed IDs kept back, before the oldest is reused */
+	static final int REUSE_DELAY = 1024;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** The name behind an ID, and the number of references to it */
+	private static class Entry {
+
+		/** Marks an entry that was removed from the table */
+		static final int FREED = -1;
+
+		final int id;
+		final String name;
+		/** Number of references, or {@link #FREED} */
+		final AtomicInteger references;
+
+		Entry(int id, String name) {
+
+			this.id = id;
+			this.name = name;
+			this.references = new AtomicInteger(1);
+		}
+
+		/**
+		 * Adds a reference, unless there is none left.
+		 * @return <code>false</code> if there was none left
+		 */
+		boolean retain() {
+
+			while (true) {
+				int count = references.get();
+				if (count <= 0) {
+					return false;
+				}
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> ids;
+	/**
+	 * Indexed by ID; replaced by a larger copy when full.
+	 * The entry of a freed ID stays in place until the ID is reused.
+	 */
+	private volatile Entry[] entries;
+	/** Number of IDs ever handed out; only changed while synchronized */
+	private int size;
+	/** Freed IDs, oldest first; only used while synchronized */
+	private final LinkedList<Integer> freeIds;
+
+	public UserIds() {
+
+		this.ids = new ConcurrentHashMap<String, Entry>(INITIAL_CAPACITY);
+		this.entries = new Entry[INITIAL_CAPACITY];
+		this.size = 0;
+		this.freeIds = new LinkedList<Integer>();
+	}
+
+	/**
+	 * Returns the ID of a user, and adds a reference to it, assigning a new
+	 * ID if the name is not known.
+	 * Each call has to be matched by a call to {@link #release(int)}.
+	 */
+	public int acquire(String name) {
+
+		Entry entry = ids.get(name);
+		if ((entry != null) && entry.retain()) {
+			return entry.id;
+		}
+		return add(name);
+	}
+
+	private synchronized int add(String name) {
+
+		Entry entry = ids.get(name);
+		if (entry != null) {
+			// freed entries are only removed while synchronized,
+			// so this one has a reference left, or is about to be freed
+			if (!entry.retain()) {
+				entry.references.set(1);
+			}
+			return entry.id;
+		}
+
+		int id;
+		if (freeIds.size() > REUSE_DELAY) {
+			id = freeIds.removeFirst();
+		} else {
+			if (size == entries.length) {
+				Entry[] grown = new Entry[entries.length * 2];
+				System.arraycopy(entries, 0, grown, 0, size);
+				entries = grown;
+			}
+			id = size++;
+		}
+		// do not keep the line the name was cut from alive
+		entry = new Entry(id, new String(name));
+		entries[id] = entry;
+		// publishing through the map makes the name visible to whoever
+		// gets to see the ID
+		ids.put(entry.name, entry);
+		return id;
+	}
+
+	/**
+	 * Drops a reference previously added by {@link #acquire(String)}.
+	 * When the last one is dropped, the name is forgotten.
+	 */
+	public void release(int id) {
+
+		Entry entry = entries[id];
+		if (entry.references.decrementAndGet() == 0) {
+			free(entry);
+		}
+	}
+
+	private synchronized void free(Entry entry) {
+
+		// someone may have acquired it again in the meantime
+		if (entry.references.compareAndSet(0, Entry.FREED)) {
+			ids.remove(entry.name, entry);
+			freeIds.addLast(entry.id);
+		}
+	}
+
+	/**
+	 * Returns the ID of a user, without assigning one or adding a reference.
+	 * @return {@link #NONE} if no structure refers to the name
+	 */
+	public int get(String name) {
+
+		Entry entry = ids.get(name);
+		return (entry == null) ? NONE : entry.id;
+	}
+
+	/**
+	 * Returns the name of a user.
+	 * The same <code>String</code> instance is returned for every call with
+	 * the same ID, as long as the ID is referred to.
+	 */
+	public String getName(int id) {
+		return entries[id].name;
+	}
+
+	/** Returns the number of names currently referred to */
+	public int size() {
+		return ids.size();
+	}
+}
@@ -7,9 +7,13 @@ package com.springrts.chanserv.antispam;
 
 import com.springrts.chanserv.Client;
 import com.springrts.chanserv.Context;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
+import com.springrts.chanserv.IntObjectMap;
+import com.springrts.chanserv.Scheduler;
+import com.springrts.chanserv.UserIds;
+import com.springrts.chanserv.metrics.Counter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DefaultAntiSpamSystem implements AntiSpamSystem{
 
@@ -30,38 +34,164 @@ public class DefaultAntiSpamSystem implements AntiSpamSystem{
 	static final float MAX_CLIENTSTATUSCHANGE_FREQUENCY = 5.0f;
 	static final int MIN_CLIENTSTATUCCHANGE_COUNT_BEFORE_ALERT = 5;
 
-	/** as key in this list, we use a combination of "channel-name:user-name" */
-	static final Map<String, SpamRecord> spamRecords = new HashMap<String, SpamRecord>();
+	/**
+	 * Records whose penalty points fully decayed are removed from a channel
+	 * at most once every so many milliseconds, either when a message arrives
+	 * in it, or by the periodic prune job, which covers quiet channels.
+	 */
+	static final long PRUNE_INTERVAL = 10000;
 
-	/** spam settings for each individual channel */
-	protected Map<String, SpamSettings> spamSettings;
+	/**
+	 * The spam records of all the users in one channel.
+	 * Each record holds a reference to the ID of its user.
+	 */
+	private static class ChannelRecords {
+
+		private final UserIds userIds;
+		/**
+		 * keys are user IDs, see {@link UserIds};
+		 * synchronize on this when accessing it
+		 */
+		private final IntObjectMap<SpamRecord> records = new IntObjectMap<SpamRecord>();
+		private final AtomicLong lastPrune = new AtomicLong(System.currentTimeMillis());
+
+		ChannelRecords(UserIds userIds) {
+			this.userIds = userIds;
+		}
+
+		/** Returns the record of a user, creating it if there is none */
+		synchronized SpamRecord get(String user, long now) {
+
+			int userId = userIds.get(user);
+			SpamRecord rec = records.get(userId);
+			// the ID may have been given to someone else in the meantime
+			if ((rec != null) && userIds.getName(userId).equals(user)) {
+				return rec;
+			}
+
+			userId = userIds.acquire(user);
+			rec = records.get(userId);
+			if (rec != null) {
+				userIds.release(userId);
+			} else {
+				rec = new SpamRecord(now);
+				records.put(userId, rec);
+			}
+			return rec;
+		}
 
-	private Timer antiSpamTimer;
+		synchronized void remove(String user, SpamRecord rec) {
+
+			int userId = userIds.get(user);
+			if (records.get(userId) == rec) {
+				records.remove(userId);
+				userIds.release(userId);
+			}
+		}
+
+		/** Removes all the records */
+		synchronized void clear() {
+
+			for (int userId : records.keys()) {
+				userIds.release(userId);
+			}
+			records.clear();
+		}
+
+		/**
+		 * Removes all the expired records, if this was not done recently.
+		 * Only one thread at a time does the work; others return right away.
+		 */
+		void prune(long now) {
+
+			long last = lastPrune.get();
+			if ((now - last < PRUNE_INTERVAL) || !lastPrune.compareAndSet(last, now)) {
+				return;
+			}
+			synchronized (this) {
+				for (int userId : records.keys()) {
+					if (records.get(userId).expire(now)) {
+						records.remove(userId);
+						userIds.release(userId);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Spam records, sharded by channel name, then keyed by user ID,
+	 * so no key has to be built per message.
+	 */
+	private final ConcurrentMap<String, ChannelRecords> spamRecords;
+
+	/** spam settings for each individual channel */
+	protected ConcurrentMap<String, SpamSettings> spamSettings;
 
 	private Context context;
+	/** The periodic prune job; <code>null</code> if not initialized */
+	private Scheduler.Handle pruneJob;
+
+	private final Counter messages;
+	private final Counter mutes;
+	private final Counter kicks;
 
 
 	public DefaultAntiSpamSystem(Context context) {
 
 		this.context = context;
-		this.spamSettings = new HashMap<String, SpamSettings>();
+		this.messages = context.getMetrics().counter("antispam.messages");
+		this.mutes = context.getMetrics().counter("antispam.mutes");
+		this.kicks = context.getMetrics().counter("antispam.kicks");
+		this.spamRecords = new ConcurrentHashMap<String, ChannelRecords>();
+		this.spamSettings = new ConcurrentHashMap<String, SpamSettings>();
+		this.pruneJob = null;
 	}
 
 
 	/** Initializes the anti-spam system */
 	@Override
-	public void initialize() {
+	public synchronized void initialize() {
 
-		antiSpamTimer = new Timer();
-		antiSpamTimer.schedule(new AntiSpamTask(context),
-				1000,  // initial delay
-				1000); // subsequent rate
+		clearRecords();
+		if (pruneJob == null) {
+			pruneJob = context.getScheduler().scheduleAtFixedRate("AntiSpamPrune", new Runnable() {
+				@Override
+				public void run() {
+					pruneAll(System.currentTimeMillis());
+				}
+			}, PRUNE_INTERVAL, PRUNE_INTERVAL);
+		}
 	}
 
 	/** Stops the anti-spam system */
 	@Override
-	public void uninitialize() {
-		antiSpamTimer.cancel();
+	public synchronized void uninitialize() {
+
+		if (pruneJob != null) {
+			pruneJob.cancel();
+			pruneJob = null;
+		}
+		clearRecords();
+	}
+
+	/** Removes the records of all channels */
+	private void clearRecords() {
+
+		for (String chan : spamRecords.keySet()) {
+			ChannelRecords channelRecords = spamRecords.remove(chan);
+			if (channelRecords != null) {
+				channelRecords.clear();
+			}
+		}
+	}
+
+	/** Removes the expired records of all channels */
+	private void pruneAll(long now) {
+
+		for (ChannelRecords channelRecords : spamRecords.values()) {
+			channelRecords.prune(now);
+		}
 	}
 
 	/**
@@ -71,37 +201,37 @@ public class DefaultAntiSpamSystem implements AntiSpamSystem{
 	@Override
 	public void processUserMsg(String chan, String user, String msg) {
 
-		synchronized (spamRecords) {
-			String key = chan + ":" + user;
-			SpamSettings settings = spamSettings.get(chan);
-			if (settings == null) {
-				settings = SpamSettings.DEFAULT_SETTINGS;
-			}
+		messages.increment();
+		SpamSettings settings = spamSettings.get(chan);
+		if (settings == null) {
+			settings = SpamSettings.DEFAULT_SETTINGS;
+		}
 
-			SpamRecord rec = spamRecords.get(key);
-			if (rec == null) {
-				rec = new SpamRecord();
-				spamRecords.put(key, rec);
+		ChannelRecords channelRecords = spamRecords.get(chan);
+		if (channelRecords == null) {
+			channelRecords = new ChannelRecords(context.getUserIds());
+			ChannelRecords existing = spamRecords.putIfAbsent(chan, channelRecords);
+			if (existing != null) {
+				channelRecords = existing;
 			}
+		}
 
-			// determine severity:
-			double severity = settings.getNormalMsgPenalty();
-			if (msg.length() > settings.getLongMsgLength()) {
-				severity += settings.getLongMsgPenalty();
-			}
-			if (rec.getLastMsg().equals(msg)) {
-				severity += settings.getDoubleMsgPenalty();
+		long now = System.currentTimeMillis();
+		Boolean mute;
+		do {
+			SpamRecord rec = channelRecords.get(user, now);
+			mute = rec.addMessage(msg, settings, now);
+			if (mute == null) {
+				// the record was just pruned; use a fresh one
+				channelRecords.remove(user, rec);
 			}
+		} while (mute == null);
 
-			rec.setPenaltyPoints(rec.getPenaltyPoints() + severity);
-			rec.setLastMsg(msg);
-
-			// check if user has gathered too many penalty points:
-			if (rec.getPenaltyPoints() >= settings.getPenaltyLimit()) {
-				rec.setPenaltyPoints(0); // reset counter
-				muteUser(chan, user);
-			}
+		if (mute.booleanValue()) {
+			muteUser(chan, user);
 		}
+
+		channelRecords.prune(now);
 	}
 
 	@Override
@@ -125,18 +255,27 @@ public class DefaultAntiSpamSystem implements AntiSpamSystem{
 			client.resetStatusChanges();
 
 			// take action:
+			kicks.increment();
 			context.getChanServ().sendLine("KICKUSER " + client.getName() + " CLIENTSTATUS command abuse - frequency too high");
 		}
 	}
 
 	@Override
 	public void setSpamSettingsForChannel(String chan, SpamSettings settings) {
-		spamSettings.put(chan, settings);
+
+		if (settings == null) {
+			spamSettings.remove(chan);
+		} else {
+			spamSettings.put(chan, settings);
+		}
 	}
 
 	private void muteUser(String chan, String user) {
 
+		mutes.increment();
+
 		context.getChanServ().sendLine("MUTE " + chan + " " + user + " 15");
+		context.getMuteListCache().muted(chan, user);
 		context.getChanServ().sendLine("SAYPRIVATE " + user + " You have been temporarily muted due to spamming in channel #" + chan + ". You may get temporarily banned if you will continue to spam this channel.");
 	}
 }
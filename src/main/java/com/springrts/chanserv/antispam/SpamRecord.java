@@ -3,54 +3,94 @@ package com.springrts.chanserv.antispam;
 
 
 /**
+ * Spam state of a single user in a single channel.
+ * Penalty points decay by 1.0 per second; instead of reducing them
+ * periodically, the decay is computed whenever the record is touched,
+ * from the time of its last update.
  * @author Betalord
  */
 class SpamRecord {
 
-	/** cumulative penalty points */
+	/** How many penalty points decay per millisecond */
+	static final double DECAY_PER_MILLI = 1.0 / 1000.0;
+
+	/** cumulative penalty points, as of <code>lastUpdate</code> */
 	private double penaltyPoints;
-	/** time of last line sent to the channel by this user */
-	@Deprecated
-	private long timeOfLastMsg;
+	/** time the penalty points were last updated, in milliseconds */
+	private long lastUpdate;
 	/** last line sent to the channel by this user */
 	private String lastMsg;
+	/** whether this record was dropped from its channel, and is unusable */
+	private boolean expired;
 
-	SpamRecord() {
+	SpamRecord(long now) {
 
 		penaltyPoints = 0;
-		timeOfLastMsg = 0;
+		lastUpdate = now;
 		lastMsg = "";
+		expired = false;
 	}
 
-	/**
-	 * cumulative penalty points
-	 * @return the penaltyPoints
-	 */
-	public double getPenaltyPoints() {
-		return penaltyPoints;
-	}
+	/** Applies the decay since the last update */
+	private void decay(long now) {
 
-	/**
-	 * cumulative penalty points
-	 * @param penaltyPoints the penaltyPoints to set
-	 */
-	public void setPenaltyPoints(double penaltyPoints) {
-		this.penaltyPoints = penaltyPoints;
+		if (now > lastUpdate) {
+			penaltyPoints = Math.max(0, penaltyPoints - (now - lastUpdate) * DECAY_PER_MILLI);
+			lastUpdate = now;
+		}
 	}
 
 	/**
-	 * last line sent to the channel by this user
-	 * @return the lastMsg
+	 * Adds the penalty for a message, and resets the points if they reached
+	 * the limit.
+	 * @param now current time in milliseconds
+	 * @return <code>null</code> if the record expired in the meantime,
+	 *   and a new one has to be used, otherwise whether the limit was reached,
+	 *   and the user should be muted
 	 */
-	public String getLastMsg() {
-		return lastMsg;
+	synchronized Boolean addMessage(String msg, SpamSettings settings, long now) {
+
+		if (expired) {
+			return null;
+		}
+		decay(now);
+		if (penaltyPoints == 0) {
+			// a fully decayed record forgets the last message too
+			lastMsg = "";
+		}
+
+		// determine severity:
+		double severity = settings.getNormalMsgPenalty();
+		if (msg.length() > settings.getLongMsgLength()) {
+			severity += settings.getLongMsgPenalty();
+		}
+		if (lastMsg.equals(msg)) {
+			severity += settings.getDoubleMsgPenalty();
+		}
+
+		penaltyPoints += severity;
+		lastMsg = msg;
+
+		// check if user has gathered too many penalty points:
+		if (penaltyPoints >= settings.getPenaltyLimit()) {
+			penaltyPoints = 0; // reset counter
+			return Boolean.TRUE;
+		}
+		return Boolean.FALSE;
 	}
 
 	/**
-	 * last line sent to the channel by this user
-	 * @param lastMsg the lastMsg to set
+	 * Marks the record as expired if all penalty points decayed,
+	 * which means it may be forgotten.
+	 * @param now current time in milliseconds
+	 * @return whether the record is expired
 	 */
-	public void setLastMsg(String lastMsg) {
-		this.lastMsg = lastMsg;
+	synchronized boolean expire(long now) {
+
+		decay(now);
+		if (penaltyPoints == 0) {
+			expired = true;
+		}
+		return expired;
 	}
-}
\ No newline at end of file
+}
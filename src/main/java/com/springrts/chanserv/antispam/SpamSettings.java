@@ -1,6 +1,7 @@
 
 package com.springrts.chanserv.antispam;
 
+import com.springrts.chanserv.LineTokenizer;
 import javax.xml.bind.annotation.XmlElement;
 
 /**
@@ -86,16 +87,16 @@ public class SpamSettings {
 
 		SpamSettings ss = null;
 
-		String[] parsed = settings.split(" ");
-		if (parsed.length != 5) {
+		LineTokenizer parsed = new LineTokenizer(settings);
+		if (parsed.size() != 5) {
 			throw new IllegalArgumentException("Malformed spam settings; Needs exactly 5 arguments.");
 		}
 		try {
-			int penaltyLimit = Integer.parseInt(parsed[0]);
-			int longMsgLength = Integer.parseInt(parsed[1]);
-			double normalMsgPenalty = Double.parseDouble(parsed[2]);
-			double longMsgPenalty = Double.parseDouble(parsed[3]);
-			double doubleMsgPenalty = Double.parseDouble(parsed[4]);
+			int penaltyLimit = parsed.parseInt(0);
+			int longMsgLength = parsed.parseInt(1);
+			double normalMsgPenalty = Double.parseDouble(parsed.get(2));
+			double longMsgPenalty = Double.parseDouble(parsed.get(3));
+			double doubleMsgPenalty = Double.parseDouble(parsed.get(4));
 			ss = new SpamSettings(penaltyLimit, longMsgLength, normalMsgPenalty, longMsgPenalty, doubleMsgPenalty);
 		} catch (NumberFormatException ex) {
 			throw new IllegalArgumentException("Malformed spam settings; Has to consist of 2*int, 3*double.", ex);
@@ -0,0 +1,66 @@
+
+package com.springrts.chanserv.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads may increment at the same time,
+ * without contending on a single memory location.
+ *
+ * Each thread adds to one of several stripes, chosen by its thread ID;
+ * the stripes are spread over different cache lines.
+ * Reading the value sums up all the stripes, which is comparatively slow,
+ * but only done when reporting.
+ * Neither incrementing nor reading allocates anything.
+ * @author hoijui
+ */
+public class Counter {
+
+	/** Number of stripes; a power of two */
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		while ((stripes < Runtime.getRuntime().availableProcessors() * 2) && (stripes < 64)) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+	/** Number of longs between two stripes, so they end up in different cache lines */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells;
+
+	public Counter() {
+		this.cells = new AtomicLongArray(STRIPES * PADDING);
+	}
+
+	private static int stripeIndex() {
+
+		long threadId = Thread.currentThread().getId();
+		return (int) ((threadId ^ (threadId >>> 16)) & (STRIPES - 1)) * PADDING;
+	}
+
+	public void increment() {
+		cells.incrementAndGet(stripeIndex());
+	}
+
+	public void add(long value) {
+		cells.addAndGet(stripeIndex(), value);
+	}
+
+	/** Returns the sum of all the values added so far */
+	public long get() {
+
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(get());
+	}
+}
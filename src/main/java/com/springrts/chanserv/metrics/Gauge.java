@@ -0,0 +1,12 @@
+package com.springrts.chanserv.metrics;
+
+
+/**
+ * A value that is read when reporting, for example the length of a queue.
+ * Has to be cheap to read, and may be read from any thread.
+ * @author hoijui
+ */
+public interface Gauge {
+
+	long getValue();
+}
@@ -0,0 +1,119 @@
+
+package com.springrts.chanserv.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations (or any other non-negative values),
+ * in buckets of fixed, exponentially growing size.
+ *
+ * Bucket <code>i</code> counts the values <code>v</code> with
+ * <code>2^(i-1) &lt;= v &lt; 2^i</code>, bucket 0 counts the zeros.
+ * The bucket is found with a single bit operation, and recording
+ * a value never allocates anything.
+ * Percentiles are therefore only accurate to a factor of two,
+ * which is plenty to spot where time goes.
+ * @author hoijui
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets;
+	private final Counter sum;
+	private final AtomicLong max;
+
+	public Histogram() {
+
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.sum = new Counter();
+		this.max = new AtomicLong(0);
+	}
+
+	private static int bucketIndex(long value) {
+		return Math.min(BUCKETS - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+	}
+
+	/**
+	 * Records a single value.
+	 * @param value negative values are counted as 0
+	 */
+	public void record(long value) {
+
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(bucketIndex(value));
+		sum.add(value);
+		long currentMax;
+		while (value > (currentMax = max.get())) {
+			if (max.compareAndSet(currentMax, value)) {
+				break;
+			}
+		}
+	}
+
+	/** Records the time passed since <code>startNanos</code>, in nanoseconds */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/** Number of values recorded */
+	public long getCount() {
+
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/** Sum of all the values recorded */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/** Largest value recorded */
+	public long getMax() {
+		return max.get();
+	}
+
+	/** Average of all the values recorded, or 0 if there are none */
+	public double getMean() {
+
+		long count = getCount();
+		return (count == 0) ? 0.0 : ((double) getSum() / count);
+	}
+
+	/**
+	 * Returns an upper bound for the given percentile of the values recorded.
+	 * @param percentile between 0.0 and 1.0, for example 0.99
+	 * @return the upper end of the bucket containing the percentile,
+	 *   but never more than the maximum; 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if ((seen >= rank) && (counts[i] > 0)) {
+				long upperBound = (i == 0) ? 0 : ((i >= BUCKETS - 1) ? Long.MAX_VALUE : ((1L << i) - 1));
+				return Math.min(upperBound, getMax());
+			}
+		}
+		return getMax();
+	}
+}
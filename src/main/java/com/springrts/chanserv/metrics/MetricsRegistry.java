@@ -0,0 +1,125 @@
+
+package com.springrts.chanserv.metrics;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds all the named counters, gauges and histograms of ChanServ.
+ *
+ * Components look up their metrics once, when they are created,
+ * and then only touch the {@link Counter} and {@link Histogram} objects
+ * directly, so the lookup by name is never on a hot path.
+ * Names are dot separated, for example "inbound.SAID".
+ * All durations are recorded in nanoseconds.
+ * @author hoijui
+ */
+public class MetricsRegistry {
+
+	private final ConcurrentMap<String, Counter> counters;
+	private final ConcurrentMap<String, Gauge> gauges;
+	private final ConcurrentMap<String, Histogram> histograms;
+
+	public MetricsRegistry() {
+
+		this.counters = new ConcurrentHashMap<String, Counter>();
+		this.gauges = new ConcurrentHashMap<String, Gauge>();
+		this.histograms = new ConcurrentHashMap<String, Histogram>();
+	}
+
+	/** Returns the counter with the given name, creating it if needed */
+	public Counter counter(String name) {
+
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = new Counter();
+			Counter existing = counters.putIfAbsent(name, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Registers a gauge under the given name,
+	 * replacing the one registered before, if any.
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/** Returns the histogram with the given name, creating it if needed */
+	public Histogram histogram(String name) {
+
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram existing = histograms.putIfAbsent(name, histogram);
+			if (existing != null) {
+				histogram = existing;
+			}
+		}
+		return histogram;
+	}
+
+	/** Returns all counters, sorted by name */
+	public SortedMap<String, Counter> getCounters() {
+		return new TreeMap<String, Counter>(counters);
+	}
+
+	/** Returns all gauges, sorted by name */
+	public SortedMap<String, Gauge> getGauges() {
+		return new TreeMap<String, Gauge>(gauges);
+	}
+
+	/** Returns all histograms, sorted by name */
+	public SortedMap<String, Histogram> getHistograms() {
+		return new TreeMap<String, Histogram>(histograms);
+	}
+
+	/**
+	 * Describes the current values of all the metrics whose name starts
+	 * with the given prefix, one metric per line;
+	 * first the counters, then the gauges, then the histograms,
+	 * each sorted by name.
+	 * Counters and gauges are shown as <code>name=value</code>,
+	 * histograms as <code>name=count/mean/p50/p99/max</code>, with
+	 * durations in microseconds.
+	 * Counters and histograms that were never touched are left out.
+	 * @param prefix <code>""</code> for all metrics
+	 */
+	public List<String> report(String prefix) {
+
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, Counter> counter : getCounters().entrySet()) {
+			long value = counter.getValue().get();
+			if (counter.getKey().startsWith(prefix) && (value != 0)) {
+				lines.add(counter.getKey() + "=" + value);
+			}
+		}
+		for (Map.Entry<String, Gauge> gauge : getGauges().entrySet()) {
+			if (gauge.getKey().startsWith(prefix)) {
+				lines.add(gauge.getKey() + "=" + gauge.getValue().getValue());
+			}
+		}
+		for (Map.Entry<String, Histogram> histogram : getHistograms().entrySet()) {
+			Histogram h = histogram.getValue();
+			long count = h.getCount();
+			if (histogram.getKey().startsWith(prefix) && (count != 0)) {
+				lines.add(histogram.getKey() + "=" + count
+						+ "/" + (long) (h.getMean() / 1000)
+						+ "/" + (h.getPercentile(0.5) / 1000)
+						+ "/" + (h.getPercentile(0.99) / 1000)
+						+ "/" + (h.getMax() / 1000));
+			}
+		}
+		return lines;
+	}
+}
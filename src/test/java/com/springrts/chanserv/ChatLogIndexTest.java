@@ -0,0 +1,101 @@
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class ChatLogIndexTest extends TestCase {
+
+	private static final long TIME = 1300000000L;
+
+	public void testUserOfLoggedLine() {
+
+		assertEquals("bob", ChatLogIndex.userOfLine("<bob> hello", "main"));
+		assertEquals("bob", ChatLogIndex.userOfLine("* bob has joined #main", "main"));
+		assertEquals("bob", ChatLogIndex.userOfLine("* bob has left #main (quit)", "main"));
+		assertNull(ChatLogIndex.userOfLine("* Channel topic is 'hi' set by bob", "main"));
+		assertNull(ChatLogIndex.userOfLine("* Channel message: welcome", "main"));
+		assertNull(ChatLogIndex.userOfLine("* bob waves", "main"));
+	}
+
+	public void testSearchByUser() {
+
+		ChatLogIndex index = new ChatLogIndex(new ChatLogSettings(), new MetricsRegistry());
+		index.add("main", TIME, "bob", TIME + " * bob waves");
+		index.add("main", TIME + 1, null, TIME + 1 + " * Channel topic is 'hi' set by bob");
+		index.add("main", TIME + 2, "alice", TIME + 2 + " <alice> hi bob");
+
+		ChatLogIndex.Result byBob = index.search("main", "bob", 0, 10);
+		assertEquals(Arrays.asList("* bob waves", "* Channel topic is 'hi' set by bob",
+				"<alice> hi bob"), byBob.getLines());
+		assertEquals(TIME, byBob.getTime(0));
+		assertEquals(TIME + 2, byBob.getTime(2));
+
+		ChatLogIndex.Result byAlice = index.search("main", "alice", 0, 10);
+		assertEquals(Arrays.asList("<alice> hi bob"), byAlice.getLines());
+		assertEquals(TIME + 2, byAlice.getTime(0));
+
+		// only mentioned as a word
+		ChatLogIndex.Result waves = index.search("main", "waves", 0, 10);
+		assertEquals(1, waves.getTotal());
+	}
+
+	public void testLimitOfAllChannels() {
+
+		ChatLogIndex index = new ChatLogIndex(new ChatLogSettings(7, 100, 3), new MetricsRegistry());
+		long now = Misc.getUnixTimestamp();
+		index.add("main", now - 7200, "bob", (now - 7200) + " <bob> oldest");
+		index.add("other", now - 3600, "bob", (now - 3600) + " <bob> older");
+		index.add("main", now, "bob", now + " <bob> new");
+		index.add("other", now, "bob", now + " <bob> newest");
+
+		// the oldest hour of all channels is dropped
+		assertEquals(Arrays.asList("<bob> new"), index.search("main", "bob", 0, 10).getLines());
+		assertEquals(Arrays.asList("<bob> older", "<bob> newest"), index.search("other", "bob", 0, 10).getLines());
+	}
+
+	public void testLoadStopsAtActiveSize() throws IOException {
+
+		File folder = File.createTempFile("chatlogs", "");
+		assertTrue(folder.delete() && folder.mkdir());
+		File log = new File(folder, "#main.log");
+		long now = Misc.getUnixTimestamp();
+		try {
+			// more bytes than chars
+			append(log, now + " <bob> gr\u00FC\u00DFe \u00E0 tous\n");
+			append(log, now + " <alice> \u3053\u3093\u306B\u3061\u306F\n");
+			long activeSize = log.length();
+			// written after start-up, so indexed by the writer thread already
+			append(log, now + " <carol> later\n");
+
+			ChatLogIndex index = new ChatLogIndex(new ChatLogSettings(), new MetricsRegistry());
+			index.load(folder, Collections.singletonMap(log.getName(), activeSize));
+
+			assertEquals(1, index.search("main", "bob", 0, 10).getTotal());
+			assertEquals(1, index.search("main", "alice", 0, 10).getTotal());
+			assertEquals(0, index.search("main", "carol", 0, 10).getTotal());
+		} finally {
+			log.delete();
+			folder.delete();
+		}
+	}
+
+	private static void append(File file, String text) throws IOException {
+
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(text.getBytes(ChatLogWriter.CHARSET));
+		} finally {
+			out.close();
+		}
+	}
+}
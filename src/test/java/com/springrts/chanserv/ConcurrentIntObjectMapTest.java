@@ -0,0 +1,95 @@
+package com.springrts.chanserv;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class ConcurrentIntObjectMapTest extends TestCase {
+
+	/** Capacity of a map created for 4 mappings */
+	private static final int MASK = 7;
+
+	public void testRemovedKeysStayReachable() {
+
+		ConcurrentIntObjectMap<String> map = new ConcurrentIntObjectMap<String>(4);
+		int[] colliding = IntObjectMapTest.keysInSlot(3, MASK, 3);
+		for (int k : colliding) {
+			assertNull(map.put(k, "v" + k));
+		}
+		assertEquals("v" + colliding[1], map.remove(colliding[1]));
+		assertEquals("v" + colliding[0], map.remove(colliding[0]));
+		assertNull(map.get(colliding[0]));
+		assertEquals("v" + colliding[2], map.get(colliding[2]));
+		assertEquals(1, map.size());
+		assertTrue(Arrays.equals(new int[] {colliding[2]}, map.keys()));
+
+		// the slot of a removed key is used again
+		assertNull(map.putIfAbsent(colliding[0], "again"));
+		assertEquals("again", map.putIfAbsent(colliding[0], "not again"));
+		assertEquals("again", map.get(colliding[0]));
+		assertEquals(2, map.size());
+	}
+
+	public void testRebuildKeepsMappings() {
+
+		ConcurrentIntObjectMap<Integer> map = new ConcurrentIntObjectMap<Integer>();
+		for (int k = 0; k < 1000; k++) {
+			assertNull(map.put(k * 3, k));
+			if ((k % 2) == 0) {
+				assertEquals(Integer.valueOf(k), map.remove(k * 3));
+			}
+		}
+		assertEquals(500, map.size());
+		assertEquals(500, map.keys().length);
+		for (int k = 0; k < 3000; k++) {
+			boolean mapped = ((k % 3) == 0) && (((k / 3) % 2) == 1);
+			assertEquals(mapped ? Integer.valueOf(k / 3) : null, map.get(k));
+		}
+	}
+
+	public void testInvalidMappings() {
+
+		ConcurrentIntObjectMap<String> map = new ConcurrentIntObjectMap<String>();
+		try {
+			map.put(-1, "a");
+			fail("negative key accepted");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+		try {
+			map.put(1, null);
+			fail("null value accepted");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+		assertNull(map.get(-1));
+		assertNull(map.remove(-1));
+		assertTrue(map.isEmpty());
+	}
+
+	public void testAgainstHashMap() {
+
+		Random random = new Random(42);
+		ConcurrentIntObjectMap<Integer> map = new ConcurrentIntObjectMap<Integer>();
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		for (int i = 0; i < 100000; i++) {
+			int k = random.nextInt(200);
+			if (random.nextBoolean()) {
+				assertEquals(expected.put(k, i), map.put(k, i));
+			} else {
+				assertEquals(expected.remove(k), map.remove(k));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (int k = 0; k < 200; k++) {
+			assertEquals(expected.get(k), map.get(k));
+		}
+	}
+}
@@ -0,0 +1,150 @@
+
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class EventPipelineTest extends TestCase {
+
+	private ServerCommandDispatcher dispatcher;
+	private EventPipeline pipeline;
+	/** Reused for all submitted lines, like by the reader */
+	private LineTokenizer lineTokenizer;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		dispatcher = new ServerCommandDispatcher(new MetricsRegistry());
+		pipeline = new EventPipeline(2, dispatcher, new MetricsRegistry());
+		pipeline.start();
+		lineTokenizer = new LineTokenizer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		pipeline.stop();
+	}
+
+	private static String partitionKey(String line) {
+		return EventPipeline.partitionKey(new LineTokenizer(line));
+	}
+
+	private boolean submit(String line) {
+		return pipeline.submit(lineTokenizer.reset(line));
+	}
+
+	public void testChannelLinesArePartitionedByChannel() {
+
+		assertEquals("main", partitionKey("SAID main someone hello there"));
+		assertEquals("main", partitionKey("said main someone hello there"));
+		assertEquals("main", partitionKey("JOINED main someone"));
+		assertEquals("main", partitionKey("CLIENTS main a b c"));
+	}
+
+	public void testOtherLinesAreBarriers() {
+
+		assertNull(partitionKey("ADDUSER someone DE 0 1"));
+		assertNull(partitionKey("SAIDPRIVATE someone hello"));
+		assertNull(partitionKey("SAID"));
+	}
+
+	public void testUserCommandsAreBarriers() {
+		assertNull(partitionKey("SAID main someone !info"));
+	}
+
+	public void testMessageStartingWithSpace() {
+
+		// the message token is empty, as the tokenizer keeps empty tokens
+		assertEquals("main", partitionKey("SAID main someone  !info"));
+		assertEquals("main", partitionKey("SAID main someone "));
+	}
+
+	public void testOrderWithinChannel() {
+
+		final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+		dispatcher.register("SAID", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+
+				List<Integer> channel;
+				synchronized (received) {
+					channel = received.get(commands.get(1));
+					if (channel == null) {
+						channel = Collections.synchronizedList(new ArrayList<Integer>());
+						received.put(commands.get(1), channel);
+					}
+				}
+				channel.add(commands.parseInt(3));
+				return true;
+			}
+		});
+
+		String[] channels = {"main", "newbies", "dev", "ai", "moddev"};
+		for (int i = 0; i < 1000; i++) {
+			// reuses the tokenizer while the workers still process
+			assertTrue(submit("SAID " + channels[i % channels.length] + " bob " + i));
+		}
+		pipeline.awaitIdle();
+
+		for (int c = 0; c < channels.length; c++) {
+			List<Integer> lines = received.get(channels[c]);
+			assertEquals(200, lines.size());
+			for (int l = 0; l < lines.size(); l++) {
+				assertEquals(c + (l * channels.length), lines.get(l).intValue());
+			}
+		}
+	}
+
+	public void testBarrierWaitsForEarlierLines() throws InterruptedException {
+
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch processed = new CountDownLatch(1);
+		dispatcher.register("SAID", new ServerCommandHandler() {
+			@Override
+			public boolean execute(LineTokenizer commands) {
+
+				try {
+					blocked.await();
+				} catch (InterruptedException ex) {
+					return false;
+				}
+				processed.countDown();
+				return true;
+			}
+		});
+		assertTrue(submit("SAID main bob hello"));
+
+		assertFalse(submit("ADDUSER alice DE 0 1"));
+		assertFalse(submit("REMOVEUSER alice"));
+		assertFalse(submit("CLIENTSTATUS bob 1"));
+		assertFalse(submit("SAID main bob !info"));
+
+		// what the reader does with a barrier
+		final CountDownLatch idle = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+
+				pipeline.awaitIdle();
+				idle.countDown();
+			}
+		}).start();
+		assertFalse(idle.await(100, TimeUnit.MILLISECONDS));
+
+		blocked.countDown();
+		assertTrue(idle.await(10, TimeUnit.SECONDS));
+		assertEquals(0, processed.getCount());
+	}
+}
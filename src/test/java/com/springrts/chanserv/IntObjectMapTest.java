@@ -0,0 +1,117 @@
+package com.springrts.chanserv;
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class IntObjectMapTest extends TestCase {
+
+	/** Capacity of a map created for 4 mappings */
+	private static final int MASK = 7;
+
+	/** Returns the smallest keys whose home is the given slot */
+	static int[] keysInSlot(int slot, int mask, int count) {
+
+		int[] keys = new int[count];
+		int found = 0;
+		for (int k = 0; found < count; k++) {
+			if (IntObjectMap.slot(k, mask) == slot) {
+				keys[found++] = k;
+			}
+		}
+		return keys;
+	}
+
+	public void testCollidingKeys() {
+
+		IntObjectMap<String> map = new IntObjectMap<String>(4);
+		int[] colliding = keysInSlot(3, MASK, 3);
+		for (int k : colliding) {
+			assertNull(map.put(k, "v" + k));
+		}
+		assertEquals("v" + colliding[2], map.put(colliding[2], "x"));
+		assertEquals(3, map.size());
+
+		assertEquals("v" + colliding[1], map.remove(colliding[1]));
+		assertNull(map.get(colliding[1]));
+		assertEquals("v" + colliding[0], map.get(colliding[0]));
+		assertEquals("x", map.get(colliding[2]));
+
+		assertEquals("v" + colliding[0], map.remove(colliding[0]));
+		assertEquals("x", map.get(colliding[2]));
+		assertNull(map.remove(colliding[0]));
+		assertEquals(1, map.size());
+	}
+
+	public void testRemovalAcrossWrapAround() {
+
+		IntObjectMap<String> map = new IntObjectMap<String>(4);
+		int[] last = keysInSlot(MASK, MASK, 2);
+		int first = keysInSlot(0, MASK, 1)[0];
+		// occupies the last slot, and the first two
+		map.put(last[0], "a");
+		map.put(last[1], "b");
+		map.put(first, "c");
+
+		assertEquals("a", map.remove(last[0]));
+		assertEquals("b", map.get(last[1]));
+		assertEquals("c", map.get(first));
+
+		assertEquals("b", map.remove(last[1]));
+		assertEquals("c", map.get(first));
+		assertEquals(1, map.size());
+	}
+
+	public void testRehashKeepsMappings() {
+
+		IntObjectMap<Integer> map = new IntObjectMap<Integer>();
+		for (int k = 0; k < 1000; k++) {
+			assertNull(map.put(k * 3, k));
+		}
+		assertEquals(1000, map.size());
+		assertEquals(1000, map.keys().length);
+		for (int k = 0; k < 3000; k++) {
+			assertEquals(((k % 3) == 0) ? Integer.valueOf(k / 3) : null, map.get(k));
+		}
+	}
+
+	public void testNegativeKeys() {
+
+		IntObjectMap<String> map = new IntObjectMap<String>();
+		try {
+			map.put(-1, "a");
+			fail("negative key accepted");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+		assertNull(map.get(-1));
+		assertFalse(map.containsKey(-1));
+		assertNull(map.remove(-1));
+		assertTrue(map.isEmpty());
+	}
+
+	public void testAgainstHashMap() {
+
+		Random random = new Random(42);
+		IntObjectMap<Integer> map = new IntObjectMap<Integer>();
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		for (int i = 0; i < 100000; i++) {
+			int k = random.nextInt(200);
+			if (random.nextBoolean()) {
+				assertEquals(expected.put(k, i), map.put(k, i));
+			} else {
+				assertEquals(expected.remove(k), map.remove(k));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (int k = 0; k < 200; k++) {
+			assertEquals(expected.get(k), map.get(k));
+		}
+	}
+}
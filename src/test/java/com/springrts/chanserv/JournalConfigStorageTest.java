@@ -0,0 +1,252 @@
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.antispam.AntiSpamSystem;
+import com.springrts.chanserv.antispam.SpamSettings;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class JournalConfigStorageTest extends TestCase {
+
+	private File folder;
+	private String fileName;
+	private File journalFile;
+	private File retiredFile;
+	/** The storage used by the last {@link #load()} */
+	private JournalConfigStorage storage;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		folder = File.createTempFile("chanserv-config", "");
+		assertTrue(folder.delete() && folder.mkdir());
+		fileName = new File(folder, "settings.xml").getPath();
+		journalFile = new File(fileName + ".journal");
+		retiredFile = new File(fileName + ".journal.old");
+
+		// an empty snapshot to start from
+		Context context = newContext();
+		assertTrue(new JAXBConfigStorage(context).saveConfig(context.getConfiguration(), fileName));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		for (File file : folder.listFiles()) {
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	private static Context newContext() {
+
+		Context context = new Context();
+		context.setConfiguration(new Configuration());
+		context.setAntiSpamSystem(new AntiSpamSystem() {
+			@Override
+			public void initialize() {
+			}
+			@Override
+			public void uninitialize() {
+			}
+			@Override
+			public void processUserMsg(String chan, String user, String msg) {
+			}
+			@Override
+			public void processClientStatusChange(Client client) {
+			}
+			@Override
+			public void setSpamSettingsForChannel(String chan, SpamSettings settings) {
+			}
+		});
+		return context;
+	}
+
+	/** Loads the configuration with a new storage, like on start-up */
+	private Context load() {
+
+		Context context = newContext();
+		storage = new JournalConfigStorage(context);
+		storage.loadConfig(fileName);
+		return context;
+	}
+
+	private static void write(File file, String... records) throws IOException {
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (String record : records) {
+				out.write(record.getBytes("UTF-8"));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static List<String> read(File file) throws IOException {
+
+		List<String> records = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String record;
+			while ((record = in.readLine()) != null) {
+				records.add(record);
+			}
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	public void testReplayOnTopOfSnapshot() {
+
+		Context context = load();
+		Configuration config = context.getConfiguration();
+		Channel main = new Channel(context, "main");
+		config.addChannel(main);
+		main.setStatic(false);
+		main.setFounder("bob");
+		main.setTopic("hello world");
+		main.addOperator("alice");
+		main.addOperator("carol");
+		main.removeOperator("alice");
+		Channel gone = new Channel(context, "gone");
+		config.addChannel(gone);
+		config.removeChannel(gone);
+		assertTrue(storage.saveConfig(config, fileName));
+		assertTrue(journalFile.length() > 0);
+
+		Configuration loaded = load().getConfiguration();
+		assertNull(loaded.getChannel("gone"));
+		Channel loadedMain = loaded.getChannel("main");
+		assertNotNull(loadedMain);
+		assertFalse(loadedMain.isStatic());
+		assertEquals("bob", loadedMain.getFounder());
+		assertEquals("hello world", loadedMain.getTopic());
+		assertEquals(Arrays.asList("carol"), loadedMain.getOperatorList());
+		assertTrue(loaded.getRevision() >= config.getRevision());
+	}
+
+	public void testCompactionDropsSavedRecords() throws IOException {
+
+		Context context = load();
+		Configuration config = context.getConfiguration();
+		Channel main = new Channel(context, "main");
+		config.addChannel(main);
+		for (int t = 0; t < JournalConfigStorage.COMPACTION_THRESHOLD; t++) {
+			main.setTopic("topic " + t);
+		}
+		// writes a snapshot, as the journal is full
+		assertTrue(storage.saveConfig(config, fileName));
+		assertFalse(retiredFile.exists());
+		assertEquals(0, journalFile.exists() ? read(journalFile).size() : 0);
+
+		// the journal is still used after compaction
+		main.setTopic("after compaction");
+		assertTrue(storage.saveConfig(config, fileName));
+		List<String> records = read(journalFile);
+		assertEquals(1, records.size());
+		assertTrue(records.get(0).endsWith("TOPIC main =after compaction"));
+
+		Configuration loaded = load().getConfiguration();
+		assertEquals("after compaction", loaded.getChannel("main").getTopic());
+		assertTrue(loaded.getRevision() >= config.getRevision());
+	}
+
+	public void testTornLastRecord() throws IOException {
+
+		write(journalFile,
+				"1 ADDED main\n",
+				"2 TOPIC main =complete\n",
+				"3 OPERATOR_ADDED main =bob\n",
+				"4 OPERA");
+
+		Configuration loaded = load().getConfiguration();
+		Channel main = loaded.getChannel("main");
+		assertEquals("complete", main.getTopic());
+		assertTrue(main.isOperator("bob"));
+		assertTrue(loaded.getRevision() >= 4);
+
+		// revision cut off
+		write(journalFile,
+				"1 ADDED main\n",
+				"2 TOPIC main =complete\n",
+				"3");
+		assertEquals("complete", load().getConfiguration().getChannel("main").getTopic());
+	}
+
+	public void testRetiredJournalIsReplayedFirst() throws IOException {
+
+		write(retiredFile,
+				"5 ADDED main\n",
+				"6 TOPIC main =old\n",
+				"6 OPERATOR_ADDED main =bob\n");
+		write(journalFile,
+				"7 TOPIC main =new\n",
+				"8 OPERATOR_REMOVED main =bob\n");
+
+		Configuration loaded = load().getConfiguration();
+		Channel main = loaded.getChannel("main");
+		assertEquals("new", main.getTopic());
+		assertFalse(main.isOperator("bob"));
+		assertTrue(loaded.getRevision() >= 8);
+	}
+
+	public void testCompactionDropsRetiredJournal() throws IOException {
+
+		write(retiredFile,
+				"5 ADDED main\n",
+				"6 TOPIC main =old\n");
+
+		Context context = load();
+		Channel main = context.getConfiguration().getChannel("main");
+		for (int t = 0; t < JournalConfigStorage.COMPACTION_THRESHOLD; t++) {
+			main.setTopic("topic " + t);
+		}
+		assertTrue(storage.saveConfig(context.getConfiguration(), fileName));
+
+		// contained in the snapshot
+		assertFalse(retiredFile.exists());
+		assertEquals(0, journalFile.exists() ? read(journalFile).size() : 0);
+		assertEquals("topic " + (JournalConfigStorage.COMPACTION_THRESHOLD - 1),
+				load().getConfiguration().getChannel("main").getTopic());
+	}
+
+	public void testCompactionPostponedByRetiredJournal() throws IOException {
+
+		Context context = load();
+		Configuration config = context.getConfiguration();
+		Channel main = new Channel(context, "main");
+		config.addChannel(main);
+		for (int t = 0; t < JournalConfigStorage.COMPACTION_THRESHOLD; t++) {
+			main.setTopic("topic " + t);
+		}
+		int journalRecords = read(journalFile).size();
+
+		// left by an earlier compaction, with records newer than the snapshot
+		long newer = config.getRevision() + 1000;
+		write(retiredFile, newer + " OPERATOR_ADDED main =bob\n");
+
+		assertTrue(storage.saveConfig(config, fileName));
+		// the retired journal has to stay ahead of the current one
+		assertEquals(Arrays.asList(newer + " OPERATOR_ADDED main =bob"), read(retiredFile));
+		assertEquals(journalRecords, read(journalFile).size());
+
+		Configuration loaded = load().getConfiguration();
+		assertEquals("topic " + (JournalConfigStorage.COMPACTION_THRESHOLD - 1), loaded.getChannel("main").getTopic());
+		assertTrue(loaded.getChannel("main").isOperator("bob"));
+		assertTrue(loaded.getRevision() >= newer);
+	}
+}
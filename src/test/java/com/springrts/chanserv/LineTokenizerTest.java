@@ -0,0 +1,146 @@
+package com.springrts.chanserv;
+
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class LineTokenizerTest extends TestCase {
+
+	/**
+	 * Checks the tokens against <code>line.trim().split(" ")</code>,
+	 * and the rest of the line against {@link Misc#makeSentence},
+	 * which is how lines were split before.
+	 */
+	private static void assertSplitAsBefore(String line) {
+
+		String[] split = line.trim().split(" ");
+		LineTokenizer tokens = new LineTokenizer(line);
+		assertEquals(line, Arrays.asList(split), Arrays.asList(tokens.toArray()));
+		assertEquals(split.length, tokens.size());
+		for (int t = 0; t < split.length; t++) {
+			assertEquals(split[t], tokens.get(t));
+			assertEquals(split[t].length(), tokens.length(t));
+			assertTrue(tokens.equals(t, split[t]));
+		}
+		// past the end too
+		for (int t = 0; t <= (split.length + 1); t++) {
+			assertEquals(line + " at " + t, Misc.makeSentence(split, t), tokens.rest(t));
+		}
+		assertEquals(line.trim(), tokens.toString());
+		assertSame(line, tokens.getLine());
+	}
+
+	public void testSingleSpaces() {
+
+		assertSplitAsBefore("SAID main bob hello there");
+		assertSplitAsBefore("PING");
+	}
+
+	public void testDoubleSpaces() {
+
+		// empty tokens are kept, as split() does
+		assertSplitAsBefore("SAID main bob  hello   there");
+		assertEquals("", new LineTokenizer("SAID main bob  hello").get(3));
+	}
+
+	public void testSurroundingWhiteSpace() {
+
+		assertSplitAsBefore("  SAID main bob hello ");
+		assertSplitAsBefore("\tSAID main bob hello\r\n");
+		// tabs within the line are not separators
+		assertSplitAsBefore("SAID main bob hello\tthere");
+	}
+
+	public void testEmptyLines() {
+
+		// the only difference: split() returns a single empty token
+		for (String line : new String[] {"", " ", "  \t\r\n"}) {
+			LineTokenizer tokens = new LineTokenizer(line);
+			assertTrue(tokens.isEmpty());
+			assertEquals(0, tokens.size());
+			assertEquals(0, tokens.toArray().length);
+			assertEquals("", tokens.rest(0));
+			assertEquals("", tokens.toString());
+		}
+	}
+
+	public void testReuse() {
+
+		LineTokenizer tokens = new LineTokenizer();
+		assertTrue(tokens.isEmpty());
+		StringBuilder longLine = new StringBuilder("CLIENTS main");
+		for (int c = 0; c < 100; c++) {
+			longLine.append(" user").append(c);
+		}
+		assertSame(tokens, tokens.reset(longLine.toString()));
+		assertEquals(102, tokens.size());
+		assertEquals("user99", tokens.get(101));
+
+		tokens.reset("LEFT main bob");
+		assertEquals(3, tokens.size());
+		assertEquals("bob", tokens.get(2));
+		assertEquals("main bob", tokens.rest(1));
+		try {
+			tokens.get(3);
+			fail("token of the previous line returned");
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			// expected
+		}
+	}
+
+	public void testParseIntLikeIntegerParseInt() {
+
+		String[] numbers = {"0", "42", "-42", "+42", "007", String.valueOf(Integer.MAX_VALUE),
+				String.valueOf(Integer.MIN_VALUE)};
+		for (String number : numbers) {
+			assertEquals(number, Integer.parseInt(number), new LineTokenizer("X " + number).parseInt(1));
+		}
+
+		String[] invalid = {"", "-", "+", "4x2", "0x10", "1.5", "2147483648", "-2147483649", "99999999999"};
+		for (String number : invalid) {
+			try {
+				Integer.parseInt(number);
+				fail(number + " accepted by Integer.parseInt()");
+			} catch (NumberFormatException ex) {
+				// expected
+			}
+			try {
+				// an empty token between two spaces, for ""
+				new LineTokenizer("X " + number + " Y").parseInt(1);
+				fail(number + " accepted");
+			} catch (NumberFormatException ex) {
+				// expected
+			}
+		}
+	}
+
+	public void testParseIntOfMessageId() {
+
+		// replies to queries start with #id, see ChanServ
+		LineTokenizer tokens = new LineTokenizer("#123 SERVERMSG hello");
+		assertEquals(Integer.parseInt(tokens.get(0).substring(1)), tokens.parseInt(0, 1));
+		assertEquals(123, tokens.parseInt(0, 1));
+		assertEquals("SERVERMSG hello", tokens.rest(1));
+
+		try {
+			new LineTokenizer("# SERVERMSG").parseInt(0, 1);
+			fail("empty ID accepted");
+		} catch (NumberFormatException ex) {
+			// expected
+		}
+	}
+
+	public void testCaseInsensitive() {
+
+		LineTokenizer tokens = new LineTokenizer("said main bob !Info");
+		assertTrue(tokens.equalsIgnoreCase(0, "SAID"));
+		assertFalse(tokens.equals(0, "SAID"));
+		assertFalse(tokens.equalsIgnoreCase(0, "SAIDEX"));
+		assertEquals("SAID".hashCode(), tokens.hashCodeIgnoreCase(0));
+		assertEquals("!INFO".hashCode(), tokens.hashCodeIgnoreCase(3));
+	}
+}
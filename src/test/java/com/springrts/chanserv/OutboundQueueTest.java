@@ -0,0 +1,92 @@
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class OutboundQueueTest extends TestCase {
+
+	private static OutboundQueue newQueue(int chatterLimit) {
+		return new OutboundQueue(new OutboundSettings(0, 1, chatterLimit), new MetricsRegistry());
+	}
+
+	private static List<String> takeAll(OutboundQueue queue) throws InterruptedException {
+
+		List<String> batch = new ArrayList<String>();
+		queue.take(batch);
+		assertEquals(0, queue.getDepth());
+		return batch;
+	}
+
+	public void testTarget() {
+
+		assertEquals("main", OutboundQueue.target("SAYEX main is quitting"));
+		assertEquals("main", OutboundQueue.target("LEAVE main"));
+		assertEquals("bob", OutboundQueue.target("SAYPRIVATE bob hi"));
+		assertNull(OutboundQueue.target("PING"));
+		assertNull(OutboundQueue.target("LOGIN ChanServ secret 0 * ChanServ 0.1+"));
+		assertNull(OutboundQueue.target("#12 GETINGAMETIME bob"));
+		assertNull(OutboundQueue.target("UNKNOWNCOMMAND main"));
+	}
+
+	public void testHigherLanesFirst() throws InterruptedException {
+
+		OutboundQueue queue = newQueue(10);
+		queue.add("SAY main hello");
+		queue.add("MUTE other bob 15");
+		queue.add("#1 GETINGAMETIME bob");
+		queue.add("PING");
+
+		assertEquals(Arrays.asList("PING", "MUTE other bob 15", "#1 GETINGAMETIME bob", "SAY main hello"),
+				takeAll(queue));
+	}
+
+	public void testNoOvertakingForTheSameTarget() throws InterruptedException {
+
+		OutboundQueue queue = newQueue(10);
+		// UNREGISTER
+		queue.add("CHANNELMESSAGE main This channel has just been unregistered");
+		queue.add("SAYPRIVATE bob Channel #main successfully unregistered!");
+		queue.add("LEAVE main");
+		// other targets are still overtaken
+		queue.add("JOIN other");
+		queue.add("PING");
+
+		assertEquals(Arrays.asList(
+				"JOIN other",
+				"PING",
+				"CHANNELMESSAGE main This channel has just been unregistered",
+				"SAYPRIVATE bob Channel #main successfully unregistered!",
+				"LEAVE main"),
+				takeAll(queue));
+
+		// once the chat lines are sent, the next LEAVE goes first again
+		queue.add("SAY main hello");
+		queue.add("MUTE other bob 15");
+		queue.add("LEAVE other");
+		assertEquals(Arrays.asList("MUTE other bob 15", "LEAVE other", "SAY main hello"),
+				takeAll(queue));
+	}
+
+	public void testChatterDroppedUnderOverload() throws InterruptedException {
+
+		OutboundQueue queue = newQueue(2);
+		assertTrue(queue.add("SAY main one"));
+		assertTrue(queue.add("SAY main two"));
+		assertFalse(queue.add("SAY main three"));
+		// only chat is dropped, even if it is put behind the chat
+		assertTrue(queue.add("LEAVE main"));
+		assertTrue(queue.add("PING"));
+		assertEquals(3, queue.getDepth(OutboundQueue.Lane.CHATTER));
+
+		assertEquals(Arrays.asList("PING", "SAY main one", "SAY main two", "LEAVE main"),
+				takeAll(queue));
+	}
+}
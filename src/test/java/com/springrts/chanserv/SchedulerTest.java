@@ -0,0 +1,152 @@
+package com.springrts.chanserv;
+
+
+import com.springrts.chanserv.metrics.MetricsRegistry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Uses a wheel of 8 ticks of 10 ms, so it turns every 80 ms,
+ * and deadlines several turns away can be tested quickly.
+ * @author hoijui
+ */
+public class SchedulerTest extends TestCase {
+
+	private static final long TICK = 10;
+	private static final int WHEEL_SIZE = 8;
+
+	private MetricsRegistry metrics;
+	private Scheduler scheduler;
+
+	/** Records when it ran */
+	private static class Probe implements Runnable {
+
+		private final long deadline;
+		private final CountDownLatch done;
+		private final AtomicLong ranAt;
+
+		Probe(long delay, CountDownLatch done) {
+
+			this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+			this.done = done;
+			this.ranAt = new AtomicLong(0);
+		}
+
+		@Override
+		public void run() {
+
+			ranAt.set(System.nanoTime());
+			done.countDown();
+		}
+
+		void assertNotEarly() {
+
+			assertTrue("did not run", ranAt.get() != 0);
+			assertTrue("ran " + (deadline - ranAt.get()) + " ns early", ranAt.get() >= deadline);
+		}
+	}
+
+	@Override
+	protected void setUp() {
+
+		metrics = new MetricsRegistry();
+		scheduler = new Scheduler(metrics, TICK, WHEEL_SIZE);
+		scheduler.start();
+	}
+
+	@Override
+	protected void tearDown() {
+		scheduler.stop();
+	}
+
+	private Probe schedule(long delay, CountDownLatch done) {
+
+		Probe probe = new Probe(delay, done);
+		scheduler.schedule(probe, delay);
+		return probe;
+	}
+
+	public void testNeverRunsBeforeDeadline() throws InterruptedException {
+
+		long[] delays = {0, 1, 9, 10, 11, 25, 79, 80, 81};
+		CountDownLatch done = new CountDownLatch(delays.length);
+		Probe[] probes = new Probe[delays.length];
+		for (int p = 0; p < delays.length; p++) {
+			probes[p] = schedule(delays[p], done);
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (Probe probe : probes) {
+			probe.assertNotEarly();
+		}
+	}
+
+	public void testDeadlinesSeveralTurnsAway() throws InterruptedException {
+
+		// the wheel turns every 80 ms
+		long[] delays = {160, 245, 333, 500};
+		CountDownLatch done = new CountDownLatch(delays.length);
+		Probe[] probes = new Probe[delays.length];
+		for (int p = 0; p < delays.length; p++) {
+			probes[p] = schedule(delays[p], done);
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (Probe probe : probes) {
+			probe.assertNotEarly();
+		}
+	}
+
+	public void testCancelledTimeoutNeverRuns() throws InterruptedException {
+
+		final AtomicBoolean ran = new AtomicBoolean(false);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				ran.set(true);
+			}
+		};
+		// cancelled before, and after it got into the wheel
+		Scheduler.Handle early = scheduler.schedule(task, 50);
+		Scheduler.Handle late = scheduler.schedule(task, 150);
+		assertTrue(early.cancel());
+		Thread.sleep(3 * TICK);
+		assertTrue(late.cancel());
+		assertFalse(late.cancel());
+
+		CountDownLatch done = new CountDownLatch(1);
+		schedule(300, done);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertFalse(ran.get());
+	}
+
+	public void testExpiredTimeoutCanNotBeCancelled() throws InterruptedException {
+
+		CountDownLatch done = new CountDownLatch(1);
+		Probe probe = new Probe(20, done);
+		Scheduler.Handle handle = scheduler.schedule(probe, 20);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertFalse(handle.cancel());
+	}
+
+	public void testFailingTaskDoesNotAffectOthers() throws InterruptedException {
+
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("expected by the test");
+			}
+		}, 10);
+		CountDownLatch done = new CountDownLatch(1);
+		Probe probe = schedule(50, done);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		probe.assertNotEarly();
+		// the failure is counted by the worker, after the task threw
+		for (int w = 0; (w < 100) && (metrics.counter("scheduler.failures").get() == 0); w++) {
+			Thread.sleep(TICK);
+		}
+		assertEquals(1, metrics.counter("scheduler.failures").get());
+	}
+}
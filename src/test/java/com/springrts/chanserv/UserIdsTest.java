@@ -0,0 +1,52 @@
+package com.springrts.chanserv;
+
+
+import junit.framework.TestCase;
+
+/**
+ * @author hoijui
+ */
+public class UserIdsTest extends TestCase {
+
+	public void testReferenceCounting() {
+
+		UserIds userIds = new UserIds();
+		int bob = userIds.acquire("bob");
+		assertEquals(bob, userIds.acquire("bob"));
+		assertEquals(bob, userIds.get("bob"));
+		assertEquals("bob", userIds.getName(bob));
+		assertEquals(1, userIds.size());
+
+		userIds.release(bob);
+		assertEquals(bob, userIds.get("bob"));
+
+		userIds.release(bob);
+		assertEquals(UserIds.NONE, userIds.get("bob"));
+		assertEquals(0, userIds.size());
+
+		// a freed name gets an ID again
+		int again = userIds.acquire("bob");
+		assertEquals(again, userIds.get("bob"));
+		assertEquals("bob", userIds.getName(again));
+	}
+
+	public void testFreedIdsAreReusedLate() {
+
+		UserIds userIds = new UserIds();
+		int first = userIds.acquire("user0");
+		userIds.release(first);
+		for (int u = 1; u < UserIds.REUSE_DELAY; u++) {
+			userIds.release(userIds.acquire("user" + u));
+		}
+		// all of them are still held back
+		int fresh = userIds.acquire("fresh");
+		assertEquals(UserIds.REUSE_DELAY, fresh);
+
+		userIds.release(userIds.acquire("one more"));
+		// now the oldest one is given out again
+		int reused = userIds.acquire("reused");
+		assertEquals(first, reused);
+		assertEquals("reused", userIds.getName(reused));
+		assertEquals(UserIds.NONE, userIds.get("user0"));
+	}
+}